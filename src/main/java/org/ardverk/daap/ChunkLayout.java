@@ -0,0 +1,134 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap;
+
+import org.ardverk.daap.chunks.BooleanChunk;
+import org.ardverk.daap.chunks.ByteChunk;
+import org.ardverk.daap.chunks.Chunk;
+import org.ardverk.daap.chunks.ContainerChunk;
+import org.ardverk.daap.chunks.DateChunk;
+import org.ardverk.daap.chunks.EncodedChunk;
+import org.ardverk.daap.chunks.IntChunk;
+import org.ardverk.daap.chunks.LongChunk;
+import org.ardverk.daap.chunks.ShortChunk;
+import org.ardverk.daap.chunks.StringChunk;
+import org.ardverk.daap.chunks.VersionChunk;
+
+/**
+ * The first pass of the two pass serialization of {@link DmapWriter} and
+ * {@link DaapOutputStream}. It computes the length of every container
+ * bottom-up and records the values whose length may change while they're
+ * written (Strings and booleans). The second pass takes them in the order
+ * they're written.
+ */
+final class ChunkLayout {
+
+    /** The length of the content code and the length field */
+    private static final int HEADER_LENGTH = 8;
+
+    private int[] lengths = new int[16];
+    private int lengthCount = 0;
+    private int lengthIndex = 0;
+
+    private Object[] values = new Object[16];
+    private int valueCount = 0;
+    private int valueIndex = 0;
+
+    /**
+     * Returns the number of bytes of the serialized Chunk
+     */
+    int measure(Chunk chunk) {
+        if (chunk == null) {
+            throw new NullPointerException("Cannot write null Chunk");
+        }
+
+        if (chunk instanceof ContainerChunk) {
+            if (lengthCount == lengths.length) {
+                int[] copy = new int[lengths.length * 2];
+                System.arraycopy(lengths, 0, copy, 0, lengthCount);
+                lengths = copy;
+            }
+
+            int index = lengthCount++;
+            int length = 0;
+            for (Chunk chnk : (ContainerChunk) chunk) {
+                length += measure(chnk);
+            }
+            lengths[index] = length;
+            return HEADER_LENGTH + length;
+
+        } else if (chunk instanceof StringChunk) {
+            byte[] value = ((StringChunk) chunk).getBytes();
+            addValue(value);
+            return HEADER_LENGTH + value.length;
+
+        } else if (chunk instanceof BooleanChunk) {
+            int value = ((BooleanChunk) chunk).getValue();
+            addValue(Integer.valueOf(value));
+            return (value != 0) ? HEADER_LENGTH + Chunk.BYTE_LENGTH : 0;
+
+        } else if (chunk instanceof ByteChunk) {
+            return HEADER_LENGTH + Chunk.BYTE_LENGTH;
+        } else if (chunk instanceof ShortChunk) {
+            return HEADER_LENGTH + Chunk.SHORT_LENGTH;
+        } else if (chunk instanceof IntChunk) {
+            return HEADER_LENGTH + Chunk.INT_LENGTH;
+        } else if (chunk instanceof LongChunk) {
+            return HEADER_LENGTH + Chunk.LONG_LENGTH;
+        } else if (chunk instanceof DateChunk) {
+            return HEADER_LENGTH + Chunk.DATE_LENGTH;
+        } else if (chunk instanceof VersionChunk) {
+            return HEADER_LENGTH + Chunk.VERSION_LENGTH;
+        } else if (chunk instanceof EncodedChunk) {
+            return ((EncodedChunk) chunk).getBytes().length;
+        }
+
+        throw new RuntimeException("Unknown Chunk Type: " + chunk + ", "
+                + chunk.getClass());
+    }
+
+    private void addValue(Object value) {
+        if (valueCount == values.length) {
+            Object[] copy = new Object[values.length * 2];
+            System.arraycopy(values, 0, copy, 0, valueCount);
+            values = copy;
+        }
+        values[valueCount++] = value;
+    }
+
+    /**
+     * Returns the length of the next container
+     */
+    int nextLength() {
+        return lengths[lengthIndex++];
+    }
+
+    /**
+     * Returns the bytes of the next StringChunk
+     */
+    byte[] nextBytes() {
+        return (byte[]) values[valueIndex++];
+    }
+
+    /**
+     * Returns the value of the next BooleanChunk
+     */
+    int nextBoolean() {
+        return ((Integer) values[valueIndex++]).intValue();
+    }
+}
@@ -19,6 +19,7 @@ package org.ardverk.daap;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.zip.Deflater;
 
 /**
  * Interface for DaapServer Settings
@@ -34,6 +35,10 @@ public class DaapConfig {
     public static final Object BASIC_SCHEME = "BASIC_SCHEME";
     public static final Object DIGEST_SCHEME = "DIGEST_SCHEME";
 
+    public static final Object THREAD_PER_CONNECTION = "THREAD_PER_CONNECTION";
+    public static final Object VIRTUAL_THREADS = "VIRTUAL_THREADS";
+    public static final Object BOUNDED_EXECUTOR = "BOUNDED_EXECUTOR";
+
     /**
      * The "HTTP" style name of the Server. Original is "iTunes/4.2 (Mac OS X)"
      */
@@ -59,14 +64,116 @@ public class DaapConfig {
     /** Default buffer size. */
     public static final int DEFAULT_BUFFER_SIZE = 2048;
 
+    /**
+     * Default number of worker Selectors of the NIO server. One means accept,
+     * read and write are all done on a single Thread.
+     */
+    public static final int DEFAULT_SELECTOR_THREADS = 1;
+
+    /**
+     * Default number of request processing Threads of the NIO server. Zero
+     * means requests are processed on the Selector Thread.
+     */
+    public static final int DEFAULT_PROCESSOR_THREADS = 0;
+
+    /** Default number of requests that may wait for a processing Thread */
+    public static final int DEFAULT_PROCESSOR_QUEUE_SIZE = 256;
+
+    /**
+     * Default maximum number of connection Threads of the BIO server if it's
+     * running in {@link #BOUNDED_EXECUTOR} mode
+     */
+    public static final int DEFAULT_CONNECTION_THREADS = 64;
+
+    /**
+     * Default maximum number of accepted connections per second. Zero means
+     * unlimited.
+     */
+    public static final int DEFAULT_ACCEPT_RATE = 0;
+
+    /**
+     * Default maximum number of accepted connections that haven't sent their
+     * first request yet. Zero means unlimited.
+     */
+    public static final int DEFAULT_MAX_PENDING_CONNECTIONS = 0;
+
+    /**
+     * Default maximum number of Library patches that are queued for a
+     * connection
+     */
+    public static final int DEFAULT_MAX_LIBRARY_QUEUE_SIZE = 64;
+
+    /** Default number of Threads that deliver updates in the BIO server */
+    public static final int DEFAULT_NOTIFIER_THREADS = 2;
+
+    /**
+     * Default number of bytes at the beginning of an audio stream that are
+     * sent in small chunks of {@link #DEFAULT_BUFFER_SIZE}.
+     */
+    public static final int DEFAULT_INITIAL_BURST_SIZE = 64 * 1024;
+
+    /** Default number of bytes per transfer of an audio stream */
+    public static final int DEFAULT_TRANSFER_SIZE = 256 * 1024;
+
+    /**
+     * Default max number of bytes per second of an audio stream of the NIO
+     * server. Zero means unlimited.
+     */
+    public static final int DEFAULT_MAX_STREAM_BANDWIDTH = 0;
+
+    /**
+     * Default number of Threads that read audio files ahead for the NIO
+     * server. Zero means the files are read on the Selector Threads.
+     */
+    public static final int DEFAULT_READ_AHEAD_THREADS = 2;
+
+    /** Default number of bytes that are read ahead at once */
+    public static final int DEFAULT_READ_AHEAD_SIZE = 128 * 1024;
+
+    /**
+     * Default compression level of the responses. It's the level
+     * GZIPOutputStream uses.
+     */
+    public static final int DEFAULT_COMPRESSION_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * Default min number of bytes a response must have to be compressed.
+     * Smaller responses don't get smaller and aren't worth the CPU time.
+     */
+    public static final int DEFAULT_COMPRESSION_MIN_SIZE = 1024;
+
+    /**
+     * Default max number of bytes of serialized responses that are cached.
+     * Zero turns the cache off.
+     */
+    public static final int DEFAULT_RESPONSE_CACHE_SIZE = 8 * 1024 * 1024;
+
     protected String name;
     protected InetSocketAddress address;
     protected int backlog;
     protected int maxConnections;
     protected int bufferSize;
+    protected int selectorThreads;
+    protected int processorThreads;
+    protected int processorQueueSize;
+
+    protected int connectionThreads;
+    protected int acceptRate;
+    protected int maxPendingConnections;
+    protected int maxLibraryQueueSize;
+    protected int notifierThreads;
+    protected int initialBurstSize;
+    protected int transferSize;
+    protected int maxStreamBandwidth;
+    protected int readAheadThreads;
+    protected int readAheadSize;
+    protected int compressionLevel;
+    protected int compressionMinSize;
+    protected int responseCacheSize;
 
     protected Object authenticationMethod;
     protected Object authenticationScheme;
+    protected Object connectionExecution;
 
     public DaapConfig() {
         name = DEFAULT_SERVER_NAME;
@@ -74,9 +181,26 @@ public class DaapConfig {
         backlog = DEFAULT_BACKLOG;
         maxConnections = DEFAULT_MAX_CONNECTIONS;
         bufferSize = DEFAULT_BUFFER_SIZE;
+        selectorThreads = DEFAULT_SELECTOR_THREADS;
+        processorThreads = DEFAULT_PROCESSOR_THREADS;
+        processorQueueSize = DEFAULT_PROCESSOR_QUEUE_SIZE;
+        connectionThreads = DEFAULT_CONNECTION_THREADS;
+        acceptRate = DEFAULT_ACCEPT_RATE;
+        maxPendingConnections = DEFAULT_MAX_PENDING_CONNECTIONS;
+        maxLibraryQueueSize = DEFAULT_MAX_LIBRARY_QUEUE_SIZE;
+        notifierThreads = DEFAULT_NOTIFIER_THREADS;
+        initialBurstSize = DEFAULT_INITIAL_BURST_SIZE;
+        transferSize = DEFAULT_TRANSFER_SIZE;
+        maxStreamBandwidth = DEFAULT_MAX_STREAM_BANDWIDTH;
+        readAheadThreads = DEFAULT_READ_AHEAD_THREADS;
+        readAheadSize = DEFAULT_READ_AHEAD_SIZE;
+        compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+        compressionMinSize = DEFAULT_COMPRESSION_MIN_SIZE;
+        responseCacheSize = DEFAULT_RESPONSE_CACHE_SIZE;
 
         authenticationMethod = NO_PASSWORD;
         authenticationScheme = BASIC_SCHEME;
+        connectionExecution = THREAD_PER_CONNECTION;
     }
 
     public void setServerName(String name) {
@@ -202,4 +326,293 @@ public class DaapConfig {
     public void setBufferSize(int bufferSize) {
         this.bufferSize = bufferSize;
     }
+
+    /**
+     * Returns the number of worker Selectors (and Threads) the NIO server
+     * distributes its connections over. If the number is greater than one an
+     * additional Thread accepts incoming connections and hands them to the
+     * workers in a round-robin fashion.
+     * 
+     * @return the number of worker Selectors
+     */
+    public int getSelectorThreads() {
+        return selectorThreads;
+    }
+
+    /** Sets the number of worker Selectors of the NIO server. */
+    public void setSelectorThreads(int selectorThreads) {
+        this.selectorThreads = selectorThreads;
+    }
+
+    /**
+     * Returns the number of Threads the NIO server uses to process requests
+     * (i.e. to build and serialize the responses). If zero the requests are
+     * processed on the Selector Thread.
+     * 
+     * @return the number of request processing Threads
+     */
+    public int getProcessorThreads() {
+        return processorThreads;
+    }
+
+    /** Sets the number of request processing Threads of the NIO server. */
+    public void setProcessorThreads(int processorThreads) {
+        this.processorThreads = processorThreads;
+    }
+
+    /**
+     * Returns the maximum number of requests that may wait for a processing
+     * Thread. If the queue is full the Selector Thread processes the request
+     * by itself.
+     * 
+     * @return the size of the processing queue
+     */
+    public int getProcessorQueueSize() {
+        return processorQueueSize;
+    }
+
+    /** Sets the maximum number of requests that may wait for processing. */
+    public void setProcessorQueueSize(int processorQueueSize) {
+        this.processorQueueSize = processorQueueSize;
+    }
+
+    /**
+     * Returns how the BIO server runs its connections. Default is
+     * {@link #THREAD_PER_CONNECTION}
+     */
+    public Object getConnectionExecution() {
+        return connectionExecution;
+    }
+
+    /**
+     * Sets how the BIO server runs its connections. Valid arguments are:
+     * 
+     * {@link #THREAD_PER_CONNECTION}, {@link #VIRTUAL_THREADS} and
+     * {@link #BOUNDED_EXECUTOR}. {@link #VIRTUAL_THREADS} falls back to
+     * {@link #BOUNDED_EXECUTOR} if the JVM doesn't support virtual Threads.
+     */
+    public void setConnectionExecution(Object connectionExecution) {
+        if (!(connectionExecution instanceof String)) {
+            this.connectionExecution = THREAD_PER_CONNECTION;
+        } else if (connectionExecution.equals(VIRTUAL_THREADS)
+                || connectionExecution.equals(BOUNDED_EXECUTOR)) {
+            this.connectionExecution = connectionExecution;
+        } else {
+            this.connectionExecution = THREAD_PER_CONNECTION;
+        }
+    }
+
+    /**
+     * Returns the maximum number of connection Threads of the BIO server in
+     * {@link #BOUNDED_EXECUTOR} mode. Keep in mind that each DAAP connection
+     * and each audio stream occupies a Thread for its entire lifetime.
+     * 
+     * @return the maximum number of connection Threads
+     */
+    public int getConnectionThreads() {
+        return connectionThreads;
+    }
+
+    /** Sets the maximum number of connection Threads of the BIO server. */
+    public void setConnectionThreads(int connectionThreads) {
+        this.connectionThreads = connectionThreads;
+    }
+
+    /**
+     * Returns the maximum number of connections the BIO server accepts per
+     * second. Connections above the rate are answered with 503 Service
+     * Unavailable and closed. Zero means unlimited.
+     * 
+     * @return the maximum number of accepted connections per second
+     */
+    public int getAcceptRate() {
+        return acceptRate;
+    }
+
+    /** Sets the maximum number of accepted connections per second. */
+    public void setAcceptRate(int acceptRate) {
+        this.acceptRate = acceptRate;
+    }
+
+    /**
+     * Returns the maximum number of connections that were accepted by the
+     * BIO server but haven't identified themselves as DAAP or audio
+     * connections yet. Connections above the budget are answered with 503
+     * Service Unavailable and closed. Zero means unlimited.
+     * 
+     * @return the maximum number of pending connections
+     */
+    public int getMaxPendingConnections() {
+        return maxPendingConnections;
+    }
+
+    /** Sets the maximum number of pending connections. */
+    public void setMaxPendingConnections(int maxPendingConnections) {
+        this.maxPendingConnections = maxPendingConnections;
+    }
+
+    /**
+     * Returns the maximum number of Library patches that are queued for a
+     * connection. If a client doesn't fetch its updates and the queue
+     * overflows the queue is cleared and the client will get the current
+     * revision the next time. Zero means unlimited.
+     * 
+     * @return the maximum size of a connection's Library queue
+     */
+    public int getMaxLibraryQueueSize() {
+        return maxLibraryQueueSize;
+    }
+
+    /** Sets the maximum number of Library patches queued per connection. */
+    public void setMaxLibraryQueueSize(int maxLibraryQueueSize) {
+        this.maxLibraryQueueSize = maxLibraryQueueSize;
+    }
+
+    /**
+     * Returns the number of Threads that write Library updates to the
+     * connections of the BIO server.
+     * 
+     * @return the number of notifier Threads
+     */
+    public int getNotifierThreads() {
+        return notifierThreads;
+    }
+
+    /** Sets the number of Threads that write Library updates. */
+    public void setNotifierThreads(int notifierThreads) {
+        this.notifierThreads = notifierThreads;
+    }
+
+    /**
+     * Returns the number of bytes at the beginning of an audio stream that
+     * are sent in chunks of {@link #getBufferSize()}. Clients start playing
+     * as soon as they've got the first bytes of a song and large transfers at
+     * the beginning of high bit rate songs (WAV and AIFF) cause re-buffering.
+     * 
+     * @return the size of the initial burst
+     */
+    public int getInitialBurstSize() {
+        return initialBurstSize;
+    }
+
+    /** Sets the size of the initial burst of an audio stream. */
+    public void setInitialBurstSize(int initialBurstSize) {
+        this.initialBurstSize = initialBurstSize;
+    }
+
+    /**
+     * Returns the number of bytes that are handed to the operating system
+     * per transfer once the initial burst of an audio stream has been sent.
+     * The NIO server uses it as the upper bound of a stream's quantum.
+     * 
+     * @return the transfer size
+     */
+    public int getTransferSize() {
+        return transferSize;
+    }
+
+    /** Sets the number of bytes per transfer of an audio stream. */
+    public void setTransferSize(int transferSize) {
+        this.transferSize = transferSize;
+    }
+
+    /**
+     * Returns the max number of bytes per second that are sent to a single
+     * audio stream of the NIO server. Zero means unlimited.
+     * 
+     * @return the bandwidth cap of an audio stream
+     */
+    public int getMaxStreamBandwidth() {
+        return maxStreamBandwidth;
+    }
+
+    /** Sets the max number of bytes per second of an audio stream. */
+    public void setMaxStreamBandwidth(int maxStreamBandwidth) {
+        this.maxStreamBandwidth = maxStreamBandwidth;
+    }
+
+    /**
+     * Returns the number of Threads that read audio files ahead for the NIO
+     * server. A stream whose file isn't in the page cache would otherwise
+     * block its Selector Thread and all connections of that Thread. Streams
+     * whose file is in the page cache use zero-copy transfers. Zero means
+     * the files are always read on the Selector Threads.
+     * 
+     * @return the number of read-ahead Threads
+     */
+    public int getReadAheadThreads() {
+        return readAheadThreads;
+    }
+
+    /** Sets the number of Threads that read audio files ahead. */
+    public void setReadAheadThreads(int readAheadThreads) {
+        this.readAheadThreads = readAheadThreads;
+    }
+
+    /**
+     * Returns the number of bytes that are read ahead at once.
+     * 
+     * @return the read-ahead size
+     */
+    public int getReadAheadSize() {
+        return readAheadSize;
+    }
+
+    /** Sets the number of bytes that are read ahead at once. */
+    public void setReadAheadSize(int readAheadSize) {
+        this.readAheadSize = readAheadSize;
+    }
+
+    /**
+     * Returns the compression level of the gzip and deflate encoded
+     * responses. It's a value from 0 (no compression) to 9 (best
+     * compression) or -1 for the default level.
+     * 
+     * @return the compression level
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /** Sets the compression level of the responses. */
+    public void setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < Deflater.DEFAULT_COMPRESSION
+                || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("compressionLevel: "
+                    + compressionLevel);
+        }
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Returns the min number of bytes a response must have to be
+     * compressed.
+     * 
+     * @return the compression threshold
+     */
+    public int getCompressionMinSize() {
+        return compressionMinSize;
+    }
+
+    /** Sets the min number of bytes a response must have to be compressed. */
+    public void setCompressionMinSize(int compressionMinSize) {
+        this.compressionMinSize = compressionMinSize;
+    }
+
+    /**
+     * Returns the max number of bytes of serialized /databases responses
+     * that are cached. Clients that request the same revision with the same
+     * meta data get the cached response. Zero turns the cache off.
+     * 
+     * @return the size of the response cache
+     * @see DaapResponseCache
+     */
+    public int getResponseCacheSize() {
+        return responseCacheSize;
+    }
+
+    /** Sets the max number of bytes of cached responses. */
+    public void setResponseCacheSize(int responseCacheSize) {
+        this.responseCacheSize = responseCacheSize;
+    }
 }
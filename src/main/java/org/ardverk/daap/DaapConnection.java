@@ -211,10 +211,20 @@ public abstract class DaapConnection {
     }
 
     /**
-     * Adds library to the library queue
+     * Adds library to the library queue. If the queue is full it's cleared
+     * instead and the client will get the current revision.
      */
     public void enqueueLibrary(Library library) {
         synchronized (libraryQueue) {
+            int max = server.getConfig().getMaxLibraryQueueSize();
+            if (max > 0 && libraryQueue.size() >= max) {
+                if (LOG.isInfoEnabled()) {
+                    LOG.info("Library queue overflow: " + this);
+                }
+                clearLibraryQueue();
+                return;
+            }
+
             libraryQueue.add(library);
         }
     }
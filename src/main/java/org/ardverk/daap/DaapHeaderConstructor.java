@@ -20,8 +20,8 @@ package org.ardverk.daap;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.http.Header;
 import org.apache.http.message.BasicHeader;
@@ -41,10 +41,13 @@ public class DaapHeaderConstructor {
     private static final String HTTP_PARTIAL_CONTENT = "HTTP/1.1 206 Partial Content";
     private static final String HTTP_AUTH = "HTTP/1.1 401 Authorization Required";
 
+    private static final String HTTP_SERVICE_UNAVAILABLE = "HTTP/1.1 503 Service Unavailable";
+
     // private static final String BAD_REQUEST = "HTTP/1.1 400 Bad Request";
     // private static final String HTTP_FORBIDDEN = "HTTP/1.1 403 Forbidden";
-    // private static final String HTTP_SERVICE_UNAVAILABLE =
-    // "HTTP/1.1 503 Service Unavailable";
+
+    /** The templates of each server name */
+    private static final ConcurrentMap<String, Templates> TEMPLATES = new ConcurrentHashMap<String, Templates>();
 
     /**
      * Creates a new Chunk Header
@@ -61,31 +64,20 @@ public class DaapHeaderConstructor {
          * createServiceUnavialable(request); }
          */
 
-        try {
+        Templates templates = getTemplates(request);
 
-            DaapConnection connection = request.getConnection();
-            String serverName = connection.getServer().getConfig()
-                    .getServerName();
-
-            List<Header> headers = new ArrayList<Header>();
-            headers.add(new BasicHeader("Date", DaapUtil.now()));
-            headers.add(new BasicHeader("DAAP-Server", serverName));
-            headers.add(new BasicHeader("Content-Type",
-                    "application/x-dmap-tagged"));
-            headers.add(new BasicHeader("Content-Length", Long
-                    .toString(contentLength)));
-            headers.add(new BasicHeader("Connection", "Keep-Alive"));
-
-            if (DaapUtil.COMPRESS && request.isGZIPSupported()) {
-                headers.add(new BasicHeader("Content-Encoding", "gzip"));
+        Template template = templates.chunk;
+        if (DaapUtil.COMPRESS) {
+            String encoding = request.getContentEncoding();
+            if (DaapUtil.GZIP.equals(encoding)) {
+                template = templates.gzipChunk;
+            } else if (DaapUtil.DEFLATE.equals(encoding)) {
+                template = templates.deflateChunk;
             }
-
-            return toByteArray(HTTP_OK, headers.toArray(new Header[0]));
-
-        } catch (IOException err) {
-            // Should never happen
-            throw new RuntimeException(err);
         }
+
+        return template.toByteArray(DaapUtil.now(), Long
+                .toString(contentLength));
     }
 
     /**
@@ -106,39 +98,23 @@ public class DaapHeaderConstructor {
             if (version == DaapUtil.NULL)
                 throw new IOException("Client Protocol Version is unknown");
 
-            String serverName = connection.getServer().getConfig()
-                    .getServerName();
-
-            String statusLine = null;
-
-            List<Header> headers = new ArrayList<Header>();
-            headers.add(new BasicHeader("Date", DaapUtil.now()));
-            headers.add(new BasicHeader("DAAP-Server", serverName));
-            headers.add(new BasicHeader("Content-Type",
-                    "application/x-dmap-tagged"));
-            headers.add(new BasicHeader("Connection", "close"));
+            Templates templates = getTemplates(request);
 
             //
             if (pos == 0 || version <= DaapUtil.DAAP_VERSION_2) {
 
-                statusLine = HTTP_OK;
-                headers.add(new BasicHeader("Content-Length", Long
-                        .toString(contentLength)));
+                return templates.audio.toByteArray(DaapUtil.now(), Long
+                        .toString(contentLength));
 
             } else {
 
-                statusLine = HTTP_PARTIAL_CONTENT;
-
                 String cotentLengthStr = Long.toString(contentLength - pos);
                 String contentRange = "bytes " + pos + "-"
                         + (contentLength - 1) + "/" + contentLength;
-                headers.add(new BasicHeader("Content-Length", cotentLengthStr));
-                headers.add(new BasicHeader("Content-Range", contentRange));
-            }
 
-            headers.add(new BasicHeader("Accept-Ranges", "bytes"));
-
-            return toByteArray(statusLine, headers.toArray(new Header[0]));
+                return templates.partialAudio.toByteArray(DaapUtil.now(),
+                        cotentLengthStr, contentRange);
+            }
 
         } catch (IOException err) {
             // Should never happen
@@ -153,57 +129,16 @@ public class DaapHeaderConstructor {
      * @return
      */
     public static byte[] createBasicAuthHeader(DaapRequest request) {
-
-        try {
-
-            DaapConnection connection = request.getConnection();
-            String serverName = connection.getServer().getConfig()
-                    .getServerName();
-
-            Header[] headers = {
-                    new BasicHeader("Date", DaapUtil.now()),
-                    new BasicHeader("DAAP-Server", serverName),
-                    new BasicHeader("Content-Type", "text/html"),
-                    new BasicHeader("Content-Length", "0"),
-                    new BasicHeader("WWW-Authenticate", "Basic realm=\""
-                            + DaapUtil.DAAP_REALM + "\""),
-                    new BasicHeader("Connection", "Keep-Alive") };
-
-            return toByteArray(HTTP_AUTH, headers);
-
-        } catch (IOException err) {
-            // Should never happen
-            throw new RuntimeException(err);
-        }
+        return getTemplates(request).basicAuth.toByteArray(DaapUtil.now());
     }
 
     /**
      * Creates a Digest Authentication Header
      */
     public static byte[] createDigestAuthHeader(DaapRequest request) {
-        try {
-
-            DaapConnection connection = request.getConnection();
-            String serverName = connection.getServer().getConfig()
-                    .getServerName();
-            String nonce = connection.createNonce();
-
-            Header[] headers = {
-                    new BasicHeader("Date", DaapUtil.now()),
-                    new BasicHeader("DAAP-Server", serverName),
-                    new BasicHeader("Content-Type", "text/html"),
-                    new BasicHeader("Content-Length", "0"),
-                    new BasicHeader("WWW-Authenticate", "Digest realm=\""
-                            + DaapUtil.DAAP_REALM + "\", nonce=\"" + nonce
-                            + "\""),
-                    new BasicHeader("Connection", "Keep-Alive") };
-
-            return toByteArray(HTTP_AUTH, headers);
-
-        } catch (IOException err) {
-            // Should never happen
-            throw new RuntimeException(err);
-        }
+        String nonce = request.getConnection().createNonce();
+        return getTemplates(request).digestAuth.toByteArray(DaapUtil.now(),
+                nonce);
     }
 
     /**
@@ -214,26 +149,32 @@ public class DaapHeaderConstructor {
      */
     public static byte[] createNoContentHeader(DaapRequest request) {
 
-        try {
+        Templates templates = getTemplates(request);
 
-            DaapConnection connection = request.getConnection();
-            String serverName = connection.getServer().getConfig()
-                    .getServerName();
-
-            Header[] headers = {
-                    new BasicHeader("Date", DaapUtil.now()),
-                    new BasicHeader("DAAP-Server", serverName),
-                    new BasicHeader("Content-Type", "application/x-dmap-tagged"),
-                    new BasicHeader("Content-Length", "0"),
-                    new BasicHeader("Connection",
-                            request.isLogoutRequest() ? "close" : "Keep-Alive") };
+        Template template = templates.noContent;
+        if (request.isLogoutRequest()) {
+            template = templates.closingNoContent;
+        }
 
-            return toByteArray(HTTP_NO_CONTENT, headers);
+        return template.toByteArray(DaapUtil.now());
+    }
 
-        } catch (IOException err) {
-            // Should never happen
-            throw new RuntimeException(err);
+    /**
+     * Returns the templates for the server name of the request's server
+     */
+    private static Templates getTemplates(DaapRequest request) {
+        String serverName = request.getConnection().getServer().getConfig()
+                .getServerName();
+
+        Templates templates = TEMPLATES.get(serverName);
+        if (templates == null) {
+            templates = new Templates(serverName);
+            Templates existing = TEMPLATES.putIfAbsent(serverName, templates);
+            if (existing != null) {
+                templates = existing;
+            }
         }
+        return templates;
     }
 
     /*
@@ -266,33 +207,43 @@ public class DaapHeaderConstructor {
      * 
      * "The shared music library "The WIRED CD" is not accepting connections at
      * this time. Please try again later."
-     */
-    /*
-     * public static byte[] createServiceUnavialable(DaapRequest request) { try
-     * {
-     * 
-     * DaapServer server = request.getServer(); DaapConfig config =
-     * server.getConfig(); String serverName = config.getServerName();
-     * 
-     * // Contents is the max number of connections // encoded as binary string.
-     * 
-     * String max = ""; if (config.getMaxConnections() > 0) { max =
-     * Integer.toBinaryString(config.getMaxConnections()); }
-     * 
-     * byte[] maxBinString = DaapUtil.getBytes(max, DaapUtil.ISO_8859_1);
-     * 
-     * Header[] headers = { new Header("Date", DaapUtil.now()), new
-     * Header("DAAP-Server", serverName), new Header("Content-Type",
-     * "text/html"), new Header("Content-Length",
-     * Integer.toString(maxBinString.length)) };
      * 
-     * ByteArrayOutputStream out = new ByteArrayOutputStream(); toByteArray(out,
-     * HTTP_SERVICE_UNAVAILABLE, headers); out.write(maxBinString); out.close();
-     * return out.toByteArray();
-     * 
-     * } catch (IOException err) { // Should never happen throw new
-     * RuntimeException(err); } }
+     * The server sends it also to connections it refuses right after accept.
      */
+    public static byte[] createServiceUnavailable(DaapConfig config) {
+        try {
+
+            String serverName = config.getServerName();
+
+            // Contents is the max number of connections
+            // encoded as binary string.
+
+            String max = "";
+            if (config.getMaxConnections() > 0) {
+                max = Integer.toBinaryString(config.getMaxConnections());
+            }
+
+            byte[] maxBinString = DaapUtil.getBytes(max, DaapUtil.ISO_8859_1);
+
+            Header[] headers = {
+                    new BasicHeader("Date", DaapUtil.now()),
+                    new BasicHeader("DAAP-Server", serverName),
+                    new BasicHeader("Content-Type", "text/html"),
+                    new BasicHeader("Content-Length", Integer
+                            .toString(maxBinString.length)),
+                    new BasicHeader("Connection", "close") };
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            toByteArray(out, HTTP_SERVICE_UNAVAILABLE, headers);
+            out.write(maxBinString);
+            out.close();
+            return out.toByteArray();
+
+        } catch (IOException err) {
+            // Should never happen
+            throw new RuntimeException(err);
+        }
+    }
 
     /**
      * Converts statusLine and headers to an byte-Array
@@ -326,4 +277,116 @@ public class DaapHeaderConstructor {
     /** Creates a new instance of DaapHeaderConstructor */
     private DaapHeaderConstructor() {
     }
+
+    /**
+     * The response headers of a server. They differ only in the Date and
+     * the Content-Length and Content-Range of the response.
+     */
+    private static final class Templates {
+
+        private final Template chunk;
+        private final Template gzipChunk;
+        private final Template deflateChunk;
+        private final Template audio;
+        private final Template partialAudio;
+        private final Template basicAuth;
+        private final Template digestAuth;
+        private final Template noContent;
+        private final Template closingNoContent;
+
+        private Templates(String serverName) {
+            String server = "\r\nDAAP-Server: " + serverName;
+            String dmap = "\r\nContent-Type: application/x-dmap-tagged";
+            String html = "\r\nContent-Type: text/html";
+
+            chunk = new Template(HTTP_OK + "\r\nDate: ", server + dmap
+                    + "\r\nContent-Length: ",
+                    "\r\nConnection: Keep-Alive\r\n\r\n");
+
+            gzipChunk = new Template(HTTP_OK + "\r\nDate: ", server + dmap
+                    + "\r\nContent-Length: ",
+                    "\r\nConnection: Keep-Alive"
+                            + "\r\nContent-Encoding: gzip\r\n\r\n");
+
+            deflateChunk = new Template(HTTP_OK + "\r\nDate: ", server + dmap
+                    + "\r\nContent-Length: ",
+                    "\r\nConnection: Keep-Alive"
+                            + "\r\nContent-Encoding: deflate\r\n\r\n");
+
+            audio = new Template(HTTP_OK + "\r\nDate: ", server + dmap
+                    + "\r\nConnection: close\r\nContent-Length: ",
+                    "\r\nAccept-Ranges: bytes\r\n\r\n");
+
+            partialAudio = new Template(HTTP_PARTIAL_CONTENT + "\r\nDate: ",
+                    server + dmap
+                            + "\r\nConnection: close\r\nContent-Length: ",
+                    "\r\nContent-Range: ",
+                    "\r\nAccept-Ranges: bytes\r\n\r\n");
+
+            basicAuth = new Template(HTTP_AUTH + "\r\nDate: ", server + html
+                    + "\r\nContent-Length: 0"
+                    + "\r\nWWW-Authenticate: Basic realm=\""
+                    + DaapUtil.DAAP_REALM + "\""
+                    + "\r\nConnection: Keep-Alive\r\n\r\n");
+
+            digestAuth = new Template(HTTP_AUTH + "\r\nDate: ", server + html
+                    + "\r\nContent-Length: 0"
+                    + "\r\nWWW-Authenticate: Digest realm=\""
+                    + DaapUtil.DAAP_REALM + "\", nonce=\"",
+                    "\"\r\nConnection: Keep-Alive\r\n\r\n");
+
+            noContent = new Template(HTTP_NO_CONTENT + "\r\nDate: ", server
+                    + dmap + "\r\nContent-Length: 0"
+                    + "\r\nConnection: Keep-Alive\r\n\r\n");
+
+            closingNoContent = new Template(HTTP_NO_CONTENT + "\r\nDate: ",
+                    server + dmap + "\r\nContent-Length: 0"
+                            + "\r\nConnection: close\r\n\r\n");
+        }
+    }
+
+    /**
+     * A response header that is pre-encoded in ISO-8859-1 except of the
+     * values that go between its parts
+     */
+    private static final class Template {
+
+        private final byte[][] parts;
+
+        private Template(String... parts) {
+            this.parts = new byte[parts.length][];
+            for (int i = 0; i < parts.length; i++) {
+                this.parts[i] = DaapUtil.getBytes(parts[i],
+                        DaapUtil.ISO_8859_1);
+            }
+        }
+
+        /**
+         * Returns the header with the values put between the parts
+         */
+        private byte[] toByteArray(String... values) {
+            int length = 0;
+            for (byte[] part : parts) {
+                length += part.length;
+            }
+            for (String value : values) {
+                length += value.length();
+            }
+
+            byte[] header = new byte[length];
+            int offset = 0;
+            for (int i = 0; i < parts.length; i++) {
+                System.arraycopy(parts[i], 0, header, offset, parts[i].length);
+                offset += parts[i].length;
+
+                if (i < values.length) {
+                    String value = values[i];
+                    for (int j = 0; j < value.length(); j++) {
+                        header[offset++] = (byte) value.charAt(j);
+                    }
+                }
+            }
+            return header;
+        }
+    }
 }
@@ -0,0 +1,605 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.AbstractList;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.ParseException;
+import org.apache.http.message.BasicHeaderValueParser;
+
+/**
+ * An incremental HTTP/1.1 request parser that is used by the BIO and NIO
+ * servers. It scans the bytes of a request head as they arrive and records
+ * the offsets of the method, the request target, the protocol and the header
+ * names and values. Strings are created only if they're asked for. The
+ * offsets are relative to the start of the request head so that the caller
+ * may move the head within its buffer between two calls of
+ * {@link #parse(byte[], int, int)}. Instances are not thread-safe and are
+ * meant to be reused for all requests of a connection.
+ *
+ * @author Roger Kapsi
+ */
+public class DaapHttpParser {
+
+    /** The max number of headers per request */
+    public static final int MAX_HEADERS = 64;
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte SP = ' ';
+    private static final byte HT = '\t';
+    private static final byte COLON = ':';
+    private static final byte QUESTION_MARK = '?';
+
+    private static final String[] METHODS = { "GET", "HEAD", "POST" };
+    private static final String[] PROTOCOLS = { "HTTP/1.1", "HTTP/1.0" };
+
+    private static final int REQUEST_LINE = 0;
+    private static final int HEADERS = 1;
+    private static final int COMPLETE = 2;
+
+    private int state = REQUEST_LINE;
+
+    /** The buffer of the last parse() call */
+    private byte[] data;
+
+    /** The start of the request head in data */
+    private int start;
+
+    /** The number of bytes that were scanned */
+    private int scanned;
+
+    /** The start of the current line */
+    private int lineStart;
+
+    private int methodStart;
+    private int methodEnd;
+    private int targetStart;
+    private int targetEnd;
+    private int queryStart = -1;
+    private int protocolStart;
+    private int protocolEnd;
+
+    private int headerCount;
+    private final int[] nameStart = new int[MAX_HEADERS];
+    private final int[] nameEnd = new int[MAX_HEADERS];
+    private final int[] valueStart = new int[MAX_HEADERS];
+    private final int[] valueEnd = new int[MAX_HEADERS];
+
+    /**
+     * Scans the request head that starts at <code>start</code> up to
+     * <code>end</code>. The bytes that were scanned by previous calls must
+     * not have changed.
+     *
+     * @return true if the request head is complete
+     * @throws IOException
+     *             if the request is malformed
+     */
+    public boolean parse(byte[] data, int start, int end) throws IOException {
+        this.data = data;
+        this.start = start;
+
+        if (state == COMPLETE) {
+            return true;
+        }
+
+        for (int i = start + scanned; i < end; i++) {
+            if (data[i] != LF) {
+                continue;
+            }
+
+            int from = start + lineStart;
+            int to = i;
+            if (to > from && data[to - 1] == CR) {
+                to--;
+            }
+
+            lineStart = i + 1 - start;
+
+            if (state == REQUEST_LINE) {
+                // Leading empty lines are ignored (RFC 2616, 4.1)
+                if (to > from) {
+                    parseRequestLine(from, to);
+                    state = HEADERS;
+                }
+
+            } else if (to == from) {
+                state = COMPLETE;
+                scanned = lineStart;
+                return true;
+
+            } else {
+                parseHeader(from, to);
+            }
+        }
+
+        scanned = end - start;
+        return false;
+    }
+
+    /**
+     * Resets the parser for the next request
+     */
+    public void reset() {
+        state = REQUEST_LINE;
+        data = null;
+        start = 0;
+        scanned = 0;
+        lineStart = 0;
+        headerCount = 0;
+        queryStart = -1;
+    }
+
+    /**
+     * Returns the length of the request head in bytes. It's valid after
+     * parse() has returned true.
+     */
+    public int getLength() {
+        return scanned;
+    }
+
+    /**
+     * Returns the request method
+     */
+    public String getMethod() {
+        return toString(methodStart, methodEnd, METHODS);
+    }
+
+    /**
+     * Returns the request target (path and query)
+     */
+    public String getRequestTarget() {
+        return toString(targetStart, targetEnd, null);
+    }
+
+    /**
+     * Returns the path of the request target
+     */
+    public String getPath() {
+        return toString(targetStart, queryStart != -1 ? queryStart
+                : targetEnd, null);
+    }
+
+    /**
+     * Returns the query of the request target or null
+     */
+    public String getQuery() {
+        if (queryStart == -1) {
+            return null;
+        }
+        return toString(queryStart + 1, targetEnd, null);
+    }
+
+    /**
+     * Returns the protocol version
+     */
+    public String getProtocol() {
+        return toString(protocolStart, protocolEnd, PROTOCOLS);
+    }
+
+    /**
+     * Returns the number of headers
+     */
+    public int getHeaderCount() {
+        return headerCount;
+    }
+
+    /**
+     * Returns the name of the header at the given index
+     */
+    public String getHeaderName(int index) {
+        return toHeaderName(nameStart[index], nameEnd[index]);
+    }
+
+    /**
+     * Returns the value of the header at the given index
+     */
+    public String getHeaderValue(int index) {
+        return toValueString(data, start, valueStart[index], valueEnd[index]);
+    }
+
+    /**
+     * Returns the value of the first header with the given name (ignoring
+     * case) or null
+     */
+    public String getHeaderValue(String name) {
+        for (int i = 0; i < headerCount; i++) {
+            if (equalsIgnoreCase(nameStart[i], nameEnd[i], name)) {
+                return getHeaderValue(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the headers of the request. They share a single copy of the
+     * request head and create their name and value on demand.
+     */
+    public Header[] getHeaders() {
+        return createHeaderList().toArray(new Header[0]);
+    }
+
+    /**
+     * Creates a DaapRequest of the parsed request head
+     * 
+     * @throws IOException
+     *             if the request target isn't a valid DAAP request
+     */
+    public DaapRequest createRequest(DaapConnection connection)
+            throws IOException {
+        try {
+            DaapRequest request = new DaapRequest(connection, getMethod(),
+                    getRequestTarget(), getProtocol());
+
+            if (headerCount > 0) {
+                request.setHeaders(createHeaderList());
+            }
+            return request;
+        } catch (URISyntaxException e) {
+            IOException ioe = new IOException();
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    /**
+     * Copies the header lines of the request head and the offsets of the
+     * names and values into a HeaderList
+     */
+    private HeaderList createHeaderList() {
+        int from = (headerCount > 0) ? nameStart[0] : 0;
+        int to = (headerCount > 0) ? valueEnd[headerCount - 1] : 0;
+
+        byte[] head = new byte[to - from];
+        System.arraycopy(data, start + from, head, 0, head.length);
+
+        // The slots of the known headers are found on the bytes, the
+        // names of the other headers aren't created
+        int[] offsets = new int[headerCount * HeaderList.FIELDS];
+        for (int i = 0, j = 0; i < headerCount; i++) {
+            offsets[j++] = nameStart[i] - from;
+            offsets[j++] = nameEnd[i] - from;
+            offsets[j++] = valueStart[i] - from;
+            offsets[j++] = valueEnd[i] - from;
+            offsets[j++] = getKnownHeaderSlot(nameStart[i], nameEnd[i]);
+        }
+
+        return new HeaderList(head, offsets, headerCount);
+    }
+
+    private void parseRequestLine(int from, int to) throws IOException {
+        int sp1 = indexOf(SP, from, to);
+        int sp2 = (sp1 != -1) ? indexOf(SP, sp1 + 1, to) : -1;
+
+        if (sp1 == -1 || sp2 == -1 || sp1 == from || sp2 == sp1 + 1) {
+            throw new IOException("Malformed Request Line");
+        }
+
+        methodStart = from - start;
+        methodEnd = sp1 - start;
+        targetStart = sp1 + 1 - start;
+        targetEnd = sp2 - start;
+        protocolStart = sp2 + 1 - start;
+        protocolEnd = trimEnd(sp2 + 1, to) - start;
+
+        int q = indexOf(QUESTION_MARK, sp1 + 1, sp2);
+        queryStart = (q != -1) ? q - start : -1;
+    }
+
+    private void parseHeader(int from, int to) throws IOException {
+
+        // Folded header, the line continues the value of the previous
+        // header (RFC 2616, 2.2)
+        if ((data[from] == SP || data[from] == HT) && headerCount > 0) {
+            int i = headerCount - 1;
+            int end = trimEnd(from, to) - start;
+            if (end > valueEnd[i]) {
+                if (valueStart[i] == valueEnd[i]) {
+                    valueStart[i] = trimStart(from, to) - start;
+                }
+                valueEnd[i] = end;
+            }
+            return;
+        }
+
+        int colon = indexOf(COLON, from, to);
+        if (colon == -1) {
+            throw new IOException("Malformed Header");
+        }
+
+        if (headerCount >= MAX_HEADERS) {
+            throw new IOException("Header too large");
+        }
+
+        int i = headerCount++;
+        nameStart[i] = trimStart(from, colon) - start;
+        nameEnd[i] = trimEnd(from, colon) - start;
+        valueStart[i] = trimStart(colon + 1, to) - start;
+        valueEnd[i] = trimEnd(colon + 1, to) - start;
+
+        if (valueStart[i] > valueEnd[i]) {
+            valueStart[i] = valueEnd[i];
+        }
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int trimStart(int from, int to) {
+        while (from < to && (data[from] == SP || data[from] == HT)) {
+            from++;
+        }
+        return from;
+    }
+
+    private int trimEnd(int from, int to) {
+        while (to > from && (data[to - 1] == SP || data[to - 1] == HT)) {
+            to--;
+        }
+        return to;
+    }
+
+    private boolean equalsIgnoreCase(int from, int to, String s) {
+        if (to - from != s.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = (char) (data[start + from + i] & 0xFF);
+            if (Character.toLowerCase(c) != Character.toLowerCase(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the name of a header. The well-known DAAP headers are returned
+     * as the constants of DaapRequest no matter how the client spelled them.
+     */
+    private String toHeaderName(int from, int to) {
+        String name = getKnownHeaderName(from, to);
+        if (name != null) {
+            return name;
+        }
+        return toString(data, start + from, to - from);
+    }
+
+    /**
+     * Returns the constant of DaapRequest.KNOWN_HEADERS that is equal
+     * (ignoring case) to the bytes between from and to or null
+     */
+    private String getKnownHeaderName(int from, int to) {
+        int slot = getKnownHeaderSlot(from, to);
+        return (slot != -1) ? DaapRequest.KNOWN_HEADERS[slot] : null;
+    }
+
+    /**
+     * Returns the index of the constant of DaapRequest.KNOWN_HEADERS that
+     * is equal (ignoring case) to the bytes between from and to or -1
+     */
+    private int getKnownHeaderSlot(int from, int to) {
+        for (int i = 0; i < DaapRequest.KNOWN_HEADERS.length; i++) {
+            if (equalsIgnoreCase(from, to, DaapRequest.KNOWN_HEADERS[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the bytes between from and to as String. Returns the constant
+     * of known if the bytes are equal to it.
+     */
+    private String toString(int from, int to, String[] known) {
+        if (known != null) {
+            for (String s : known) {
+                if (equals(from, to, s)) {
+                    return s;
+                }
+            }
+        }
+        return toString(data, start + from, to - from);
+    }
+
+    private boolean equals(int from, int to, String s) {
+        if (to - from != s.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < s.length(); i++) {
+            if (data[start + from + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates a ISO-8859-1 String of a header value. Line breaks and the
+     * whitespace around them of folded headers are replaced by a single
+     * space.
+     */
+    private static String toValueString(byte[] data, int offset, int from,
+            int to) {
+        StringBuilder buffer = null;
+        for (int i = offset + from; i < offset + to; i++) {
+            if (data[i] == CR || data[i] == LF) {
+                buffer = new StringBuilder(to - from);
+                break;
+            }
+        }
+
+        if (buffer == null) {
+            return toString(data, offset + from, to - from);
+        }
+
+        boolean space = false;
+        for (int i = offset + from; i < offset + to; i++) {
+            byte b = data[i];
+            if (b == CR || b == LF || b == SP || b == HT) {
+                space = true;
+            } else {
+                if (space) {
+                    buffer.append(' ');
+                    space = false;
+                }
+                buffer.append((char) (b & 0xFF));
+            }
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Creates a ISO-8859-1 String
+     */
+    private static String toString(byte[] data, int offset, int length) {
+        return DaapUtil.toString(data, offset, length, DaapUtil.ISO_8859_1);
+    }
+
+    /**
+     * The headers of a request. They share a single copy of the header lines
+     * and the Header objects are created when they're asked for.
+     */
+    static final class HeaderList extends AbstractList<Header> {
+
+        /** nameStart, nameEnd, valueStart, valueEnd and slot per Header */
+        private static final int FIELDS = 5;
+
+        private final byte[] head;
+        private final int[] offsets;
+        private final int size;
+
+        private Header[] headers;
+
+        private HeaderList(byte[] head, int[] offsets, int size) {
+            this.head = head;
+            this.offsets = offsets;
+            this.size = size;
+        }
+
+        @Override
+        public Header get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index
+                        + ", Size: " + size);
+            }
+
+            if (headers == null) {
+                headers = new Header[size];
+            }
+
+            Header header = headers[index];
+            if (header == null) {
+                int i = index * FIELDS;
+                header = new LazyHeader(head, offsets[i], offsets[i + 1],
+                        offsets[i + 2], offsets[i + 3], offsets[i + 4]);
+                headers[index] = header;
+            }
+            return header;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Returns the slot in DaapRequest.KNOWN_HEADERS of the Header at the
+         * given index or -1
+         */
+        int getSlot(int index) {
+            return offsets[index * FIELDS + 4];
+        }
+
+        /**
+         * Returns the first Header of the given slot in
+         * DaapRequest.KNOWN_HEADERS or null
+         */
+        Header getHeader(int slot) {
+            for (int i = 0; i < size; i++) {
+                if (getSlot(i) == slot) {
+                    return get(i);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A Header that creates its name and value on demand
+     */
+    private static class LazyHeader implements Header {
+
+        private final byte[] head;
+        private final int nameStart;
+        private final int nameEnd;
+        private final int valueStart;
+        private final int valueEnd;
+
+        private String name;
+        private String value;
+
+        private LazyHeader(byte[] head, int nameStart, int nameEnd,
+                int valueStart, int valueEnd, int slot) {
+            this.head = head;
+            this.nameStart = nameStart;
+            this.nameEnd = nameEnd;
+            this.valueStart = valueStart;
+            this.valueEnd = valueEnd;
+
+            if (slot != -1) {
+                name = DaapRequest.KNOWN_HEADERS[slot];
+            }
+        }
+
+        public String getName() {
+            if (name == null) {
+                name = DaapHttpParser.toString(head, nameStart, nameEnd
+                        - nameStart);
+            }
+            return name;
+        }
+
+        public String getValue() {
+            if (value == null) {
+                value = toValueString(head, 0, valueStart, valueEnd);
+            }
+            return value;
+        }
+
+        public HeaderElement[] getElements() throws ParseException {
+            return BasicHeaderValueParser.parseElements(getValue(), null);
+        }
+
+        @Override
+        public String toString() {
+            return getName() + ": " + getValue();
+        }
+    }
+}
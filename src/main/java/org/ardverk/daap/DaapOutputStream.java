@@ -17,7 +17,6 @@
 
 package org.ardverk.daap;
 
-import java.io.ByteArrayOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -27,6 +26,7 @@ import org.ardverk.daap.chunks.ByteChunk;
 import org.ardverk.daap.chunks.Chunk;
 import org.ardverk.daap.chunks.ContainerChunk;
 import org.ardverk.daap.chunks.DateChunk;
+import org.ardverk.daap.chunks.EncodedChunk;
 import org.ardverk.daap.chunks.IntChunk;
 import org.ardverk.daap.chunks.LongChunk;
 import org.ardverk.daap.chunks.ShortChunk;
@@ -39,6 +39,15 @@ public class DaapOutputStream extends FilterOutputStream {
         super(out);
     }
 
+    /**
+     * FilterOutputStream writes arrays byte by byte, hand them over to the
+     * underlying stream instead.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
     public void writeShort(int i) throws IOException {
         write((i >> 8) & 0xFF);
         write(i & 0xFF);
@@ -138,16 +147,19 @@ public class DaapOutputStream extends FilterOutputStream {
         writeInt(value);
     }
 
+    /**
+     * Writes the ContainerChunk in two passes. The first pass computes the
+     * length of every container bottom-up and the second pass writes the
+     * Chunks straight to the underlying stream.
+     */
     public void writeContainerChunk(ContainerChunk chunk) throws IOException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        DaapOutputStream out = new DaapOutputStream(buffer);
-        for (Chunk chnk : chunk)
-            out.writeChunk(chnk);
-        out.close();
-        byte[] b = buffer.toByteArray();
+        ChunkLayout layout = new ChunkLayout();
+        layout.measure(chunk);
+        write(chunk, layout);
+    }
 
-        writeContentCode(chunk.getContentCode());
-        writeLength(b.length);
+    public void writeEncodedChunk(EncodedChunk chunk) throws IOException {
+        byte[] b = chunk.getBytes();
         write(b, 0, b.length);
     }
 
@@ -173,9 +185,44 @@ public class DaapOutputStream extends FilterOutputStream {
             writeVersionChunk((VersionChunk) chunk);
         } else if (chunk instanceof ContainerChunk) {
             writeContainerChunk((ContainerChunk) chunk);
+        } else if (chunk instanceof EncodedChunk) {
+            writeEncodedChunk((EncodedChunk) chunk);
         } else {
             throw new RuntimeException("Unknown Chunk Type: " + chunk + ", "
                     + chunk.getClass());
         }
     }
+
+    /**
+     * Writes the Chunk with the lengths and values of the first pass
+     */
+    private void write(Chunk chunk, ChunkLayout layout) throws IOException {
+        if (chunk instanceof ContainerChunk) {
+            writeContentCode(chunk.getContentCode());
+            writeLength(layout.nextLength());
+            for (Chunk chnk : (ContainerChunk) chunk) {
+                write(chnk, layout);
+            }
+
+        } else if (chunk instanceof StringChunk) {
+            byte[] value = layout.nextBytes();
+
+            writeContentCode(chunk.getContentCode());
+            writeLength(value.length);
+            write(value, 0, value.length);
+
+        } else if (chunk instanceof BooleanChunk) {
+            int value = layout.nextBoolean();
+
+            // See writeByteChunk()
+            if (value != 0) {
+                writeContentCode(chunk.getContentCode());
+                writeLength(1);
+                write(value);
+            }
+
+        } else {
+            writeChunk(chunk);
+        }
+    }
 }
@@ -17,6 +17,7 @@
 
 package org.ardverk.daap;
 
+import java.io.ByteArrayOutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
@@ -29,6 +30,7 @@ import java.util.StringTokenizer;
 import javax.print.URIException;
 
 import org.apache.http.Header;
+import org.ardverk.daap.DaapHttpParser.HeaderList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,10 +42,20 @@ import org.slf4j.LoggerFactory;
  */
 public class DaapRequest {
 
+    public static final String ACCEPT_ENCODING = "Accept-Encoding";
     public static final String AUTHORIZATION = "Authorization";
     public static final String CLIENT_DAAP_VERSION = "Client-DAAP-Version";
+    public static final String CONNECTION = "Connection";
+    public static final String RANGE = "Range";
     public static final String USER_AGENT = "User-Agent";
 
+    /**
+     * The headers that are looked up for every request. Each of them has a
+     * fixed slot in the header table of a DaapRequest.
+     */
+    static final String[] KNOWN_HEADERS = { ACCEPT_ENCODING, AUTHORIZATION,
+            CLIENT_DAAP_VERSION, CONNECTION, RANGE, USER_AGENT };
+
     /** "/server-info" */
     public static final int SERVER_INFO = 1;
 
@@ -80,6 +92,10 @@ public class DaapRequest {
     private static final Logger LOG = LoggerFactory
             .getLogger(DaapRequest.class);
 
+    /** The request target as it was sent by the client */
+    private String target;
+
+    /** Created on demand from the target */
     private URI uri;
 
     private Map<String, String> queryMap;
@@ -88,7 +104,7 @@ public class DaapRequest {
     private int revisionNumber = DaapUtil.NULL;
     private int delta = DaapUtil.NULL;
 
-    private List<String> meta;
+    private MetaProjection projection;
     private String metaString;
 
     private int requestType = DaapUtil.NULL;
@@ -96,10 +112,17 @@ public class DaapRequest {
     private long containerId = DaapUtil.NULL;
     private long itemId = DaapUtil.NULL;
 
+    /** Created on demand, see {@link #setHeaders(HeaderList)} */
     private List<Header> headers;
+
+    /** The first Header of each of the KNOWN_HEADERS, created on demand */
+    private Header[] knownHeaders;
     private boolean isServerSideRequest;
     private boolean isUpdateType;
 
+    private String contentEncoding;
+    private boolean isContentEncodingSet;
+
     private DaapConnection connection;
 
     /**
@@ -107,7 +130,6 @@ public class DaapRequest {
      */
     private DaapRequest(DaapConnection connection) {
         this.connection = connection;
-        headers = new ArrayList<Header>();
     }
 
     /**
@@ -140,18 +162,12 @@ public class DaapRequest {
             throws URISyntaxException {
         this(connection);
 
-        URI uri = null;
+        String target = null;
 
         try {
             StringTokenizer st = new StringTokenizer(requestLine, " ");
             st.nextToken(); // method
-
-            try {
-                uri = new URI(st.nextToken());
-            } catch (URISyntaxException err) {
-                LOG.error("URISyntaxException", err);
-            }
-
+            target = st.nextToken();
             st.nextToken(); // protocol
         } catch (NoSuchElementException err) {
             LOG.error("NoSuchElementException", err);
@@ -160,7 +176,7 @@ public class DaapRequest {
         this.isServerSideRequest = false;
         this.isUpdateType = false;
 
-        setURI(uri);
+        setTarget(target);
     }
 
     /**
@@ -178,154 +194,161 @@ public class DaapRequest {
         this.isServerSideRequest = false;
         this.isUpdateType = false;
 
-        setURI(uri);
+        setTarget(uri != null ? uri.toString() : null);
+        this.uri = uri;
     }
 
     /**
-     * Sets and parses the URI. Note: if URIException is thrown then is this
-     * Request in an inconsistent state!
+     * Creates a new DaapRequest of the request target (path and query) as
+     * it was sent by the client
      * 
-     * @param uri
-     * @throws URIException
+     * @param method
+     * @param target
+     * @param protocol
+     * @throw URIException
      */
-    private void setURI(URI uri) throws URISyntaxException {
+    public DaapRequest(DaapConnection connection, String method,
+            String target, String protocol) throws URISyntaxException {
+        this(connection);
 
-        this.uri = uri;
+        this.isServerSideRequest = false;
+        this.isUpdateType = false;
 
-        if (uri != null) {
+        setTarget(target);
+    }
 
-            String path = uri.getPath();
+    /**
+     * Sets and parses the request target. The path is classified by the
+     * {@link DaapRequestRouter} and the query parameters DAAP cares about are
+     * extracted in the same pass. Note: if URIException is thrown then is
+     * this Request in an inconsistent state!
+     * 
+     * @param target
+     * @throws URIException
+     */
+    private void setTarget(String target) throws URISyntaxException {
+
+        this.target = target;
+        this.uri = null;
+        this.queryMap = null;
+
+        if (target != null) {
+
+            int length = target.length();
+            int q = target.indexOf('?');
+            int pathEnd = (q != -1) ? q : length;
+
+            // The query, only the positions of the values are
+            // recorded as they're used only with a valid session-id
+            int revisionFrom = -1, revisionTo = -1;
+            int deltaFrom = -1, deltaTo = -1;
+            int metaFrom = -1, metaTo = -1;
+
+            if (q != -1) {
+                int from = q + 1;
+                while (from < length) {
+                    int to = target.indexOf('&', from);
+                    if (to == -1) {
+                        to = length;
+                    }
 
-            this.queryMap = DaapUtil.parseQuery(uri.getQuery());
+                    int eq = target.indexOf('=', from);
+                    if (eq != -1 && eq < to) {
+                        int valueFrom = eq + 1;
+
+                        if (isKey(target, from, eq, "session-id")) {
+                            sessionId = SessionId.createSessionId(parseInt(
+                                    target, valueFrom, to));
+                        } else if (isKey(target, from, eq, "revision-number")) {
+                            revisionFrom = valueFrom;
+                            revisionTo = to;
+                        } else if (isKey(target, from, eq, "delta")) {
+                            deltaFrom = valueFrom;
+                            deltaTo = to;
+                        } else if (isKey(target, from, eq, "meta")) {
+                            metaFrom = valueFrom;
+                            metaTo = to;
+                        }
+                    }
 
-            if (path.equals("/server-info")) {
-                requestType = SERVER_INFO;
-            } else if (path.equals("/content-codes")) {
-                requestType = CONTENT_CODES;
-            } else if (path.equals("/login")) {
-                requestType = LOGIN;
-            } else if (path.equals("/logout")) {
-                requestType = LOGOUT;
-            } else if (path.equals("/update")) {
-                requestType = UPDATE;
-            } else if (path.equals("/resolve")) {
-                requestType = RESOLVE;
+                    from = to + 1;
+                }
             }
 
-            if (queryMap.containsKey("session-id")) {
-                sessionId = SessionId
-                        .parseSessionId(queryMap.get("session-id"));
-            }
+            boolean hasSession = !SessionId.INVALID.equals(sessionId);
 
-            if (!SessionId.INVALID.equals(sessionId)) {
+            if (hasSession) {
 
-                if (queryMap.containsKey("revision-number")) {
-                    revisionNumber = Integer.parseInt(queryMap
-                            .get("revision-number"));
+                if (revisionFrom != -1) {
+                    revisionNumber = parseInt(target, revisionFrom, revisionTo);
                 }
 
-                if (queryMap.containsKey("delta")) {
-                    delta = Integer.parseInt(queryMap.get("delta"));
+                if (deltaFrom != -1) {
+                    delta = parseInt(target, deltaFrom, deltaTo);
                 }
 
                 if (delta > revisionNumber) {
-                    throw new URISyntaxException(uri.toASCIIString(),
+                    throw new URISyntaxException(target,
                             "Delta must be less or equal to revision-number: "
                                     + delta + "/" + revisionNumber);
                 }
 
-                if (queryMap.containsKey("meta")) {
-                    metaString = queryMap.get("meta");
+                if (metaFrom != -1) {
+                    metaString = decode(target.substring(metaFrom, metaTo));
                 }
 
                 isUpdateType = (delta != DaapUtil.NULL)
                         && (delta < revisionNumber);
+            }
 
-                // "/databases/id/items" 3 tokens
-                // "/databases/id/containers" 3 tokens
-                // "/databases/id/items/id.format" 4 tokens
-                // "/databases/id/containers/id/items" 5 tokens
-                if (path.equals("/databases")) {
-                    requestType = DATABASES;
-
-                } else if (path.startsWith("/databases")) {
-
-                    StringTokenizer tok = new StringTokenizer(path, "/");
-                    int count = tok.countTokens();
-
-                    if (count >= 3) {
-                        String token = tok.nextToken();
-
-                        if (token.equals("databases") == false) {
-                            throw new URISyntaxException(uri.toASCIIString(),
-                                    "Unknown token in path: " + path + " ["
-                                            + token + "]@1");
-                        }
-
-                        databaseId = DaapUtil.parseUInt(tok.nextToken());
-                        token = tok.nextToken();
-
-                        if (token.equals("items")) {
-                            requestType = DATABASE_SONGS;
-                        } else if (token.equals("containers")) {
-                            requestType = DATABASE_PLAYLISTS;
-                        } else {
-                            throw new URISyntaxException(uri.toASCIIString(),
-                                    "Unknown token in path: " + path + " ["
-                                            + token + "]@2");
-                        }
-
-                        if (count == 3) {
-                            // do nothing...
+            // The path, percent-escapes are decoded like URI.getPath() did
+            String path = target;
+            if (target.lastIndexOf('%', pathEnd - 1) != -1) {
+                path = decode(target.substring(0, pathEnd));
+                pathEnd = path.length();
+            }
 
-                        } else if (count == 4) {
+            DaapRequestRouter node = DaapRequestRouter.ROOT;
 
-                            token = tok.nextToken();
+            if (pathEnd == 0 || path.charAt(0) != '/') {
+                node = null;
+            }
 
-                            StringTokenizer fileTokenizer = new StringTokenizer(
-                                    token, ".");
+            int from = 1;
+            while (node != null && from <= pathEnd) {
+                int to = path.indexOf('/', from);
+                if (to == -1 || to > pathEnd) {
+                    to = pathEnd;
+                }
 
-                            if (fileTokenizer.countTokens() == 2) {
-                                itemId = DaapUtil.parseUInt(fileTokenizer
-                                        .nextToken());
-                                requestType = SONG;
+                DaapRequestRouter next = node.getChild(path, from, to);
 
-                            } else {
-                                throw new URISyntaxException(uri
-                                        .toASCIIString(),
-                                        "Unknown token in path: " + path + " ["
-                                                + token + "]@3");
-                            }
+                if (next == null) {
+                    next = node.getWildcard();
+                    if (next != null
+                            && !setId(next.getSlot(), path, from, to)) {
+                        next = null;
+                    }
+                }
 
-                        } else if (count == 5) {
-                            containerId = DaapUtil.parseUInt(tok.nextToken());
-                            token = tok.nextToken();
+                if (next != null && next.isSessionRequired() && !hasSession) {
+                    next = null;
+                }
 
-                            if (token.equals("items")) {
-                                requestType = PLAYLIST_SONGS;
+                node = next;
+                from = to + 1;
+            }
 
-                            } else {
-                                throw new URISyntaxException(uri
-                                        .toASCIIString(),
-                                        "Unknown token in path: " + path + " ["
-                                                + token + "@4");
-                            }
+            if (node != null && node.getType() != DaapUtil.NULL) {
+                requestType = node.getType();
 
-                        } else {
-                            throw new URISyntaxException(uri.toASCIIString(),
-                                    "Unknown token in path: " + path + " ["
-                                            + token + "]@5");
-                        }
-                    } else {
-                        throw new URISyntaxException(uri.toASCIIString(),
-                                "Unknown token in path: " + path);
-                    }
-                }
+            } else if (hasSession && path.startsWith("/databases")) {
+                throw new URISyntaxException(target, "Unknown token in path: "
+                        + path.substring(0, pathEnd));
             }
 
         } else {
 
-            queryMap = null;
             metaString = null;
             isUpdateType = false;
 
@@ -340,6 +363,125 @@ public class DaapRequest {
         }
     }
 
+    /**
+     * Stores the id of a path segment in the given slot. Returns false if the
+     * segment isn't a valid id.
+     */
+    private boolean setId(int slot, String path, int from, int to) {
+
+        // "itemId.format"
+        if (slot == DaapRequestRouter.ITEM_ID) {
+            int dot = path.indexOf('.', from);
+            if (dot == -1 || dot >= to - 1 || path.indexOf('.', dot + 1) != -1
+                    && path.indexOf('.', dot + 1) < to) {
+                return false;
+            }
+            to = dot;
+        }
+
+        long id = parseUInt(path, from, to);
+        if (id == -1L) {
+            return false;
+        }
+
+        switch (slot) {
+            case DaapRequestRouter.DATABASE_ID:
+                databaseId = id;
+                break;
+            case DaapRequestRouter.CONTAINER_ID:
+                containerId = id;
+                break;
+            case DaapRequestRouter.ITEM_ID:
+                itemId = id;
+                break;
+        }
+        return true;
+    }
+
+    private static boolean isKey(String s, int from, int to, String key) {
+        return (to - from) == key.length()
+                && s.regionMatches(from, key, 0, key.length());
+    }
+
+    /**
+     * Parses an unsigned 32-bit value. Returns -1 if it isn't one.
+     */
+    private static long parseUInt(String s, int from, int to) {
+        if (from >= to || to - from > 10) {
+            return -1L;
+        }
+
+        long value = 0L;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1L;
+            }
+            value = value * 10L + (c - '0');
+        }
+
+        return (value <= 0xFFFFFFFFL) ? value : -1L;
+    }
+
+    /**
+     * Parses a signed int like Integer.parseInt() but without a substring
+     */
+    private static int parseInt(String s, int from, int to)
+            throws NumberFormatException {
+        boolean negative = from < to && s.charAt(from) == '-';
+        int i = negative ? from + 1 : from;
+
+        if (i >= to || to - i > 10) {
+            throw new NumberFormatException("For input string: \""
+                    + s.substring(from, to) + "\"");
+        }
+
+        long value = 0L;
+        for (; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException("For input string: \""
+                        + s.substring(from, to) + "\"");
+            }
+            value = value * 10L + (c - '0');
+        }
+
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("For input string: \""
+                    + s.substring(from, to) + "\"");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Decodes %-escaped UTF-8 octets like URI.getQuery() does
+     */
+    private static String decode(String s) {
+        if (s.indexOf('%') == -1) {
+            return s;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '%' && i + 2 < s.length()) {
+                int hi = Character.digit(s.charAt(i + 1), 16);
+                int lo = Character.digit(s.charAt(i + 2), 16);
+                if (hi != -1 && lo != -1) {
+                    out.write((hi << 4) | lo);
+                    i += 2;
+                    continue;
+                }
+            }
+
+            byte[] b = DaapUtil.getBytes(String.valueOf(c), DaapUtil.UTF_8);
+            out.write(b, 0, b.length);
+        }
+
+        return DaapUtil.toString(out.toByteArray(), DaapUtil.UTF_8);
+    }
+
     public void setSessionId(SessionId sessionId) {
         this.sessionId = sessionId;
     }
@@ -351,7 +493,7 @@ public class DaapRequest {
      */
     public void addHeaders(Header[] headers) {
         for (Header header : headers) {
-            this.headers.add(header);
+            addHeader(header);
         }
     }
 
@@ -361,8 +503,9 @@ public class DaapRequest {
      * @return
      */
     public void addHeaders(List<? extends Header> headers) {
-        if (this.headers != headers)
-            this.headers.addAll(headers);
+        for (Header header : headers) {
+            addHeader(header);
+        }
     }
 
     /**
@@ -371,7 +514,45 @@ public class DaapRequest {
      * @return
      */
     public void addHeader(Header header) {
-        this.headers.add(header);
+        addHeader(header, getHeaderSlot(header.getName()));
+    }
+
+    /**
+     * Adds a Header whose slot in the KNOWN_HEADERS is already known (-1 if
+     * it's none of them). The DaapHttpParser finds the slot on the bytes of
+     * the request so that the names of the other headers aren't created.
+     */
+    void addHeader(Header header, int slot) {
+        if (headers instanceof HeaderList) {
+            HeaderList list = (HeaderList) headers;
+            headers = null;
+            for (int i = 0; i < list.size(); i++) {
+                addHeader(list.get(i), list.getSlot(i));
+            }
+        }
+
+        if (headers == null) {
+            headers = new ArrayList<Header>();
+        }
+        headers.add(header);
+
+        if (slot != -1) {
+            if (knownHeaders == null) {
+                knownHeaders = new Header[KNOWN_HEADERS.length];
+            }
+            if (knownHeaders[slot] == null) {
+                knownHeaders[slot] = header;
+            }
+        }
+    }
+
+    /**
+     * Sets the headers of a request that was read by the DaapHttpParser.
+     * They're created on demand from a single copy of the request head.
+     */
+    void setHeaders(HeaderList headers) {
+        this.headers = headers;
+        this.knownHeaders = null;
     }
 
     /**
@@ -380,12 +561,15 @@ public class DaapRequest {
      * @return
      */
     public List<Header> getHeaders() {
-        return headers;
+        if (headers == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(headers);
     }
 
     /**
-     * Returns a Header for the key or <code>null</code> if no such Header is in
-     * the list
+     * Returns the first Header for the key (ignoring case) or
+     * <code>null</code> if no such Header is in the list
      * 
      * @return
      */
@@ -395,14 +579,42 @@ public class DaapRequest {
             return null;
         }
 
+        int slot = getHeaderSlot(key);
+        if (slot != -1) {
+            if (headers instanceof HeaderList) {
+                return ((HeaderList) headers).getHeader(slot);
+            }
+            return (knownHeaders != null) ? knownHeaders[slot] : null;
+        }
+
         for (Header header : headers) {
-            if (header.getName().equals(key)) {
+            if (header.getName().equalsIgnoreCase(key)) {
                 return header;
             }
         }
         return null;
     }
 
+    /**
+     * Returns the slot of the header name in the KNOWN_HEADERS or -1. The
+     * names that come from the DaapHttpParser and the constants of this class
+     * are found by identity.
+     */
+    static int getHeaderSlot(String name) {
+        for (int i = 0; i < KNOWN_HEADERS.length; i++) {
+            if (KNOWN_HEADERS[i] == name) {
+                return i;
+            }
+        }
+
+        for (int i = 0; i < KNOWN_HEADERS.length; i++) {
+            if (KNOWN_HEADERS[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Returns the Server reference
      */
@@ -576,6 +788,13 @@ public class DaapRequest {
      * @return
      */
     public URI getUri() {
+        if (uri == null && target != null) {
+            try {
+                uri = new URI(target);
+            } catch (URISyntaxException err) {
+                LOG.error("URISyntaxException", err);
+            }
+        }
         return uri;
     }
 
@@ -616,17 +835,19 @@ public class DaapRequest {
      * @return
      */
     public List<String> getMeta() {
-        // parse only if required...
-        if (meta == null && metaString != null) {
-            meta = DaapUtil.parseMeta(metaString);
-            metaString = null;
-        }
+        return getMetaProjection().getMeta();
+    }
 
-        if (meta != null) {
-            return Collections.unmodifiableList(meta);
+    /**
+     * Returns the compiled meta data
+     */
+    public MetaProjection getMetaProjection() {
+        // compile only if required...
+        if (projection == null) {
+            projection = MetaProjection.compile(metaString);
+            metaString = null;
         }
-
-        return Collections.emptyList();
+        return projection;
     }
 
     /**
@@ -701,6 +922,13 @@ public class DaapRequest {
      * @return
      */
     public Map<String, String> getQueryMap() {
+        if (queryMap == null && target != null) {
+            int q = target.indexOf('?');
+            if (q != -1) {
+                queryMap = DaapUtil.parseQuery(decode(target.substring(q + 1)));
+            }
+        }
+
         if (queryMap != null) {
             return Collections.unmodifiableMap(queryMap);
         }
@@ -735,12 +963,114 @@ public class DaapRequest {
      * @return
      */
     public boolean isGZIPSupported() {
-        Header header = getHeader("Accept-Encoding");
-        return header != null && header.getValue().equalsIgnoreCase("gzip");
+        return getQuality(DaapUtil.GZIP) > 0f;
+    }
+
+    /**
+     * Returns the content coding of the response. It's {@link DaapUtil#GZIP}
+     * or {@link DaapUtil#DEFLATE}, whichever the client prefers according to
+     * its Accept-Encoding header, or <code>null</code> if the response is
+     * sent uncompressed. GZIP wins a tie.
+     * 
+     * @return
+     */
+    public String getContentEncoding() {
+        if (!isContentEncodingSet) {
+            float gzip = getQuality(DaapUtil.GZIP);
+            float deflate = getQuality(DaapUtil.DEFLATE);
+
+            if (gzip > 0f && gzip >= deflate) {
+                contentEncoding = DaapUtil.GZIP;
+            } else if (deflate > 0f) {
+                contentEncoding = DaapUtil.DEFLATE;
+            }
+            isContentEncodingSet = true;
+        }
+        return contentEncoding;
+    }
+
+    /**
+     * Overrides the negotiated content coding of the response. Use
+     * <code>null</code> for an uncompressed response.
+     * 
+     * @param contentEncoding
+     */
+    public void setContentEncoding(String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+        this.isContentEncodingSet = true;
+    }
+
+    /**
+     * Returns the q-value of the content coding in the Accept-Encoding
+     * header (RFC 2616, 14.3). It's zero if the coding isn't acceptable.
+     */
+    private float getQuality(String coding) {
+        Header header = getHeader(ACCEPT_ENCODING);
+        if (header == null) {
+            return 0f;
+        }
+
+        String value = header.getValue();
+        float any = 0f;
+
+        int from = 0;
+        while (from < value.length()) {
+            int to = value.indexOf(',', from);
+            if (to == -1) {
+                to = value.length();
+            }
+
+            int semicolon = value.indexOf(';', from);
+            int nameEnd = (semicolon != -1 && semicolon < to) ? semicolon : to;
+            String name = value.substring(from, nameEnd).trim();
+
+            float q = 1f;
+            if (nameEnd < to) {
+                q = parseQuality(value.substring(nameEnd + 1, to));
+            }
+
+            if (name.equalsIgnoreCase(coding)
+                    || name.equalsIgnoreCase("x-" + coding)) {
+                return q;
+            } else if (name.equals("*")) {
+                any = q;
+            }
+
+            from = to + 1;
+        }
+
+        return any;
+    }
+
+    /**
+     * Parses the "q=value" parameter of a content coding
+     */
+    private static float parseQuality(String params) {
+        int from = 0;
+        while (from < params.length()) {
+            int to = params.indexOf(';', from);
+            if (to == -1) {
+                to = params.length();
+            }
+
+            String param = params.substring(from, to).trim();
+            if (param.length() > 2 && param.charAt(1) == '='
+                    && (param.charAt(0) == 'q' || param.charAt(0) == 'Q')) {
+                try {
+                    float q = Float.parseFloat(param.substring(2).trim());
+                    return (q >= 0f && q <= 1f) ? q : 0f;
+                } catch (NumberFormatException err) {
+                    return 0f;
+                }
+            }
+
+            from = to + 1;
+        }
+        return 1f;
     }
 
     public boolean isKeepConnectionAlive() {
-        Header header = getHeader("Connection");
+        Header header = getHeader(CONNECTION);
         return header != null
                 && header.getValue().equalsIgnoreCase("keep-alive");
     }
@@ -776,13 +1106,11 @@ public class DaapRequest {
             buffer.append("ServerSideRequest: ").append(getRevisionNumber())
                     .append(", ").append(getDelta()).append("\n");
 
-        if (uri != null)
-            buffer.append(uri).append("\n");
+        if (target != null)
+            buffer.append(target).append("\n");
 
-        if (headers != null) {
-            for (int i = 0; i < headers.size(); i++)
-                buffer.append(headers.get(i));
-        }
+        for (Header header : getHeaders())
+            buffer.append(header);
 
         return buffer.toString();
     }
@@ -327,7 +327,7 @@ public class DaapRequestProcessor {
                     "library.select(ServerInfoRequest) returned null");
         }
 
-        byte[] data = DaapUtil.serialize(chunk, request.isGZIPSupported());
+        byte[] data = serialize(request, chunk);
         return factory.createChunkResponse(request, data);
     }
 
@@ -352,7 +352,7 @@ public class DaapRequestProcessor {
                     "library.select(ContentCodesRequest) returned null");
         }
 
-        byte[] data = DaapUtil.serialize(chunk, request.isGZIPSupported());
+        byte[] data = serialize(request, chunk);
         return factory.createChunkResponse(request, data);
     }
 
@@ -385,7 +385,7 @@ public class DaapRequestProcessor {
             throw new IOException("library.select(LoginRequest) returned null");
         }
 
-        byte[] data = DaapUtil.serialize(chunk, request.isGZIPSupported());
+        byte[] data = serialize(request, chunk);
         return factory.createChunkResponse(request, data);
     }
 
@@ -441,7 +441,7 @@ public class DaapRequestProcessor {
             throw new IOException("library.select(UpdateRequest) returned null");
         }
 
-        byte[] data = DaapUtil.serialize(chunk, request.isGZIPSupported());
+        byte[] data = serialize(request, chunk);
         return factory.createChunkResponse(request, data);
     }
 
@@ -459,17 +459,23 @@ public class DaapRequestProcessor {
             throw new IOException("Connection is not associated with a Library");
         }
 
-        Chunk serverDatabases = (Chunk) library.select(request);
-        if (serverDatabases == null) {
-            // request was either illegal or the requested revision
-            // is no longer available (server updateded to fast and
-            // this client couldn't keep up)
-            throw new IOException(
-                    "library.select(DatabasesRequest) returned null");
-        }
+        DaapResponseCache cache = request.getServer().getResponseCache();
+        DaapResponseCache.Key key = cache.createKey(library, request);
+
+        byte[] data = cache.get(key, request);
+        if (data == null) {
+            Chunk serverDatabases = (Chunk) library.select(request);
+            if (serverDatabases == null) {
+                // request was either illegal or the requested revision
+                // is no longer available (server updateded to fast and
+                // this client couldn't keep up)
+                throw new IOException(
+                        "library.select(DatabasesRequest) returned null");
+            }
 
-        byte[] data = DaapUtil.serialize(serverDatabases, request
-                .isGZIPSupported());
+            data = serialize(request, serverDatabases);
+            cache.put(key, data, request.getContentEncoding());
+        }
         return factory.createChunkResponse(request, data);
     }
 
@@ -487,15 +493,21 @@ public class DaapRequestProcessor {
             throw new IOException("Connection is not associated with a Library");
         }
 
-        Chunk databaseSongs = (Chunk) library.select(request);
-        if (databaseSongs == null) {
-            // see processDatabasesRequest()
-            throw new IOException(
-                    "library.select(DatabaseSongsRequest) returned null");
-        }
+        DaapResponseCache cache = request.getServer().getResponseCache();
+        DaapResponseCache.Key key = cache.createKey(library, request);
+
+        byte[] data = cache.get(key, request);
+        if (data == null) {
+            Chunk databaseSongs = (Chunk) library.select(request);
+            if (databaseSongs == null) {
+                // see processDatabasesRequest()
+                throw new IOException(
+                        "library.select(DatabaseSongsRequest) returned null");
+            }
 
-        byte[] data = DaapUtil.serialize(databaseSongs, request
-                .isGZIPSupported());
+            data = serialize(request, databaseSongs);
+            cache.put(key, data, request.getContentEncoding());
+        }
         return factory.createChunkResponse(request, data);
     }
 
@@ -513,15 +525,21 @@ public class DaapRequestProcessor {
             throw new IOException("Connection is not associated with a Library");
         }
 
-        Chunk databasePlaylists = (Chunk) library.select(request);
-        if (databasePlaylists == null) {
-            // see processDatabasesRequest()
-            throw new IOException(
-                    "library.select(DatabasePlaylists) returned null");
-        }
+        DaapResponseCache cache = request.getServer().getResponseCache();
+        DaapResponseCache.Key key = cache.createKey(library, request);
 
-        byte[] data = DaapUtil.serialize(databasePlaylists, request
-                .isGZIPSupported());
+        byte[] data = cache.get(key, request);
+        if (data == null) {
+            Chunk databasePlaylists = (Chunk) library.select(request);
+            if (databasePlaylists == null) {
+                // see processDatabasesRequest()
+                throw new IOException(
+                        "library.select(DatabasePlaylists) returned null");
+            }
+
+            data = serialize(request, databasePlaylists);
+            cache.put(key, data, request.getContentEncoding());
+        }
         return factory.createChunkResponse(request, data);
     }
 
@@ -539,14 +557,20 @@ public class DaapRequestProcessor {
             throw new IOException("Connection is not associated with a Library");
         }
 
-        Chunk playlistSongs = (Chunk) library.select(request);
-        if (playlistSongs == null) {
-            // see processDatabasesRequest()
-            throw new IOException("library.select(PlaylistSongs) returned null");
-        }
+        DaapResponseCache cache = request.getServer().getResponseCache();
+        DaapResponseCache.Key key = cache.createKey(library, request);
+
+        byte[] data = cache.get(key, request);
+        if (data == null) {
+            Chunk playlistSongs = (Chunk) library.select(request);
+            if (playlistSongs == null) {
+                // see processDatabasesRequest()
+                throw new IOException("library.select(PlaylistSongs) returned null");
+            }
 
-        byte[] data = DaapUtil.serialize(playlistSongs, request
-                .isGZIPSupported());
+            data = serialize(request, playlistSongs);
+            cache.put(key, data, request.getContentEncoding());
+        }
         return factory.createChunkResponse(request, data);
     }
 
@@ -623,6 +647,34 @@ public class DaapRequestProcessor {
         return null;
     }
 
+    /**
+     * Serializes the Chunk and compresses it with the content coding the
+     * client prefers. Responses that are smaller than
+     * {@link DaapConfig#getCompressionMinSize()} are sent uncompressed.
+     * 
+     * @param request
+     * @param chunk
+     * @throws IOException
+     * @return
+     */
+    protected byte[] serialize(DaapRequest request, Chunk chunk)
+            throws IOException {
+
+        byte[] data = DaapUtil.serialize(chunk, false);
+
+        String encoding = request.getContentEncoding();
+        if (encoding != null && DaapUtil.COMPRESS) {
+            DaapConfig config = request.getServer().getConfig();
+            if (data.length >= config.getCompressionMinSize()) {
+                return DaapUtil.compress(data, encoding, config
+                        .getCompressionLevel());
+            }
+        }
+
+        request.setContentEncoding(null);
+        return data;
+    }
+
     /*
      * Returns the range which should be streamed.
      * 
@@ -634,7 +686,7 @@ public class DaapRequestProcessor {
      */
     private long[] getRange(DaapRequest request) throws IOException {
 
-        Header rangeHeader = request.getHeader("Range");
+        Header rangeHeader = request.getHeader(DaapRequest.RANGE);
 
         if (rangeHeader != null) {
             try {
@@ -0,0 +1,187 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap;
+
+/**
+ * The compiled table of DAAP request paths. It's a trie over the path
+ * segments where each node knows the request type of the path that ends at
+ * it. Numeric segments (database, container and item ids) are matched by
+ * wildcard nodes that tell the caller where to store the id.
+ * 
+ * @author Roger Kapsi
+ */
+final class DaapRequestRouter {
+
+    /** The database id slot of a wildcard node */
+    static final int DATABASE_ID = 1;
+
+    /** The container id slot of a wildcard node */
+    static final int CONTAINER_ID = 2;
+
+    /** The item id slot of a wildcard node ("itemId.format") */
+    static final int ITEM_ID = 3;
+
+    /** The root of the trie ("/") */
+    static final DaapRequestRouter ROOT = new DaapRequestRouter();
+
+    static {
+        ROOT.add("/server-info", DaapRequest.SERVER_INFO, false);
+        ROOT.add("/content-codes", DaapRequest.CONTENT_CODES, false);
+        ROOT.add("/login", DaapRequest.LOGIN, false);
+        ROOT.add("/logout", DaapRequest.LOGOUT, false);
+        ROOT.add("/update", DaapRequest.UPDATE, false);
+        ROOT.add("/resolve", DaapRequest.RESOLVE, false);
+
+        // The database paths need a valid session-id
+        ROOT.add("/databases", DaapRequest.DATABASES, true);
+        ROOT.add("/databases/{database}/items", DaapRequest.DATABASE_SONGS,
+                true);
+        ROOT.add("/databases/{database}/containers",
+                DaapRequest.DATABASE_PLAYLISTS, true);
+        ROOT.add("/databases/{database}/items/{item}", DaapRequest.SONG, true);
+        ROOT.add("/databases/{database}/containers/{container}/items",
+                DaapRequest.PLAYLIST_SONGS, true);
+    }
+
+    private String[] names = new String[0];
+
+    private DaapRequestRouter[] children = new DaapRequestRouter[0];
+
+    /** The wildcard child or null */
+    private DaapRequestRouter wildcard;
+
+    /** The id slot if this is a wildcard node */
+    private int slot = DaapUtil.NULL;
+
+    private int type = DaapUtil.NULL;
+
+    private boolean session = false;
+
+    private DaapRequestRouter() {
+    }
+
+    /**
+     * Returns the request type of the path that ends at this node
+     */
+    int getType() {
+        return type;
+    }
+
+    /**
+     * Returns true if the path requires a valid session-id
+     */
+    boolean isSessionRequired() {
+        return session;
+    }
+
+    /**
+     * Returns the id slot of this wildcard node
+     */
+    int getSlot() {
+        return slot;
+    }
+
+    /**
+     * Returns the child for the segment between from and to or null
+     */
+    DaapRequestRouter getChild(String path, int from, int to) {
+        int length = to - from;
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i];
+            if (name.length() == length
+                    && path.regionMatches(from, name, 0, length)) {
+                return children[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the wildcard child or null
+     */
+    DaapRequestRouter getWildcard() {
+        return wildcard;
+    }
+
+    /**
+     * Adds a path. Segments in curly brackets are wildcards.
+     */
+    private void add(String path, int type, boolean session) {
+        DaapRequestRouter node = this;
+
+        int from = 1;
+        while (from <= path.length()) {
+            int to = path.indexOf('/', from);
+            if (to == -1) {
+                to = path.length();
+            }
+
+            String segment = path.substring(from, to);
+            DaapRequestRouter next = null;
+
+            if (segment.startsWith("{")) {
+                if (node.wildcard == null) {
+                    node.wildcard = new DaapRequestRouter();
+                    node.wildcard.slot = toSlot(segment);
+                }
+                next = node.wildcard;
+
+            } else {
+                next = node.getChild(segment, 0, segment.length());
+                if (next == null) {
+                    next = new DaapRequestRouter();
+                    node.names = append(node.names, segment);
+                    node.children = append(node.children, next);
+                }
+            }
+
+            next.session |= session;
+            node = next;
+            from = to + 1;
+        }
+
+        node.type = type;
+        node.session = session;
+    }
+
+    private static int toSlot(String segment) {
+        if (segment.equals("{database}")) {
+            return DATABASE_ID;
+        } else if (segment.equals("{container}")) {
+            return CONTAINER_ID;
+        } else if (segment.equals("{item}")) {
+            return ITEM_ID;
+        }
+        throw new IllegalArgumentException(segment);
+    }
+
+    private static String[] append(String[] array, String element) {
+        String[] copy = new String[array.length + 1];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        copy[array.length] = element;
+        return copy;
+    }
+
+    private static DaapRequestRouter[] append(DaapRequestRouter[] array,
+            DaapRequestRouter element) {
+        DaapRequestRouter[] copy = new DaapRequestRouter[array.length + 1];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        copy[array.length] = element;
+        return copy;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Caches the serialized (and compressed) payload of the /databases
+ * responses of a DaapServer. Clients that ask for the same revision of the
+ * same Library with the same meta data get the same bytes. The cache is
+ * bound by {@link DaapConfig#getResponseCacheSize()} and evicts the least
+ * recently used responses first. It's cleared when the Library is committed.
+ *
+ * @author Roger Kapsi
+ */
+public class DaapResponseCache {
+
+    private final DaapConfig config;
+
+    private final LinkedHashMap<Key, Entry> cache = new LinkedHashMap<Key, Entry>(
+            16, 0.75f, true);
+
+    /** The number of bytes in the cache */
+    private long size = 0L;
+
+    private long hits = 0L;
+    private long misses = 0L;
+    private long bytesSaved = 0L;
+
+    public DaapResponseCache(DaapConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Returns true if the response to the request may be cached
+     */
+    public static boolean isCacheable(DaapRequest request) {
+        return request.isDatabasesRequest()
+                || request.isDatabaseSongsRequest()
+                || request.isDatabasePlaylistsRequest()
+                || request.isPlaylistSongsRequest();
+    }
+
+    /**
+     * Returns the key of the response to the request that is answered by
+     * the given Library or null if the response isn't cached. The key must be
+     * created before the request is processed.
+     */
+    public Key createKey(Library library, DaapRequest request) {
+        if (!isEnabled() || !isCacheable(request)) {
+            return null;
+        }
+        return new Key(library, request);
+    }
+
+    /**
+     * Returns the cached payload of the response or null. The content coding
+     * of the request is set to the coding of the cached payload.
+     */
+    public byte[] get(Key key, DaapRequest request) {
+        if (key == null) {
+            return null;
+        }
+
+        synchronized (this) {
+            Entry entry = cache.get(key);
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+
+            hits++;
+            bytesSaved += entry.data.length;
+            request.setContentEncoding(entry.encoding);
+            return entry.data;
+        }
+    }
+
+    /**
+     * Caches the payload of a response and its content coding
+     */
+    public void put(Key key, byte[] data, String encoding) {
+        long maxSize = config.getResponseCacheSize();
+        if (key == null || data.length > maxSize) {
+            return;
+        }
+
+        Entry entry = new Entry(data, encoding);
+
+        synchronized (this) {
+            Entry existing = cache.put(key, entry);
+            if (existing != null) {
+                size -= existing.data.length;
+            }
+            size += data.length;
+
+            Iterator<Entry> it = cache.values().iterator();
+            while (size > maxSize && it.hasNext()) {
+                size -= it.next().data.length;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all responses from the cache
+     */
+    public synchronized void clear() {
+        cache.clear();
+        size = 0L;
+    }
+
+    /**
+     * Returns true if the cache is enabled
+     */
+    public boolean isEnabled() {
+        return config.getResponseCacheSize() > 0;
+    }
+
+    /**
+     * Returns the number of cached responses
+     */
+    public synchronized int getCount() {
+        return cache.size();
+    }
+
+    /**
+     * Returns the number of bytes in the cache
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of requests that were answered from the cache
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of cacheable requests that weren't in the cache
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Returns the ratio of hits to cacheable requests
+     */
+    public synchronized float getHitRate() {
+        long total = hits + misses;
+        return (total > 0L) ? (float) hits / total : 0f;
+    }
+
+    /**
+     * Returns the number of bytes that were served from the cache instead of
+     * being serialized and compressed again
+     */
+    public synchronized long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DaapResponseCache(count=" + cache.size() + ", size=" + size
+                + ", hits=" + hits + ", misses=" + misses + ", bytesSaved="
+                + bytesSaved + ")";
+    }
+
+    /**
+     * Everything the payload of a /databases response depends on. The
+     * Library is compared by identity as the patches of an update have the
+     * same revision as the Library itself. The delta is only used to tell
+     * whether the response is an update. The meta data is the parsed list,
+     * its order is the order of the chunks in the response.
+     */
+    public static final class Key {
+
+        private final Library library;
+        private final int revision;
+        private final int requestType;
+        private final long databaseId;
+        private final long containerId;
+        private final boolean updateType;
+        private final List<String> meta;
+        private final String encoding;
+        private final int hashCode;
+
+        private Key(Library library, DaapRequest request) {
+            this.library = library;
+            this.revision = library.getRevision();
+            this.requestType = request.getRequestType();
+            this.databaseId = request.getDatabaseId();
+            this.containerId = request.getContainerId();
+            this.updateType = request.isUpdateType();
+            this.meta = request.getMeta();
+            this.encoding = request.getContentEncoding();
+
+            int h = System.identityHashCode(library);
+            h = 31 * h + revision;
+            h = 31 * h + requestType;
+            h = 31 * h + (int) (databaseId ^ (databaseId >>> 32));
+            h = 31 * h + (int) (containerId ^ (containerId >>> 32));
+            h = 31 * h + (updateType ? 1 : 0);
+            h = 31 * h + meta.hashCode();
+            h = 31 * h + (encoding != null ? encoding.hashCode() : 0);
+            this.hashCode = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            } else if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) o;
+            return library == other.library && revision == other.revision
+                    && requestType == other.requestType
+                    && databaseId == other.databaseId
+                    && containerId == other.containerId
+                    && updateType == other.updateType
+                    && meta.equals(other.meta)
+                    && (encoding == null ? other.encoding == null : encoding
+                            .equals(other.encoding));
+        }
+    }
+
+    private static final class Entry {
+
+        private final byte[] data;
+
+        /** The content coding of data or null */
+        private final String encoding;
+
+        private Entry(byte[] data, String encoding) {
+            this.data = data;
+            this.encoding = encoding;
+        }
+    }
+}
@@ -18,6 +18,7 @@
 package org.ardverk.daap;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -69,6 +70,32 @@ public class DaapResponseWriter {
         return queue.isEmpty();
     }
 
+    /**
+     * Returns up to <code>max</code> DaapResponses from the head of the
+     * queue without removing them.
+     */
+    public List<DaapResponse> peek(int max) {
+        List<DaapResponse> list = new ArrayList<DaapResponse>(Math.min(max,
+                queue.size()));
+        for (DaapResponse response : queue) {
+            if (list.size() >= max) {
+                break;
+            }
+            list.add(response);
+        }
+        return list;
+    }
+
+    /**
+     * Removes the first <code>count</code> DaapResponses from the queue. Use
+     * it for responses that were written outside of {@link #write()}.
+     */
+    public void remove(int count) {
+        for (int i = 0; i < count; i++) {
+            next();
+        }
+    }
+
     /**
      * Send the next element
      */
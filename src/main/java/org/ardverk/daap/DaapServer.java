@@ -56,6 +56,9 @@ public abstract class DaapServer<T extends DaapConnection> implements Runnable,
     /** A DaapConfig instance */
     protected DaapConfig config;
 
+    /** The serialized /databases responses */
+    protected final DaapResponseCache responseCache;
+
     /** A DaapFilter instance */
     protected DaapFilter filter;
 
@@ -71,6 +74,7 @@ public abstract class DaapServer<T extends DaapConnection> implements Runnable,
     public DaapServer(Library library, DaapConfig config) {
         this.library = library;
         this.config = config;
+        this.responseCache = new DaapResponseCache(config);
         library.addLibraryListener(this);
     }
 
@@ -84,6 +88,8 @@ public abstract class DaapServer<T extends DaapConnection> implements Runnable,
     }
 
     public synchronized void libraryChanged(Library library, Library branch) {
+        responseCache.clear();
+
         if (isRunning() && getNumberOfDaapConnections() > 0) {
             libraryQueue.add(branch);
             update();
@@ -99,6 +105,16 @@ public abstract class DaapServer<T extends DaapConnection> implements Runnable,
         return config;
     }
 
+    /**
+     * Returns the cache of the serialized /databases responses. Its hit
+     * rate and the bytes it saved tell how well it works.
+     * 
+     * @return DaapResponseCache of this server
+     */
+    public DaapResponseCache getResponseCache() {
+        return responseCache;
+    }
+
     /**
      * Sets the DaapStreamSource for this server
      * 
@@ -185,9 +201,13 @@ public abstract class DaapServer<T extends DaapConnection> implements Runnable,
     public abstract void disconnectAll();
 
     /**
-     * Call this to notify the server that Library has changed
+     * Call this to notify the server that Library has changed. Servers that
+     * deliver the queued Libraries override it, by default they're
+     * discarded.
      */
-    protected abstract void update();
+    protected synchronized void update() {
+        libraryQueue.clear();
+    }
 
     /**
      * Returns the number of connections
@@ -365,6 +385,8 @@ public abstract class DaapServer<T extends DaapConnection> implements Runnable,
                     .append("\n");
             buffer.append("Streams: ").append(getNumberOfAudioConnections())
                     .append("\n");
+            buffer.append("Response cache: ").append(responseCache).append(
+                    "\n");
         }
 
         return buffer.toString();
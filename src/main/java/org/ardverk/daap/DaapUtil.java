@@ -17,7 +17,6 @@
 
 package org.ardverk.daap;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
@@ -30,9 +29,13 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Random;
 import java.util.StringTokenizer;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 import org.apache.http.Header;
 import org.apache.http.impl.auth.DigestScheme;
@@ -61,6 +64,26 @@ public final class DaapUtil {
      */
     public static final boolean COMPRESS = true;
 
+    /** The "gzip" content coding */
+    public static final String GZIP = "gzip";
+
+    /** The "deflate" content coding (zlib format) */
+    public static final String DEFLATE = "deflate";
+
+    /** The header of a gzip stream without file name and time stamp */
+    private static final byte[] GZIP_HEADER = { (byte) 0x1f, (byte) 0x8b,
+            Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+    /**
+     * The idle Deflaters. They hold native memory and are shared by all
+     * Threads instead of being kept per Thread as the connections may run
+     * on a new Thread each.
+     */
+    private static final DeflaterPool ZLIB_DEFLATERS 
+        = new DeflaterPool(false);
+
+    private static final DeflaterPool RAW_DEFLATERS = new DeflaterPool(true);
+
     /** ISO Latin 1 encoding */
     public static final String ISO_8859_1 = "ISO-8859-1";
 
@@ -70,8 +93,11 @@ public final class DaapUtil {
     /** "\r\n" <b>DON'T TOUCH!</b> */
     static final byte[] CRLF = { (byte) '\r', (byte) '\n' };
     
-    private final static SimpleDateFormat formatter = new SimpleDateFormat(
-            "EEE, d MMM yyyy hh:mm:ss z", Locale.US);
+    /** The format of {@link #now()} */
+    private static final String DATE_FORMAT = "EEE, d MMM yyyy HH:mm:ss z";
+
+    /** The Date of the current second */
+    private static volatile CachedDate date;
 
     /** DAAP 1.0.0 (iTunes 4.0) */
     public static final int DAAP_VERSION_1 = 0x00010000; // 1.0.0
@@ -166,7 +192,20 @@ public final class DaapUtil {
      * Returns the current Date/Time in "iTunes time format"
      */
     public static final String now() {
-        return formatter.format(new Date());
+        long second = System.currentTimeMillis() / 1000L;
+
+        // SimpleDateFormat isn't thread-safe and the value changes only
+        // once a second. Threads that race for a new second format it
+        // each on their own.
+        CachedDate cached = date;
+        if (cached == null || cached.second != second) {
+            SimpleDateFormat formatter = new SimpleDateFormat(DATE_FORMAT,
+                    Locale.US);
+            cached = new CachedDate(second, formatter.format(new Date(
+                    second * 1000L)));
+            date = cached;
+        }
+        return cached.value;
     }
 
     /**
@@ -175,20 +214,85 @@ public final class DaapUtil {
      */
     public static final byte[] serialize(Chunk chunk, boolean compress)
             throws IOException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream(255);
-        DaapOutputStream out = null;
+        byte[] data = DmapWriter.serialize(chunk);
 
         if (DaapUtil.COMPRESS && compress) {
-            GZIPOutputStream gzip = new GZIPOutputStream(buffer);
-            out = new DaapOutputStream(gzip);
-        } else {
-            out = new DaapOutputStream(buffer);
+            return compress(data, GZIP, Deflater.DEFAULT_COMPRESSION);
+        }
+
+        return data;
+    }
+
+    /**
+     * Compresses <code>data</code> with the given content coding
+     * ({@link #GZIP} or {@link #DEFLATE}) and compression level. The
+     * Deflaters are pooled.
+     */
+    public static final byte[] compress(byte[] data, String encoding,
+            int level) {
+        boolean gzip = GZIP.equals(encoding);
+        if (!gzip && !DEFLATE.equals(encoding)) {
+            throw new IllegalArgumentException("Unknown encoding: " + encoding);
+        }
+
+        DeflaterPool pool = gzip ? RAW_DEFLATERS : ZLIB_DEFLATERS;
+        Deflater deflater = pool.acquire();
+        try {
+            return compress(deflater, data, gzip, level);
+        } finally {
+            pool.release(deflater);
+        }
+    }
+
+    private static byte[] compress(Deflater deflater, byte[] data,
+            boolean gzip, int level) {
+        deflater.setLevel(level);
+        deflater.setInput(data, 0, data.length);
+        deflater.finish();
+
+        int offset = gzip ? GZIP_HEADER.length : 0;
+        byte[] out = new byte[offset + data.length / 2 + 64];
+        if (gzip) {
+            System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length);
+        }
+
+        while (!deflater.finished()) {
+            if (offset == out.length) {
+                out = resize(out, out.length * 2);
+            }
+            offset += deflater.deflate(out, offset, out.length - offset);
+        }
+
+        // The CRC-32 and the length of the data
+        if (gzip) {
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+
+            if (offset + 8 > out.length) {
+                out = resize(out, offset + 8);
+            }
+            offset = writeIntLE(out, offset, (int) crc.getValue());
+            offset = writeIntLE(out, offset, data.length);
         }
 
-        out.writeChunk(chunk);
-        out.close();
+        return (offset == out.length) ? out : resize(out, offset);
+    }
 
-        return buffer.toByteArray();
+    /**
+     * Returns a copy of src with the given length
+     */
+    private static byte[] resize(byte[] src, int length) {
+        byte[] dst = new byte[length];
+        System.arraycopy(src, 0, dst, 0, Math.min(src.length, length));
+        return dst;
+    }
+
+    private static int writeIntLE(byte[] dst, int offset, int value) {
+        dst[offset++] = (byte) (value & 0xFF);
+        dst[offset++] = (byte) ((value >> 8) & 0xFF);
+        dst[offset++] = (byte) ((value >> 16) & 0xFF);
+        dst[offset++] = (byte) ((value >> 24) & 0xFF);
+        return offset;
     }
 
     /**
@@ -417,6 +521,20 @@ public final class DaapUtil {
         }
     }
 
+    /**
+     * Returns <code>length</code> bytes of b from <code>offset</code> as
+     * String
+     */
+    public static String toString(byte[] b, int offset, int length,
+            String charsetName) {
+        try {
+            return new String(b, offset, length, charsetName);
+        } catch (UnsupportedEncodingException e) {
+            // should never happen
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Returns b as hex String
      */
@@ -626,4 +744,63 @@ public final class DaapUtil {
         }
         return false;
     }
+
+    /**
+     * The formatted Date of a second
+     */
+    private static final class CachedDate {
+
+        private final long second;
+
+        private final String value;
+
+        private CachedDate(long second, String value) {
+            this.second = second;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A bounded pool of Deflaters. Deflaters that don't fit into the pool
+     * are ended right away to free their native memory.
+     */
+    private static final class DeflaterPool {
+
+        /** The max number of idle Deflaters */
+        private static final int MAX_SIZE = 2 * Runtime.getRuntime()
+                .availableProcessors();
+
+        private final Queue<Deflater> deflaters 
+            = new ConcurrentLinkedQueue<Deflater>();
+
+        /** The number of idle Deflaters */
+        private final AtomicInteger size = new AtomicInteger();
+
+        private final boolean nowrap;
+
+        private DeflaterPool(boolean nowrap) {
+            this.nowrap = nowrap;
+        }
+
+        private Deflater acquire() {
+            Deflater deflater = deflaters.poll();
+            if (deflater == null) {
+                return new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+            }
+
+            size.decrementAndGet();
+            return deflater;
+        }
+
+        private void release(Deflater deflater) {
+            deflater.reset();
+
+            if (size.incrementAndGet() <= MAX_SIZE) {
+                deflaters.offer(deflater);
+            } else {
+                size.decrementAndGet();
+                deflater.end();
+            }
+        }
+    }
 }
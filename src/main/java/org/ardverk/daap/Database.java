@@ -17,9 +17,12 @@
 
 package org.ardverk.daap;
 
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
@@ -74,12 +77,28 @@ public class Database {
     /** A List of Playlists */
     private final List<Playlist> playlists = new ArrayList<Playlist>();
 
+    /** The Playlists by their item ids */
+    private final LongHashMap<Playlist> playlistIndex 
+        = new LongHashMap<Playlist>();
+
     /** Set of deleted playlists */
     private Set<Playlist> deletedPlaylists = null;
 
     /** Set of deleted Songs */
     private Set<Song> deletedSongs = null;
 
+    /**
+     * The Songs of all Playlists by their item ids and the number of
+     * Playlists they're in
+     */
+    private final LongHashMap<SongRef> songRefs = new LongHashMap<SongRef>();
+
+    /** A live view of the Songs in songRefs */
+    private final Set<Song> songs = new SongSet();
+
+    /** Whether or not this Database was removed from its Library */
+    private boolean detached = false;
+
     /** master playlist */
     private Playlist masterPlaylist = null;
 
@@ -93,7 +112,7 @@ public class Database {
             database.deletedPlaylists = null;
         }
 
-        Set<Song> songs = database.getSongs();
+        Set<Song> songs = database.songs;
 
         for (Playlist playlist : database.playlists) {
             if (txn.modified(playlist)) {
@@ -101,6 +120,8 @@ public class Database {
                         || !deletedPlaylists.contains(playlist)) {
                     Playlist clone = new Playlist(playlist, txn);
                     playlists.add(clone);
+                    playlistIndex.put(clone.getItemId(), clone);
+                    attach(clone);
 
                     if (playlist == database.masterPlaylist) {
                         this.masterPlaylist = clone;
@@ -245,6 +266,8 @@ public class Database {
 
     private void addPlaylistP(Transaction txn, Playlist playlist) {
         if (!containsPlaylist(playlist) && playlists.add(playlist)) {
+            playlistIndex.put(playlist.getItemId(), playlist);
+            attach(playlist);
             totalPlaylistCount = playlists.size();
             if (deletedPlaylists != null && deletedPlaylists.remove(playlist)
                     && deletedPlaylists.isEmpty()) {
@@ -279,6 +302,8 @@ public class Database {
 
     private void removePlaylistP(Transaction txn, Playlist playlist) {
         if (playlists.remove(playlist)) {
+            playlistIndex.remove(playlist.getItemId());
+            detach(playlist);
             totalPlaylistCount = playlists.size();
 
             if (deletedPlaylists == null) {
@@ -288,6 +313,76 @@ public class Database {
         }
     }
 
+    /**
+     * Counts the Songs of a Playlist that was added to this Database
+     */
+    private void attach(Playlist playlist) {
+        playlist.addDatabase(this);
+        for (Song song : playlist.getSongs()) {
+            addSongRef(song);
+        }
+    }
+
+    /**
+     * Uncounts the Songs of a Playlist that was removed from this Database
+     */
+    private void detach(Playlist playlist) {
+        playlist.removeDatabase(this);
+        for (Song song : playlist.getSongs()) {
+            removeSongRef(song);
+        }
+    }
+
+    /**
+     * Called by the Library when this Database was removed from it. The
+     * Playlists stop counting their Songs for this Database.
+     */
+    void detachPlaylists() {
+        for (Playlist playlist : playlists) {
+            playlist.removeDatabase(this);
+        }
+        detached = true;
+    }
+
+    /**
+     * Called by the Library when this Database was added to it. The Songs
+     * are counted again if this Database was removed before as it missed
+     * the edits of its Playlists in between.
+     */
+    void attachPlaylists() {
+        if (!detached) {
+            return;
+        }
+
+        detached = false;
+        songRefs.clear();
+        for (Playlist playlist : playlists) {
+            attach(playlist);
+        }
+    }
+
+    /**
+     * Called by a Playlist of this Database when song was added to it
+     */
+    void addSongRef(Song song) {
+        SongRef ref = songRefs.get(song.getItemId());
+        if (ref == null) {
+            songRefs.put(song.getItemId(), new SongRef(song));
+        } else {
+            ref.count++;
+        }
+    }
+
+    /**
+     * Called by a Playlist of this Database when song was removed from it
+     */
+    void removeSongRef(Song song) {
+        SongRef ref = songRefs.get(song.getItemId());
+        if (ref != null && --ref.count == 0) {
+            songRefs.remove(song.getItemId());
+        }
+    }
+
     /**
      * Returns the number of Playlists in this Database
      */
@@ -302,7 +397,7 @@ public class Database {
      * @return true if Database contains playlist
      */
     public boolean containsPlaylist(Playlist playlist) {
-        return playlists.contains(playlist);
+        return playlistIndex.get(playlist.getItemId()) != null;
     }
 
     /**
@@ -364,43 +459,26 @@ public class Database {
     }
 
     /**
-     * Returns all Songs in this Database
+     * Returns an unmodifiable live view of all Songs in this Database. Its
+     * Iterator throws a ConcurrentModificationException if the Database is
+     * modified while it's in use.
      */
     public Set<Song> getSongs() {
-        Set<Song> songs = null;
-        for (Playlist playlist : playlists) {
-            if (!(playlist instanceof Folder)) {
-                if (songs == null) {
-                    songs = new HashSet<Song>(playlist.getSongs());
-                } else {
-                    songs.addAll(playlist.getSongs());
-                }
-            }
-        }
-        if (songs == null) {
-            return Collections.emptySet();
-        } else {
-            return Collections.unmodifiableSet(songs);
-        }
+        return Collections.unmodifiableSet(songs);
     }
 
     /**
      * Returns the number of Songs in this Database
      */
     public int getSongCount() {
-        return getSongs().size();
+        return songRefs.size();
     }
 
     /**
      * Returns true if song is in this Database
      */
     public boolean containsSong(Song song) {
-        for (Playlist playlist : playlists) {
-            if (playlist.containsSong(song)) {
-                return true;
-            }
-        }
-        return false;
+        return songRefs.get(song.getItemId()) != null;
     }
 
     /**
@@ -431,6 +509,89 @@ public class Database {
         }
     }
 
+    /**
+     * Adds all Songs in the Collection to all Playlists
+     * 
+     * @param txn
+     * @param songs
+     */
+    public void addSongs(Transaction txn, Collection<? extends Song> songs) {
+        for (Playlist playlist : playlists) {
+            if (!(playlist instanceof Folder)) {
+                playlist.addSongs(txn, songs);
+            }
+        }
+    }
+
+    /**
+     * Removes all Songs in the Collection from all Playlists
+     * 
+     * @param txn
+     * @param songs
+     */
+    public void removeSongs(Transaction txn,
+            Collection<? extends Song> songs) {
+        for (Playlist playlist : playlists) {
+            if (!(playlist instanceof Folder)) {
+                playlist.removeSongs(txn, songs);
+            }
+        }
+    }
+
+    /**
+     * Makes the Songs in the Collection the Songs of this Database. Songs
+     * that aren't in the Collection are removed from all Playlists and
+     * Songs that aren't in this Database yet are added to all Playlists.
+     * The Songs that stay keep their Playlists.
+     * 
+     * @param txn
+     * @param songs
+     */
+    public void replaceSongs(Transaction txn,
+            Collection<? extends Song> songs) {
+        final List<Song> batch = new ArrayList<Song>(songs);
+        if (txn != null) {
+            txn.addTxn(this, new Txn() {
+                public void commit(Transaction txn) {
+                    replaceSongsP(txn, batch);
+                }
+            });
+            for (Playlist playlist : playlists) {
+                if (!(playlist instanceof Folder)) {
+                    txn.attach(playlist);
+                }
+            }
+            for (Song song : batch) {
+                txn.attach(song);
+            }
+        } else {
+            replaceSongsP(txn, batch);
+        }
+    }
+
+    private void replaceSongsP(Transaction txn, List<Song> batch) {
+        Set<Song> keep = new HashSet<Song>(batch);
+        List<Song> removals = new ArrayList<Song>();
+        for (Song song : songs) {
+            if (!keep.contains(song)) {
+                removals.add(song);
+            }
+        }
+
+        List<Song> additions = new ArrayList<Song>();
+        for (Song song : batch) {
+            if (!containsSong(song)) {
+                additions.add(song);
+            }
+        }
+
+        for (Playlist playlist : playlists) {
+            if (!(playlist instanceof Folder)) {
+                playlist.updateSongsP(removals, additions);
+            }
+        }
+    }
+
     public Set<Playlist> getSongPlaylists(Song song) {
         Set<Playlist> ret = null;
         for (Playlist playlist : playlists) {
@@ -456,15 +617,8 @@ public class Database {
      * @return
      */
     protected Song getSong(DaapRequest request) {
-        for (Playlist playlist : playlists) {
-            if (!(playlist instanceof Folder)) {
-                Song song = playlist.getSong(request);
-                if (song != null) {
-                    return song;
-                }
-            }
-        }
-        return null;
+        SongRef ref = songRefs.get(request.getItemId());
+        return (ref != null) ? ref.song : null;
     }
 
     /**
@@ -474,14 +628,7 @@ public class Database {
      * @return
      */
     protected Playlist getPlaylist(DaapRequest request) {
-        long playlistId = request.getContainerId();
-        for (Playlist playlist : playlists) {
-            if (playlist.getItemId() == playlistId) {
-                return playlist;
-            }
-        }
-
-        return null;
+        return playlistIndex.get(request.getContainerId());
     }
 
     private DatabasePlaylists getDatabasePlaylist(DaapRequest request) {
@@ -534,26 +681,13 @@ public class Database {
         databaseSongs.add(new UpdateType(request.isUpdateType() ? 1 : 0));
         databaseSongs.add(new SpecifiedTotalCount(totalSongCount));
 
-        Set<Song> songs = getSongs();
         databaseSongs.add(new ReturnedCount(songs.size()));
 
         Listing listing = new Listing();
 
+        MetaProjection projection = request.getMetaProjection();
         for (Song song : songs) {
-            ListingItem listingItem = new ListingItem();
-
-            for (String key : request.getMeta()) {
-                Chunk chunk = song.getChunk(key);
-
-                if (chunk != null) {
-                    listingItem.add(chunk);
-
-                } else if (LOG.isInfoEnabled()) {
-                    LOG.info("Unknown chunk type: " + key);
-                }
-            }
-
-            listing.add(listingItem);
+            listing.add(song.getListingItem(projection));
         }
 
         databaseSongs.add(listing);
@@ -570,4 +704,51 @@ public class Database {
 
         return databaseSongs;
     }
+
+    /**
+     * A Song and the number of Playlists it's in
+     */
+    private static final class SongRef {
+
+        private final Song song;
+        private int count = 1;
+
+        private SongRef(Song song) {
+            this.song = song;
+        }
+    }
+
+    /**
+     * A live and unmodifiable Set view of the Songs in songRefs
+     */
+    private final class SongSet extends AbstractSet<Song> {
+
+        @Override
+        public int size() {
+            return songRefs.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return (o instanceof Song) && containsSong((Song) o);
+        }
+
+        @Override
+        public Iterator<Song> iterator() {
+            final Iterator<SongRef> it = songRefs.values();
+            return new Iterator<Song>() {
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                public Song next() {
+                    return it.next().song;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
 }
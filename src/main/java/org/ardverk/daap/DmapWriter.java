@@ -0,0 +1,258 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap;
+
+import java.nio.ByteBuffer;
+
+import org.ardverk.daap.chunks.BooleanChunk;
+import org.ardverk.daap.chunks.ByteChunk;
+import org.ardverk.daap.chunks.Chunk;
+import org.ardverk.daap.chunks.ContainerChunk;
+import org.ardverk.daap.chunks.DateChunk;
+import org.ardverk.daap.chunks.EncodedChunk;
+import org.ardverk.daap.chunks.IntChunk;
+import org.ardverk.daap.chunks.LongChunk;
+import org.ardverk.daap.chunks.ShortChunk;
+import org.ardverk.daap.chunks.StringChunk;
+import org.ardverk.daap.chunks.VersionChunk;
+
+/**
+ * Writes Chunks into a heap ByteBuffer. The values are written with the
+ * (big-endian) bulk puts of the ByteBuffer. A Chunk is written in two passes:
+ * the first pass computes its size and the container lengths, so the buffer
+ * grows at most once and the Chunk is written front to back. It produces the
+ * same bytes as {@link DaapOutputStream}.
+ * 
+ * @author Roger Kapsi
+ */
+public class DmapWriter {
+
+    /** The initial capacity of a DmapWriter */
+    private static final int DEFAULT_CAPACITY = 4 * 1024;
+
+    private ByteBuffer buffer;
+
+    public DmapWriter() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public DmapWriter(int capacity) {
+        buffer = ByteBuffer.allocate(capacity);
+    }
+
+    private DmapWriter(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Serializes the Chunk into a byte-Array of the exact size
+     */
+    public static byte[] serialize(Chunk chunk) {
+        ChunkLayout layout = new ChunkLayout();
+        byte[] data = new byte[layout.measure(chunk)];
+        new DmapWriter(ByteBuffer.wrap(data)).write(chunk, layout);
+        return data;
+    }
+
+    public void writeShort(int i) {
+        ensureCapacity(2).putShort((short) i);
+    }
+
+    public void writeInt(int i) {
+        ensureCapacity(4).putInt(i);
+    }
+
+    public void writeLong(long l) {
+        ensureCapacity(8).putLong(l);
+    }
+
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(len).put(b, off, len);
+    }
+
+    public void writeContentCode(int contentCode) {
+        writeInt(contentCode);
+    }
+
+    public void writeLength(int length) {
+        writeInt(length);
+    }
+
+    public void writeByteChunk(ByteChunk chunk) {
+        int value = chunk.getValue();
+
+        // See DaapOutputStream.writeByteChunk()
+        if (value == 0 && chunk instanceof BooleanChunk) {
+            return;
+        }
+
+        ensureCapacity(9).putInt(chunk.getContentCode()).putInt(1).put(
+                (byte) value);
+    }
+
+    public void writeShortChunk(ShortChunk chunk) {
+        ensureCapacity(10).putInt(chunk.getContentCode()).putInt(2).putShort(
+                (short) chunk.getValue());
+    }
+
+    public void writeIntChunk(IntChunk chunk) {
+        ensureCapacity(12).putInt(chunk.getContentCode()).putInt(4).putInt(
+                chunk.getValue());
+    }
+
+    public void writeLongChunk(LongChunk chunk) {
+        ensureCapacity(16).putInt(chunk.getContentCode()).putInt(8).putLong(
+                chunk.getValue());
+    }
+
+    public void writeStringChunk(StringChunk chunk) {
+        byte[] value = chunk.getBytes();
+
+        ensureCapacity(8 + value.length).putInt(chunk.getContentCode())
+                .putInt(value.length).put(value);
+    }
+
+    public void writeDateChunk(DateChunk chunk) {
+        int value = (int) (chunk.getValue() & 0xFFFFFFFF);
+
+        ensureCapacity(12).putInt(chunk.getContentCode()).putInt(4).putInt(
+                value);
+    }
+
+    public void writeVersionChunk(VersionChunk chunk) {
+        int value = (int) (chunk.getValue() & 0xFFFFFFFF);
+
+        ensureCapacity(12).putInt(chunk.getContentCode()).putInt(4).putInt(
+                value);
+    }
+
+    public void writeContainerChunk(ContainerChunk chunk) {
+        writeChunk(chunk);
+    }
+
+    public void writeEncodedChunk(EncodedChunk chunk) {
+        byte[] b = chunk.getBytes();
+        write(b, 0, b.length);
+    }
+
+    public DmapWriter writeChunk(Chunk chunk) {
+        ChunkLayout layout = new ChunkLayout();
+        ensureCapacity(layout.measure(chunk));
+        write(chunk, layout);
+        return this;
+    }
+
+    /**
+     * Writes the Chunk with the lengths and values of the first pass
+     */
+    private void write(Chunk chunk, ChunkLayout layout) {
+        if (chunk instanceof ContainerChunk) {
+            buffer.putInt(chunk.getContentCode()).putInt(layout.nextLength());
+            for (Chunk chnk : (ContainerChunk) chunk) {
+                write(chnk, layout);
+            }
+
+        } else if (chunk instanceof StringChunk) {
+            byte[] value = layout.nextBytes();
+            buffer.putInt(chunk.getContentCode()).putInt(value.length).put(
+                    value);
+
+        } else if (chunk instanceof BooleanChunk) {
+            int value = layout.nextBoolean();
+
+            // See writeByteChunk()
+            if (value != 0) {
+                buffer.putInt(chunk.getContentCode()).putInt(1).put(
+                        (byte) value);
+            }
+
+        } else if (chunk instanceof ByteChunk) {
+            writeByteChunk((ByteChunk) chunk);
+        } else if (chunk instanceof ShortChunk) {
+            writeShortChunk((ShortChunk) chunk);
+        } else if (chunk instanceof IntChunk) {
+            writeIntChunk((IntChunk) chunk);
+        } else if (chunk instanceof LongChunk) {
+            writeLongChunk((LongChunk) chunk);
+        } else if (chunk instanceof DateChunk) {
+            writeDateChunk((DateChunk) chunk);
+        } else if (chunk instanceof VersionChunk) {
+            writeVersionChunk((VersionChunk) chunk);
+        } else if (chunk instanceof EncodedChunk) {
+            writeEncodedChunk((EncodedChunk) chunk);
+        } else {
+            throw new RuntimeException("Unknown Chunk Type: " + chunk + ", "
+                    + chunk.getClass());
+        }
+    }
+
+    /**
+     * Returns the number of written bytes
+     */
+    public int size() {
+        return buffer.position();
+    }
+
+    /**
+     * Returns the current capacity of the buffer
+     */
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Returns a read-only view of the written bytes
+     */
+    public ByteBuffer getBuffer() {
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.flip();
+        return view;
+    }
+
+    /**
+     * Returns a copy of the written bytes
+     */
+    public byte[] toByteArray() {
+        byte[] b = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), buffer.arrayOffset(), b, 0, b.length);
+        return b;
+    }
+
+    /**
+     * Discards the written bytes and keeps the buffer
+     */
+    public void reset() {
+        buffer.clear();
+    }
+
+    /**
+     * Makes sure there's room for <code>length</code> more bytes
+     */
+    private ByteBuffer ensureCapacity(int length) {
+        if (buffer.remaining() < length) {
+            int capacity = Math.max(buffer.capacity() * 2, buffer.position()
+                    + length);
+
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+        return buffer;
+    }
+}
@@ -18,6 +18,7 @@
 package org.ardverk.daap;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
@@ -68,6 +69,24 @@ public class Folder extends Playlist {
                 "Songs cannot be removed from Folders");
     }
 
+    public void addSongs(Transaction txn,
+            Collection<? extends Song> songs) {
+        throw new UnsupportedOperationException(
+                "Songs cannot be added to Folders");
+    }
+
+    public void removeSongs(Transaction txn,
+            Collection<? extends Song> songs) {
+        throw new UnsupportedOperationException(
+                "Songs cannot be removed from Folders");
+    }
+
+    public void replaceSongs(Transaction txn,
+            Collection<? extends Song> songs) {
+        throw new UnsupportedOperationException(
+                "Songs cannot be added to Folders");
+    }
+
     public boolean containsSong(Song song) {
         return false;
     }
@@ -83,6 +83,10 @@ public class Library {
     /** Set of Databases */
     private final Set<Database> databases = new HashSet<Database>();
 
+    /** The Databases by their item ids */
+    private final LongHashMap<Database> databaseIndex 
+        = new LongHashMap<Database>();
+
     /** Set of deleted Databases */
     private Set<Database> deletedDatabases = null;
 
@@ -107,6 +111,7 @@ public class Library {
                         || !deletedDatabases.contains(database)) {
                     Database clone = new Database(database, txn);
                     databases.add(clone);
+                    databaseIndex.put(clone.getItemId(), clone);
                 }
             }
         }
@@ -196,6 +201,8 @@ public class Library {
         }
 
         if (databases.add(database)) {
+            databaseIndex.put(database.getItemId(), database);
+            database.attachPlaylists();
             totalDatabaseCount = databases.size();
             if (deletedDatabases != null && deletedDatabases.remove(database)
                     && deletedDatabases.isEmpty()) {
@@ -224,6 +231,8 @@ public class Library {
 
     private void removeDatabaseP(Transaction txn, Database database) {
         if (databases.remove(database)) {
+            databaseIndex.remove(database.getItemId());
+            database.detachPlaylists();
             totalDatabaseCount = databases.size();
             if (deletedDatabases == null) {
                 deletedDatabases = new HashSet<Database>();
@@ -368,13 +377,7 @@ public class Library {
     }
 
     protected Database getDatabase(DaapRequest request) {
-        long databaseId = request.getDatabaseId();
-        for (Database database : databases) {
-            if (database.getItemId() == databaseId) {
-                return database;
-            }
-        }
-        return null;
+        return databaseIndex.get(request.getDatabaseId());
     }
 
     private LoginResponse getLoginResponse(DaapRequest request) {
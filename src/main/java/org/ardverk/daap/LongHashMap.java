@@ -0,0 +1,262 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap;
+
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A hash table with primitive long keys (the item ids of Songs, Playlists
+ * and Databases). It uses open addressing with linear probing in Robin Hood
+ * order and doesn't box the keys or create an entry per mapping. Null values
+ * aren't allowed. It's not thread-safe.
+ * 
+ * @author Roger Kapsi
+ */
+final class LongHashMap<V> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;
+
+    /** keys.length - 1 */
+    private int mask;
+
+    private int size = 0;
+
+    /** The number of structural modifications */
+    private int modCount = 0;
+
+    LongHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    LongHashMap(int expectedSize) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * The ids are handed out by counters. Spreading them like HashMap does
+     * keeps consecutive ids in consecutive slots, so iterating the values
+     * visits them (mostly) in the order they were created.
+     */
+    private int index(long key) {
+        int h = (int) (key ^ (key >>> 32));
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Returns the number of slots between the entry at i and its home index
+     */
+    private int distance(int i) {
+        return (i - index(keys[i])) & mask;
+    }
+
+    /**
+     * Returns the slot of the key or -1. The entries are kept in Robin Hood
+     * order: an entry is never further away from its home than the entries
+     * that follow it in the same run. The search stops at the first entry
+     * that is closer to its home than the key would be.
+     */
+    private int find(long key) {
+        int dist = 0;
+        for (int i = index(key); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return i;
+            } else if (distance(i) < dist++) {
+                break;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the value of the key or null
+     */
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        int i = find(key);
+        return (i != -1) ? (V) values[i] : null;
+    }
+
+    /**
+     * Maps the key to the value and returns the previous value or null
+     */
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value is null");
+        }
+
+        int i = find(key);
+        if (i != -1) {
+            V existing = (V) values[i];
+            values[i] = value;
+            return existing;
+        }
+
+        insert(key, value);
+        modCount++;
+
+        if (++size > keys.length * 3 / 4) {
+            resize(keys.length << 1);
+        }
+        return null;
+    }
+
+    /**
+     * Inserts a key that isn't in the map. It takes the slot of the first
+     * entry that is closer to its home and that entry moves on.
+     */
+    private void insert(long key, Object value) {
+        int dist = 0;
+        for (int i = index(key);; i = (i + 1) & mask, dist++) {
+            if (values[i] == null) {
+                keys[i] = key;
+                values[i] = value;
+                return;
+            }
+
+            int existing = distance(i);
+            if (existing < dist) {
+                long k = keys[i];
+                Object v = values[i];
+                keys[i] = key;
+                values[i] = value;
+                key = k;
+                value = v;
+                dist = existing;
+            }
+        }
+    }
+
+    /**
+     * Removes the key and returns its value or null
+     */
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        int i = find(key);
+        if (i == -1) {
+            return null;
+        }
+
+        V existing = (V) values[i];
+        closeGap(i);
+        size--;
+        modCount++;
+        return existing;
+    }
+
+    /**
+     * Moves the entries that follow the removed entry at gap back by one
+     * slot. It stops at the end of the run or at an entry that is in its
+     * home slot. Ids that were handed out in sequence don't move at all.
+     */
+    private void closeGap(int gap) {
+        for (int i = (gap + 1) & mask; values[i] != null && distance(i) > 0;
+                i = (i + 1) & mask) {
+            keys[gap] = keys[i];
+            values[gap] = values[i];
+            gap = i;
+        }
+        values[gap] = null;
+    }
+
+    /**
+     * Removes all mappings
+     */
+    void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+        modCount++;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                insert(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of mappings
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns an Iterator over the values. The Iterator is fail-fast and
+     * throws a ConcurrentModificationException if the map is modified while
+     * it's in use.
+     */
+    Iterator<V> values() {
+        return new Iterator<V>() {
+
+            private final int expectedModCount = modCount;
+
+            private int index = next(0);
+
+            private int next(int from) {
+                while (from < values.length && values[from] == null) {
+                    from++;
+                }
+                return from;
+            }
+
+            public boolean hasNext() {
+                return index < values.length;
+            }
+
+            @SuppressWarnings("unchecked")
+            public V next() {
+                if (modCount != expectedModCount) {
+                    throw new ConcurrentModificationException();
+                }
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                V value = (V) values[index];
+                index = next(index + 1);
+                return value;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The compiled form of the meta data of a request. The keys are resolved to
+ * the ordinals of the Chunks of a Song once and unknown keys are dropped, so
+ * a listing is built with array-indexed access instead of one Map lookup
+ * per key and Song. Clients send the same few meta Strings over and over
+ * and the compiled MetaProjections are shared.
+ * 
+ * @author Roger Kapsi
+ */
+public final class MetaProjection {
+
+    private static final Logger LOG = LoggerFactory
+            .getLogger(MetaProjection.class);
+
+    /** The max number of MetaProjections that are kept around */
+    private static final int MAX_PROJECTIONS = 64;
+
+    /** The compiled MetaProjections by their meta String */
+    private static final Map<String, MetaProjection> PROJECTIONS 
+        = new ConcurrentHashMap<String, MetaProjection>();
+
+    /** A MetaProjection without meta data */
+    public static final MetaProjection EMPTY = new MetaProjection(Collections
+            .<String> emptyList());
+
+    private final List<String> meta;
+
+    private final int[] ordinals;
+
+    private final int hashCode;
+
+    private MetaProjection(List<String> meta) {
+        this.meta = meta;
+
+        int[] ordinals = new int[meta.size()];
+        int count = 0;
+
+        for (String key : meta) {
+            int ordinal = Song.getOrdinal(key);
+
+            if (ordinal >= 0) {
+                ordinals[count++] = ordinal;
+
+            } else if (LOG.isInfoEnabled()) {
+                LOG.info("Unknown chunk type: " + key);
+            }
+        }
+
+        if (count < ordinals.length) {
+            int[] copy = new int[count];
+            System.arraycopy(ordinals, 0, copy, 0, count);
+            ordinals = copy;
+        }
+
+        this.ordinals = ordinals;
+        this.hashCode = Arrays.hashCode(this.ordinals);
+    }
+
+    /**
+     * Returns the compiled MetaProjection of the meta String
+     * ("dmap.itemid,dmap.itemname,...")
+     */
+    public static MetaProjection compile(String metaString) {
+        if (metaString == null) {
+            return EMPTY;
+        }
+
+        MetaProjection projection = PROJECTIONS.get(metaString);
+        if (projection == null) {
+            projection = compile(DaapUtil.parseMeta(metaString));
+
+            if (PROJECTIONS.size() >= MAX_PROJECTIONS) {
+                PROJECTIONS.clear();
+            }
+            PROJECTIONS.put(metaString, projection);
+        }
+        return projection;
+    }
+
+    /**
+     * Compiles the keys of the meta data in the given order
+     */
+    public static MetaProjection compile(List<String> meta) {
+        return new MetaProjection(Collections
+                .unmodifiableList(new ArrayList<String>(meta)));
+    }
+
+    /**
+     * Returns the keys of the meta data including the unknown keys
+     */
+    public List<String> getMeta() {
+        return meta;
+    }
+
+    /**
+     * Returns the number of known keys
+     */
+    public int size() {
+        return ordinals.length;
+    }
+
+    /**
+     * Returns the ordinal of the n-th known key
+     */
+    int getOrdinal(int index) {
+        return ordinals[index];
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    /**
+     * Two MetaProjections are equal if they select the same Chunks in the
+     * same order
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        } else if (!(o instanceof MetaProjection)) {
+            return false;
+        }
+
+        MetaProjection other = (MetaProjection) o;
+        return hashCode == other.hashCode
+                && Arrays.equals(ordinals, other.ordinals);
+    }
+
+    @Override
+    public String toString() {
+        return "MetaProjection(" + meta + ")";
+    }
+}
@@ -22,6 +22,7 @@ import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -39,7 +40,6 @@ import org.ardverk.daap.chunks.impl.ItemCount;
 import org.ardverk.daap.chunks.impl.ItemId;
 import org.ardverk.daap.chunks.impl.ItemName;
 import org.ardverk.daap.chunks.impl.Listing;
-import org.ardverk.daap.chunks.impl.ListingItem;
 import org.ardverk.daap.chunks.impl.PersistentId;
 import org.ardverk.daap.chunks.impl.PlaylistRepeatMode;
 import org.ardverk.daap.chunks.impl.PlaylistShuffleMode;
@@ -88,12 +88,18 @@ public class Playlist {
     /** */
     private final Map<String, Chunk> chunks = new HashMap<String, Chunk>();
 
-    /** Set of Songs */
-    private final List<Song> songs = new ArrayList<Song>();
+    /** The Songs in the order they were added */
+    private final SongSequence songs = new SongSequence();
 
     /** Set of deleted Songs */
     private Set<Song> deletedSongs = null;
 
+    /**
+     * The Databases this Playlist is in or null. A Playlist may be in more
+     * than one Database and each of them counts its Songs.
+     */
+    private List<Database> databases = null;
+
     protected Playlist(Playlist playlist, Transaction txn) {
         this.itemId.setValue(playlist.itemId.getValue());
         this.itemName.setValue(playlist.itemName.getValue());
@@ -277,7 +283,7 @@ public class Playlist {
      * Retuns an unmodifiable set of all songs
      */
     public List<Song> getSongs() {
-        return Collections.unmodifiableList(songs);
+        return songs.asList();
     }
 
     /**
@@ -308,12 +314,30 @@ public class Playlist {
     }
 
     private void addSongP(Transaction txn, Song song) {
-        if (!containsSong(song) && songs.add(song)) {
-            itemCount.setValue(songs.size());
-            if (deletedSongs != null && deletedSongs.remove(song)
-                    && deletedSongs.isEmpty()) {
-                deletedSongs = null;
+        updateSongsP(null, Collections.singletonList(song));
+    }
+
+    /**
+     * Adds all Songs in the Collection to this Playlist. The Songs are added
+     * in one step when the Transaction is committed.
+     * 
+     * @param txn
+     * @param songs
+     */
+    public void addSongs(Transaction txn,
+            Collection<? extends Song> songs) {
+        final List<Song> batch = new ArrayList<Song>(songs);
+        if (txn != null) {
+            txn.addTxn(this, new Txn() {
+                public void commit(Transaction txn) {
+                    updateSongsP(null, batch);
+                }
+            });
+            for (Song song : batch) {
+                txn.attach(song);
             }
+        } else {
+            updateSongsP(null, batch);
         }
     }
 
@@ -336,12 +360,146 @@ public class Playlist {
     }
 
     private void removeSongP(Transaction txn, Song song) {
-        if (songs.remove(song)) {
+        updateSongsP(Collections.singletonList(song), null);
+    }
+
+    /**
+     * Removes all Songs in the Collection from this Playlist
+     * 
+     * @param txn
+     * @param songs
+     */
+    public void removeSongs(Transaction txn,
+            Collection<? extends Song> songs) {
+        final List<Song> batch = new ArrayList<Song>(songs);
+        if (txn != null) {
+            txn.addTxn(this, new Txn() {
+                public void commit(Transaction txn) {
+                    updateSongsP(batch, null);
+                }
+            });
+        } else {
+            updateSongsP(batch, null);
+        }
+    }
+
+    /**
+     * Replaces the Songs of this Playlist with the Songs in the Collection.
+     * Songs that are in both keep their position, the others are appended
+     * in the order of the Collection.
+     * 
+     * @param txn
+     * @param songs
+     */
+    public void replaceSongs(Transaction txn,
+            Collection<? extends Song> songs) {
+        final List<Song> batch = new ArrayList<Song>(songs);
+        if (txn != null) {
+            txn.addTxn(this, new Txn() {
+                public void commit(Transaction txn) {
+                    replaceSongsP(batch);
+                }
+            });
+            for (Song song : batch) {
+                txn.attach(song);
+            }
+        } else {
+            replaceSongsP(batch);
+        }
+    }
+
+    private void replaceSongsP(List<Song> batch) {
+        Set<Song> keep = new HashSet<Song>(batch);
+        List<Song> removals = new ArrayList<Song>();
+        for (Song song : songs) {
+            if (!keep.contains(song)) {
+                removals.add(song);
+            }
+        }
+        updateSongsP(removals, batch);
+    }
+
+    /**
+     * Removes and then adds the given Songs (either may be null). The item
+     * count and the deleted Songs are updated once for all of them.
+     */
+    void updateSongsP(Collection<Song> removals, Collection<Song> additions) {
+        int count = songs.size();
+
+        if (removals != null) {
+            for (Song song : removals) {
+                if (songs.remove(song)) {
+                    if (databases != null) {
+                        for (Database database : databases) {
+                            database.removeSongRef(song);
+                        }
+                    }
+                    if (deletedSongs == null) {
+                        deletedSongs = new HashSet<Song>();
+                    }
+                    deletedSongs.add(song);
+                }
+            }
+        }
+
+        if (additions != null) {
+            for (Song song : additions) {
+                if (songs.add(song)) {
+                    if (databases != null) {
+                        for (Database database : databases) {
+                            database.addSongRef(song);
+                        }
+                    }
+                    if (deletedSongs != null) {
+                        deletedSongs.remove(song);
+                    }
+                }
+            }
+        }
+
+        if (deletedSongs != null && deletedSongs.isEmpty()) {
+            deletedSongs = null;
+        }
+
+        if (songs.size() != count) {
             itemCount.setValue(songs.size());
-            if (deletedSongs == null) {
-                deletedSongs = new HashSet<Song>();
+        }
+    }
+
+    /**
+     * Adds a Database this Playlist is in unless it was added already
+     */
+    void addDatabase(Database database) {
+        if (databases == null) {
+            databases = new ArrayList<Database>(1);
+        }
+
+        for (Database db : databases) {
+            if (db == database) {
+                return;
+            }
+        }
+        databases.add(database);
+    }
+
+    /**
+     * Removes a Database this Playlist was in. The Databases are compared
+     * by identity as the patches of an update have the same item ids.
+     */
+    void removeDatabase(Database database) {
+        if (databases == null) {
+            return;
+        }
+
+        for (int i = 0; i < databases.size(); i++) {
+            if (databases.get(i) == database) {
+                databases.remove(i);
+                break;
             }
-            deletedSongs.add(song);
+        }
+
+        if (databases.isEmpty()) {
+            databases = null;
         }
     }
 
@@ -352,13 +510,14 @@ public class Playlist {
      * @return
      */
     protected Song getSong(DaapRequest request) {
-        long songId = request.getItemId();
-        for (Song song : songs) {
-            if (song.getItemId() == songId) {
-                return song;
-            }
-        }
-        return null;
+        return getSong(request.getItemId());
+    }
+
+    /**
+     * Returns the Song with the given item id or null
+     */
+    protected Song getSong(long songId) {
+        return songs.get(songId);
     }
 
     /**
@@ -418,21 +577,9 @@ public class Playlist {
 
         Listing listing = new Listing();
 
+        MetaProjection projection = request.getMetaProjection();
         for (Song song : songs) {
-            ListingItem listingItem = new ListingItem();
-
-            for (String key : request.getMeta()) {
-                Chunk chunk = song.getChunk(key);
-
-                if (chunk != null) {
-                    listingItem.add(chunk);
-
-                } else if (LOG.isInfoEnabled()) {
-                    LOG.info("Unknown chunk type: " + key);
-                }
-            }
-
-            listing.add(listingItem);
+            listing.add(song.getListingItem(projection));
         }
 
         playlistSongs.add(listing);
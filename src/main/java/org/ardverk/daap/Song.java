@@ -21,6 +21,8 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
@@ -28,6 +30,7 @@ import java.util.concurrent.atomic.AtomicLong;
 import org.ardverk.daap.chunks.BooleanChunk;
 import org.ardverk.daap.chunks.Chunk;
 import org.ardverk.daap.chunks.DateChunk;
+import org.ardverk.daap.chunks.EncodedChunk;
 import org.ardverk.daap.chunks.LongChunk;
 import org.ardverk.daap.chunks.SByteChunk;
 import org.ardverk.daap.chunks.SShortChunk;
@@ -46,6 +49,7 @@ import org.ardverk.daap.chunks.impl.ITMSStorefrontId;
 import org.ardverk.daap.chunks.impl.ItemId;
 import org.ardverk.daap.chunks.impl.ItemKind;
 import org.ardverk.daap.chunks.impl.ItemName;
+import org.ardverk.daap.chunks.impl.ListingItem;
 import org.ardverk.daap.chunks.impl.NormVolume;
 import org.ardverk.daap.chunks.impl.PersistentId;
 import org.ardverk.daap.chunks.impl.Podcast;
@@ -107,7 +111,16 @@ public class Song {
     private static final SongSampleRate SAMPLE_RATE 
         = new SongSampleRate(SongSampleRate.KHZ_44100);
 
-    private final Map<String, Chunk> chunks = new HashMap<String, Chunk>();
+    /** The ordinals of the Chunks of a Song by their names */
+    private static final Map<String, Integer> ORDINALS = createOrdinals();
+
+    /** The number of encoded ListingItems a Song keeps */
+    private static final int MAX_FRAGMENTS = 4;
+
+    private static final Fragment[] NO_FRAGMENTS = new Fragment[0];
+
+    /** The Chunks of this Song by their ordinals */
+    private final Chunk[] chunks = new Chunk[ORDINALS.size()];
 
     private final ItemKind itemKind = new ItemKind(ItemKind.AUDIO);
     private final ItemId itemId = new ItemId(SONG_ID.getAndIncrement());
@@ -169,6 +182,15 @@ public class Song {
     /** An arbitrary Object (most likely a File) */
     private Object attachment;
 
+    /** Incremented whenever a Chunk of this Song changes */
+    private volatile int modCount = 0;
+
+    /**
+     * The most recently encoded ListingItems, the most recent first (see
+     * getListingItem()). The array is replaced, never modified.
+     */
+    private volatile Fragment[] fragments = NO_FRAGMENTS;
+
     /**
      * Creates a new Song
      */
@@ -873,12 +895,107 @@ public class Song {
 */
     private void addChunk(Chunk chunk) {
         if (chunk != null) {
-            chunks.put(chunk.getName(), chunk);
+            chunks[ORDINALS.get(chunk.getName()).intValue()] = chunk;
+        }
+    }
+
+    /**
+     * Returns this Song as an encoded ListingItem with the Chunks that are
+     * selected by the MetaProjection. The ListingItem is encoded once and
+     * reused until a Txn changes this Song. The last few MetaProjections are
+     * cached as iTunes asks for the Songs of a Database and of a Playlist
+     * with different meta data.
+     */
+    protected Chunk getListingItem(MetaProjection projection) {
+        Fragment[] fragments = this.fragments;
+        int modCount = this.modCount;
+
+        for (Fragment fragment : fragments) {
+            if (fragment.modCount == modCount
+                    && (fragment.projection == projection || fragment.projection
+                            .equals(projection))) {
+                return fragment.chunk;
+            }
+        }
+
+        ListingItem listingItem = new ListingItem();
+
+        for (int i = 0; i < projection.size(); i++) {
+            Chunk chunk = chunks[projection.getOrdinal(i)];
+            if (chunk != null) {
+                listingItem.add(chunk);
+            }
+        }
+
+        EncodedChunk chunk = new EncodedChunk(listingItem, DmapWriter
+                .serialize(listingItem));
+
+        // Keep the Fragments that are still current, the least recently
+        // encoded one falls out
+        Fragment[] update = new Fragment[Math.min(fragments.length + 1,
+                MAX_FRAGMENTS)];
+        int count = 0;
+        update[count++] = new Fragment(projection, modCount, chunk);
+        for (int i = 0; i < fragments.length && count < update.length; i++) {
+            if (fragments[i].modCount == modCount) {
+                update[count++] = fragments[i];
+            }
+        }
+
+        if (count < update.length) {
+            Fragment[] copy = new Fragment[count];
+            System.arraycopy(update, 0, copy, 0, count);
+            update = copy;
         }
+
+        this.fragments = update;
+        return chunk;
     }
 
     protected Chunk getChunk(String name) {
-        return chunks.get(name);
+        Integer ordinal = ORDINALS.get(name);
+        return (ordinal != null) ? chunks[ordinal.intValue()] : null;
+    }
+
+    /**
+     * Returns the ordinal of the Chunk with the given name or -1 if a Song
+     * has no such Chunk
+     */
+    static int getOrdinal(String name) {
+        Integer ordinal = ORDINALS.get(name);
+        return (ordinal != null) ? ordinal.intValue() : -1;
+    }
+
+    /**
+     * Assigns an ordinal to the name of every Chunk field of Song
+     */
+    private static Map<String, Integer> createOrdinals() {
+        Map<String, Integer> ordinals = new HashMap<String, Integer>();
+
+        for (Field field : Song.class.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers())
+                    || !Chunk.class.isAssignableFrom(field.getType())) {
+                continue;
+            }
+
+            try {
+                Chunk chunk = (Chunk) field.getType().getDeclaredConstructor()
+                        .newInstance();
+                if (!ordinals.containsKey(chunk.getName())) {
+                    ordinals.put(chunk.getName(), ordinals.size());
+                }
+            } catch (NoSuchMethodException e) {
+                throw new RuntimeException(e);
+            } catch (InstantiationException e) {
+                throw new RuntimeException(e);
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            } catch (InvocationTargetException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        return Collections.unmodifiableMap(ordinals);
     }
 
     /**
@@ -1120,6 +1237,8 @@ public class Song {
                 method.invoke(chunk, new Object[] { value });
             }
 
+            modCount++;
+
         } catch (SecurityException e) {
             throw new RuntimeException(e);
         } catch (IllegalArgumentException e) {
@@ -1136,4 +1255,21 @@ public class Song {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * An encoded ListingItem and what it was encoded from
+     */
+    private static final class Fragment {
+
+        private final MetaProjection projection;
+        private final int modCount;
+        private final EncodedChunk chunk;
+
+        private Fragment(MetaProjection projection, int modCount,
+                EncodedChunk chunk) {
+            this.projection = projection;
+            this.modCount = modCount;
+            this.chunk = chunk;
+        }
+    }
 }
@@ -0,0 +1,270 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * The Songs of a Playlist in the order they were added. The Songs are kept
+ * in an array and indexed by their item ids, so adding, removing and
+ * looking up a Song are O(1). A removed Song leaves a hole in the array.
+ * The holes are closed in one pass by the next positional access or
+ * Iterator, so get(int) is O(1) unless Songs were removed since the last
+ * one. It's not thread-safe.
+ * 
+ * @author Roger Kapsi
+ */
+final class SongSequence implements Iterable<Song> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private final LongHashMap<Slot> slots = new LongHashMap<Slot>();
+
+    /** The Slots in the order they were added, removed ones are null */
+    private Slot[] order = new Slot[DEFAULT_CAPACITY];
+
+    /** The number of used elements of order, including the holes */
+    private int end = 0;
+
+    /** The number of structural modifications */
+    private int modCount = 0;
+
+    /** An unmodifiable List view of this sequence */
+    private final List<Song> list = new SongList();
+
+    /**
+     * Appends the Song and returns true if it wasn't in the sequence
+     */
+    boolean add(Song song) {
+        long songId = song.getItemId();
+        if (slots.get(songId) != null) {
+            return false;
+        }
+
+        if (end == order.length) {
+            if (end - size() >= end / 2) {
+                compact();
+            } else {
+                Slot[] copy = new Slot[order.length * 2];
+                System.arraycopy(order, 0, copy, 0, end);
+                order = copy;
+            }
+        }
+
+        Slot slot = new Slot(song, end);
+        slots.put(songId, slot);
+        order[end++] = slot;
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Removes the Song and returns true if it was in the sequence
+     */
+    boolean remove(Song song) {
+        Slot slot = slots.remove(song.getItemId());
+        if (slot == null) {
+            return false;
+        }
+
+        order[slot.index] = null;
+        while (end > 0 && order[end - 1] == null) {
+            end--;
+        }
+        modCount++;
+        return true;
+    }
+
+    boolean contains(Song song) {
+        return slots.get(song.getItemId()) != null;
+    }
+
+    /**
+     * Returns the Song with the given item id or null
+     */
+    Song get(long songId) {
+        Slot slot = slots.get(songId);
+        return (slot != null) ? slot.song : null;
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    public Iterator<Song> iterator() {
+        return list.iterator();
+    }
+
+    /**
+     * Returns a live and unmodifiable List view of this sequence
+     */
+    List<Song> asList() {
+        return list;
+    }
+
+    /**
+     * Closes the holes of the removed Songs. It doesn't count as a
+     * modification as the sequence stays the same. The Iterators close
+     * the holes when they're created, so an Iterator can only see a
+     * compaction after a removal, which fails it anyway.
+     */
+    private void compact() {
+        if (end == size()) {
+            return;
+        }
+
+        int j = 0;
+        for (int i = 0; i < end; i++) {
+            Slot slot = order[i];
+            if (slot != null) {
+                slot.index = j;
+                order[j++] = slot;
+            }
+        }
+        Arrays.fill(order, j, end, null);
+        end = j;
+    }
+
+    private static final class Slot {
+
+        private final Song song;
+
+        /** The index of this Slot in order */
+        private int index;
+
+        private Slot(Song song, int index) {
+            this.song = song;
+            this.index = index;
+        }
+    }
+
+    private final class SongList extends AbstractList<Song> implements
+            RandomAccess {
+
+        @Override
+        public Song get(int index) {
+            int size = size();
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index
+                        + ", Size: " + size);
+            }
+
+            compact();
+            return order[index].song;
+        }
+
+        @Override
+        public int size() {
+            return slots.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return (o instanceof Song)
+                    && SongSequence.this.contains((Song) o);
+        }
+
+        @Override
+        public Iterator<Song> iterator() {
+            return listIterator(0);
+        }
+
+        @Override
+        public ListIterator<Song> listIterator(int index) {
+            int size = size();
+            if (index < 0 || index > size) {
+                throw new IndexOutOfBoundsException("Index: " + index
+                        + ", Size: " + size);
+            }
+
+            compact();
+            return new SongIterator(index);
+        }
+    }
+
+    /**
+     * A read-only and fail-fast ListIterator over the (compacted) Slots
+     */
+    private final class SongIterator implements ListIterator<Song> {
+
+        private final int expectedModCount = modCount;
+
+        private int index;
+
+        private SongIterator(int index) {
+            this.index = index;
+        }
+
+        public boolean hasNext() {
+            return index < end;
+        }
+
+        public Song next() {
+            checkForComodification();
+            if (index >= end) {
+                throw new NoSuchElementException();
+            }
+            return order[index++].song;
+        }
+
+        public boolean hasPrevious() {
+            return index > 0;
+        }
+
+        public Song previous() {
+            checkForComodification();
+            if (index <= 0) {
+                throw new NoSuchElementException();
+            }
+            return order[--index].song;
+        }
+
+        public int nextIndex() {
+            return index;
+        }
+
+        public int previousIndex() {
+            return index - 1;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void set(Song song) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void add(Song song) {
+            throw new UnsupportedOperationException();
+        }
+
+        private void checkForComodification() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+        }
+    }
+}
@@ -22,8 +22,11 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.SocketException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 import org.ardverk.daap.DaapAudioResponse;
+import org.ardverk.daap.DaapConfig;
 import org.ardverk.daap.DaapRequest;
 import org.ardverk.daap.DaapStreamException;
 import org.ardverk.daap.Song;
@@ -38,6 +41,7 @@ public class DaapAudioResponseBIO extends DaapAudioResponse {
     private boolean headerWritten = false;
     private boolean audioWritten = false;
 
+    private DaapConnectionBIO connection;
     private OutputStream out;
 
     /** Creates a new instance of DaapAudioResponse */
@@ -51,8 +55,7 @@ public class DaapAudioResponseBIO extends DaapAudioResponse {
             FileInputStream in, long pos, long end) {
         super(request, song, in, pos, end);
 
-        DaapConnectionBIO connection = (DaapConnectionBIO) request
-                .getConnection();
+        connection = (DaapConnectionBIO) request.getConnection();
         out = connection.getOutputStream();
     }
 
@@ -88,27 +91,32 @@ public class DaapAudioResponseBIO extends DaapAudioResponse {
 
     private boolean stream() throws IOException {
 
-        // DO NOT SET THIS TOO HIGH AS IT CAUSES RE-BUFFERING
-        // AT THE BEGINNING OF HIGH BIT RATE SONGS (WAV AND AIFF) !!!
-        byte[] buffer = new byte[512];
+        DaapConfig config = request.getServer().getConfig();
+        FileChannel fileChannel = in.getChannel();
+        WritableByteChannel channel = connection.getWriteChannel();
 
-        int total = 0;
-        int len = -1;
+        // The first bytes go out in small chunks as large transfers
+        // cause re-buffering at the beginning of high bit rate songs
+        // (WAV and AIFF). The rest is handed to the OS in large
+        // transfers (sendfile if possible).
+        long burst = Math.min(end, pos + config.getInitialBurstSize());
 
-        if (pos != 0) {
-            in.skip(pos);
-        }
+        while (pos < end) {
+            long count = (pos < burst) ? Math.min(config.getBufferSize(),
+                    burst - pos) : config.getTransferSize();
 
-        while ((len = in.read(buffer, 0, buffer.length)) != -1 && total < end) {
-            out.write(buffer, 0, len);
+            long transferred = fileChannel.transferTo(pos, Math.min(count,
+                    end - pos), channel);
 
-            // DO NOT FLUSH AS IT CAUSES RE-BUFFERING AT THE
-            // BEGINNING OF HIGH BIT RATE SONGS (WAV AND AIFF) !!!
+            // The file is shorter than the Song claims
+            if (transferred <= 0L) {
+                break;
+            }
 
-            total += len;
+            pos += transferred;
         }
 
-        out.flush();
+        audioWritten = true;
         return true;
     }
 
@@ -57,7 +57,6 @@ public class DaapChunkResponseBIO extends DaapChunkResponse {
 
         if (!headerWritten) {
             out.write(header, 0, header.length);
-            out.flush();
 
             headerWritten = true;
         }
@@ -65,7 +64,6 @@ public class DaapChunkResponseBIO extends DaapChunkResponse {
         if (!dataWritten) {
 
             out.write(data, 0, data.length);
-            out.flush();
 
             dataWritten = true;
         }
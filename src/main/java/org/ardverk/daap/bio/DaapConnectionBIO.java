@@ -17,7 +17,7 @@
 
 package org.ardverk.daap.bio;
 
-import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
@@ -25,10 +25,15 @@ import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.net.URISyntaxException;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
-import org.apache.http.Header;
-import org.apache.http.HttpException;
 import org.ardverk.daap.DaapConnection;
 import org.ardverk.daap.DaapRequest;
 import org.ardverk.daap.DaapRequestProcessor;
@@ -61,21 +66,68 @@ public class DaapConnectionBIO extends DaapConnection
     private static final DaapRequestProcessor PROCESSOR 
         = new DaapRequestProcessor(FACTORY);
 
+    /** Header and payload of most responses fit into it */
+    private static final int OUTPUT_BUFFER_SIZE = 8192;
+
     private Socket socket;
 
     private InputStream in;
+    private DaapRequestReaderBIO reader;
     private OutputStream out;
+    private WritableByteChannel writeChannel;
 
     private boolean running = false;
 
+    /**
+     * Serializes writes of the connection Thread and the notifier. It's
+     * a Lock and not a monitor as monitors pin virtual Threads.
+     */
+    private final Lock writeLock = new ReentrantLock();
+
+    /** Whether or not updateTask is scheduled */
+    private boolean updatePending = false;
+
+    /** Writes the update on the notifier Thread */
+    private final Runnable updateTask = new Runnable() {
+        public void run() {
+            synchronized (DaapConnectionBIO.this) {
+                updatePending = false;
+            }
+
+            try {
+                update();
+            } catch (IOException err) {
+                LOG.error("IOException", err);
+
+                // The connection Thread will notice it and
+                // remove the connection
+                IoUtils.close(socket);
+            }
+        }
+    };
+
+    /** Closes a connection that doesn't take its update in time */
+    private final Runnable updateTimeoutTask = new Runnable() {
+        public void run() {
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Update timed out: " + DaapConnectionBIO.this);
+            }
+
+            // Unblocks the notifier and the connection Thread
+            IoUtils.close(socket);
+        }
+    };
+
     public DaapConnectionBIO(DaapServerBIO server, Socket socket)
             throws IOException {
         super(server);
 
         this.socket = socket;
 
-        in = new BufferedInputStream(socket.getInputStream());
-        out = socket.getOutputStream();
+        in = socket.getInputStream();
+        reader = new DaapRequestReaderBIO(this, in);
+        out = new BufferedOutputStream(socket.getOutputStream(),
+                OUTPUT_BUFFER_SIZE);
 
         running = true;
     }
@@ -199,26 +251,92 @@ public class DaapConnectionBIO extends DaapConnection
         }
     }
 
-    public synchronized void update() throws IOException {
+    @Override
+    public boolean write() throws IOException {
+        // Audio streams don't get updates and there's nothing to
+        // serialize. Don't hold the Lock for the whole song.
+        if (isAudioStream()) {
+            boolean keepAlive = super.write();
+            out.flush();
+            return keepAlive;
+        }
+
+        writeLock.lock();
+        try {
+            boolean keepAlive = super.write();
+
+            // Responses of pipelined requests go out with a single flush
+            if (!keepAlive || (!reader.hasRemaining() && in.available() == 0)) {
+                out.flush();
+            }
+
+            return keepAlive;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Schedules an update on the notifier Executor unless there's one
+     * pending already. This never blocks the caller.
+     */
+    void scheduleUpdate(Executor notifier) {
+        synchronized (this) {
+            if (!isDaapConnection() || updatePending) {
+                return;
+            }
+            updatePending = true;
+        }
+
+        try {
+            notifier.execute(updateTask);
+        } catch (RejectedExecutionException err) {
+            synchronized (this) {
+                updatePending = false;
+            }
+        }
+    }
+
+    public void update() throws IOException {
 
-        if (isDaapConnection() && !isLocked()) {
-            DaapSession session = getSession(false);
-            if (session != null) {
-                SessionId sessionId = session.getSessionId();
+        DaapResponse response = null;
 
-                // client's revision
-                // int delta = getFirstInQueue().getRevision();
-                int delta = (Integer) session.getAttribute("CLIENT_REVISION");
+        synchronized (this) {
+            if (isDaapConnection() && !isLocked()) {
+                DaapSession session = getSession(false);
+                if (session != null) {
+                    SessionId sessionId = session.getSessionId();
 
-                // to request
-                int revisionNumber = getFirstInQueue().getRevision();
-                DaapRequest request = new DaapRequest(this, sessionId,
-                        revisionNumber, delta);
+                    // client's revision
+                    // int delta = getFirstInQueue().getRevision();
+                    int delta = (Integer) session
+                            .getAttribute("CLIENT_REVISION");
 
-                DaapResponse response = PROCESSOR.process(request);
+                    // to request
+                    int revisionNumber = getFirstInQueue().getRevision();
+                    DaapRequest request = new DaapRequest(this, sessionId,
+                            revisionNumber, delta);
 
-                if (response != null) {
-                    response.write();
+                    response = PROCESSOR.process(request);
+                }
+            }
+        }
+
+        // Write outside of the monitor so that a stalled client
+        // doesn't block close(). A client that doesn't take the update
+        // within LIBRARY_TIMEOUT is closed so that it doesn't occupy
+        // a notifier Thread.
+        if (response != null) {
+            ScheduledFuture<?> timeout = ((DaapServerBIO) server)
+                    .schedule(updateTimeoutTask, LIBRARY_TIMEOUT);
+            writeLock.lock();
+            try {
+                response.write();
+                out.flush();
+            } finally {
+                writeLock.unlock();
+                if (timeout != null) {
+                    timeout.cancel(false);
                 }
             }
         }
@@ -259,33 +377,33 @@ public class DaapConnectionBIO extends DaapConnection
         return out;
     }
 
-    private DaapRequest readRequest() throws IOException {
+    /**
+     * Returns a Channel that writes directly to the Socket. Data that was
+     * written to the {@link #getOutputStream()} must be flushed first. If the
+     * Socket has a SocketChannel the JVM can transfer files with a sendfile
+     * system call, otherwise it falls back to a copy loop.
+     */
+    protected WritableByteChannel getWriteChannel() throws IOException {
+        if (writeChannel == null) {
+            SocketChannel channel = socket.getChannel();
+            if (channel != null) {
+                writeChannel = channel;
+            } else {
+                writeChannel = Channels.newChannel(socket.getOutputStream());
+            }
+        }
+        return writeChannel;
+    }
 
-        String line = null;
+    private DaapRequest readRequest() throws IOException {
 
-        do {
-            line = HttpParser.readLine(in);
-        } while (line != null && line.length() == 0);
+        DaapRequest request = reader.read();
 
-        if (line == null) {
+        if (request == null) {
             throw new IOException("Request is null: " + this);
         }
 
-        DaapRequest request = null;
-        try {
-            request = new DaapRequest(this, line);
-            Header[] headers = HttpParser.parseHeaders(in);
-            request.addHeaders(headers);
-            return request;
-        } catch (URISyntaxException e) {
-            IOException ioe = new IOException();
-            ioe.initCause(e);
-            throw ioe;
-        } catch (HttpException e) {
-            IOException ioe = new IOException();
-            ioe.initCause(e);
-            throw ioe;
-        }
+        return request;
     }
 
     @Override
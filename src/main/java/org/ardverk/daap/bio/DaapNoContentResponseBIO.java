@@ -55,7 +55,6 @@ public class DaapNoContentResponseBIO extends DaapNoContentResponse {
 
         if (!headerWritten) {
             out.write(header, 0, header.length);
-            out.flush();
 
             headerWritten = true;
         }
@@ -0,0 +1,101 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap.bio;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.ardverk.daap.DaapHttpParser;
+import org.ardverk.daap.DaapRequest;
+
+/**
+ * Reads DaapRequests from an InputStream. The data is read in blocks into a
+ * reusable buffer and parsed by a {@link DaapHttpParser}. Pipelined requests
+ * are parsed from the buffer without reading from the stream.
+ * 
+ * @author Roger Kapsi
+ */
+class DaapRequestReaderBIO {
+
+    // The max size of a request head in bytes
+    private static final int MAX_HEADER_SIZE = 4096;
+
+    private final DaapConnectionBIO connection;
+
+    private final InputStream in;
+
+    private final byte[] buffer = new byte[MAX_HEADER_SIZE];
+
+    /** The start of the data that was not yet consumed */
+    private int start = 0;
+
+    /** The end of the data in the buffer */
+    private int end = 0;
+
+    private final DaapHttpParser parser = new DaapHttpParser();
+
+    DaapRequestReaderBIO(DaapConnectionBIO connection, InputStream in) {
+        this.connection = connection;
+        this.in = in;
+    }
+
+    /**
+     * Returns true if there's data of another request in the buffer
+     */
+    boolean hasRemaining() {
+        return start < end;
+    }
+
+    /**
+     * Blocks until a request was read. Returns null if the stream ended.
+     */
+    DaapRequest read() throws IOException {
+
+        while (!parser.parse(buffer, start, end)) {
+
+            // Move the partial request to the beginning of the buffer
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+
+            if (end == buffer.length) {
+                throw new IOException("Header too large");
+            }
+
+            int len = in.read(buffer, end, buffer.length - end);
+            if (len == -1) {
+                return null;
+            }
+
+            end += len;
+        }
+
+        try {
+            return parser.createRequest(connection);
+        } finally {
+            start += parser.getLength();
+            if (start == end) {
+                start = 0;
+                end = 0;
+            }
+            parser.reset();
+        }
+    }
+}
@@ -18,17 +18,29 @@
 package org.ardverk.daap.bio;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.ardverk.daap.DaapConfig;
 import org.ardverk.daap.DaapConnection;
+import org.ardverk.daap.DaapHeaderConstructor;
 import org.ardverk.daap.DaapServer;
 import org.ardverk.daap.Library;
 import org.ardverk.daap.SessionId;
+import org.ardverk.daap.io.IoUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,6 +59,21 @@ public class DaapServerBIO extends DaapServer<DaapConnectionBIO> {
 
     private ServerSocket ssocket;
 
+    /** Runs the DaapConnectionBIOs, see {@link DaapConfig#getConnectionExecution()} */
+    private Executor executor;
+
+    /** Writes the Library updates to the connections */
+    private ThreadPoolExecutor notifier;
+
+    /** Enforces the deadlines of the notifier writes */
+    private ScheduledThreadPoolExecutor watchdog;
+
+    /** Token bucket for {@link DaapConfig#getAcceptRate()} */
+    private double acceptTokens = 0d;
+
+    /** The last time acceptTokens was refilled */
+    private long acceptTimestamp = 0L;
+
     /**
      * Creates a new DAAP server with Library and {@see SimpleConfig}
      * 
@@ -135,7 +162,8 @@ public class DaapServerBIO extends DaapServer<DaapConnectionBIO> {
     }
 
     /**
-     * Call this to notify the server that Library has changed
+     * Call this to notify the server that Library has changed. The updates
+     * are only queued here and written by the notifier Threads.
      */
     protected synchronized void update() {
         for (DaapConnectionBIO conn : connections) {
@@ -143,10 +171,8 @@ public class DaapServerBIO extends DaapServer<DaapConnectionBIO> {
                 conn.enqueueLibrary(library);
             }
 
-            try {
-                conn.update();
-            } catch (IOException err) {
-                LOG.error("IOException", err);
+            if (notifier != null) {
+                conn.scheduleUpdate(notifier);
             }
         }
 
@@ -160,6 +186,16 @@ public class DaapServerBIO extends DaapServer<DaapConnectionBIO> {
     public void run() {
 
         running = true;
+        executor = createExecutor();
+
+        synchronized (this) {
+            int threads = Math.max(1, config.getNotifierThreads());
+            notifier = new ThreadPoolExecutor(threads, threads, 60L,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new DaapThreadFactory("DaapNotifierThread"));
+            watchdog = new ScheduledThreadPoolExecutor(1,
+                    new DaapThreadFactory("DaapWatchdogThread"));
+        }
 
         try {
 
@@ -168,16 +204,28 @@ public class DaapServerBIO extends DaapServer<DaapConnectionBIO> {
 
                 try {
                     synchronized (this) {
-                        if (running && accept(socket.getInetAddress())) {
+                        if (running && !admit()) {
+                            refuse(socket);
+
+                        } else if (running && accept(socket.getInetAddress())) {
 
                             socket.setSoTimeout(DaapConnection.TIMEOUT);
 
                             DaapConnectionBIO connection 
                                 = new DaapConnectionBIO(this, socket);
-                            addPendingConnection(connection);
 
-                            Thread connThread = threadFactory.newThread(connection);
-                            connThread.start();
+                            // The connection can't remove itself before
+                            // it's added as we're holding the lock
+                            try {
+                                executor.execute(connection);
+                                addPendingConnection(connection);
+                            } catch (RejectedExecutionException err) {
+                                if (LOG.isInfoEnabled()) {
+                                    LOG.info("No Thread available for " 
+                                            + connection);
+                                }
+                                refuse(socket);
+                            }
 
                         } else {
                             socket.close();
@@ -190,14 +238,8 @@ public class DaapServerBIO extends DaapServer<DaapConnectionBIO> {
                     } catch (IOException ignored) {
                     }
                 }
-
-                Thread.sleep(100);
             }
 
-        } catch (InterruptedException err) {
-            LOG.error("InterruptedException", err);
-            // throw new RuntimeException(err);
-
         } catch (SocketException err) {
             if (running) {
                 LOG.error("SocketException", err);
@@ -210,6 +252,134 @@ public class DaapServerBIO extends DaapServer<DaapConnectionBIO> {
 
         } finally {
             stop();
+
+            if (executor instanceof ExecutorService) {
+                ((ExecutorService) executor).shutdown();
+            }
+
+            synchronized (this) {
+                notifier.shutdownNow();
+                notifier = null;
+                watchdog.shutdownNow();
+                watchdog = null;
+            }
+        }
+    }
+
+    /**
+     * Runs the task after the given delay in milliseconds. Returns null
+     * if the server isn't running.
+     */
+    synchronized ScheduledFuture<?> schedule(Runnable task, long delay) {
+        if (watchdog == null) {
+            return null;
+        }
+
+        try {
+            return watchdog.schedule(task, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException err) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the accept rate and the pending connection budget
+     * allow another connection
+     */
+    private synchronized boolean admit() {
+        int maxPending = config.getMaxPendingConnections();
+        if (maxPending > 0 && getNumberOfPendingConnections() >= maxPending) {
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Too many pending connections: " + maxPending);
+            }
+            return false;
+        }
+
+        int rate = config.getAcceptRate();
+        if (rate > 0) {
+            long now = System.currentTimeMillis();
+            if (acceptTimestamp == 0L) {
+                acceptTokens = rate;
+            } else {
+                acceptTokens = Math.min(rate, acceptTokens
+                        + (now - acceptTimestamp) * rate / 1000d);
+            }
+            acceptTimestamp = now;
+
+            if (acceptTokens < 1d) {
+                if (LOG.isInfoEnabled()) {
+                    LOG.info("Accept rate exceeded: " + rate + "/sec");
+                }
+                return false;
+            }
+
+            acceptTokens -= 1d;
+        }
+
+        return true;
+    }
+
+    /**
+     * Answers the socket with 503 Service Unavailable and closes it
+     */
+    private void refuse(Socket socket) {
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(DaapHeaderConstructor.createServiceUnavailable(config));
+            out.flush();
+        } catch (IOException err) {
+            LOG.error("IOException", err);
+        } finally {
+            IoUtils.close(socket);
+        }
+    }
+
+    /**
+     * Creates the Executor that runs the DaapConnectionBIOs
+     */
+    private Executor createExecutor() {
+        Object execution = config.getConnectionExecution();
+
+        if (execution.equals(DaapConfig.VIRTUAL_THREADS)) {
+            ThreadFactory factory 
+                = DaapThreadFactory.newVirtualThreadFactory("DaapConnectionThread");
+            
+            if (factory != null) {
+                return new ThreadPerConnectionExecutor(factory);
+            }
+
+            if (LOG.isWarnEnabled()) {
+                LOG.warn("Virtual Threads are not supported, using a bounded Executor");
+            }
+
+            execution = DaapConfig.BOUNDED_EXECUTOR;
+        }
+
+        if (execution.equals(DaapConfig.BOUNDED_EXECUTOR)) {
+            // Connections are long-lived and occupy their Thread, so
+            // there's no point in queueing them
+            return new ThreadPoolExecutor(0, 
+                    Math.max(1, config.getConnectionThreads()), 
+                    60L, TimeUnit.SECONDS, 
+                    new SynchronousQueue<Runnable>(), threadFactory);
+        }
+
+        return new ThreadPerConnectionExecutor(threadFactory);
+    }
+
+    /**
+     * Starts a new Thread for each connection
+     */
+    private static class ThreadPerConnectionExecutor implements Executor {
+
+        private final ThreadFactory factory;
+
+        private ThreadPerConnectionExecutor(ThreadFactory factory) {
+            this.factory = factory;
+        }
+
+        public void execute(Runnable command) {
+            factory.newThread(command).start();
         }
     }
 
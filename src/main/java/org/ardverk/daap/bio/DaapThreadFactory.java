@@ -17,6 +17,7 @@
 
 package org.ardverk.daap.bio;
 
+import java.lang.reflect.Method;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -50,4 +51,24 @@ class DaapThreadFactory implements ThreadFactory {
         thread.setDaemon(daemon);
         return thread;
     }
+
+    /**
+     * Returns a {@link ThreadFactory} for virtual Threads or null if the JVM
+     * doesn't support them. Uses reflection as we're not compiling against a
+     * JDK with virtual Threads.
+     */
+    static ThreadFactory newVirtualThreadFactory(String name) {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+
+            Class<?> clazz = Class.forName("java.lang.Thread$Builder");
+            builder = clazz.getMethod("name", String.class, long.class)
+                    .invoke(builder, name + "-", 1L);
+
+            return (ThreadFactory) clazz.getMethod("factory").invoke(builder);
+        } catch (Exception err) {
+            return null;
+        }
+    }
 }
@@ -69,7 +69,10 @@ import org.slf4j.LoggerFactory;
  * @author <a href="mailto:oleg@ural.ru">Oleg Kalnichevski</a>
  * 
  * @since 2.0beta1
+ * @deprecated The BIO server parses requests with
+ *             {@link org.ardverk.daap.DaapHttpParser}
  */
+@Deprecated
 public class HttpParser {
 
     /** Log object for this class. */
@@ -0,0 +1,59 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap.chunks;
+
+/**
+ * A Chunk that was serialized ahead of time. The bytes include the content
+ * code and the length of the Chunk and are written to the stream as they
+ * are.
+ * 
+ * @author Roger Kapsi
+ */
+public class EncodedChunk extends AbstractChunk {
+
+    private final int type;
+    private final byte[] bytes;
+
+    /**
+     * Creates a new EncodedChunk from the Chunk and its serialized form
+     */
+    public EncodedChunk(Chunk chunk, byte[] bytes) {
+        super(chunk.getContentCode(), chunk.getName());
+        this.type = chunk.getType();
+        this.bytes = bytes;
+    }
+
+    /**
+     * Returns the serialized Chunk. Don't modify the returned array!
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the type of the serialized Chunk
+     */
+    public int getType() {
+        return type;
+    }
+
+    public String toString(int indent) {
+        return indent(indent) + name + "('" + getContentCodeString()
+                + "'; bytes=" + bytes.length + ")";
+    }
+}
@@ -22,6 +22,9 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.ardverk.daap.DaapAudioResponse;
 import org.ardverk.daap.DaapConfig;
@@ -36,10 +39,47 @@ import org.ardverk.daap.Song;
  */
 public class DaapAudioResponseNIO extends DaapAudioResponse {
 
+    /** A read or transfer that took longer than this went to the disk */
+    private static final long SLOW_READ_NANOS = 2L * 1000L * 1000L;
+
+    /** The max number of buffers that are read ahead */
+    private static final int MAX_BUFFERS = 2;
+
     private ByteBuffer headerBuffer;
     private FileChannel fileChannel;
     private DaapConnectionNIO connection;
 
+    private final DaapConfig config;
+
+    /** The end of the initial burst */
+    private final long burst;
+
+    /** The max number of bytes the next write() may transfer */
+    private long limit;
+
+    /** The scheduling state of {@link DaapAudioSchedulerNIO} */
+    long quantum = -1L;
+    long deficit = 0L;
+    long tokens = 0L;
+    long timestamp = 0L;
+    boolean parked = false;
+
+    /** Executor that reads ahead or null */
+    private final Executor readAheadExecutor;
+    private final DaapBufferPoolNIO bufferPool;
+
+    /** Buffers that were read ahead */
+    private final LinkedList<ByteBuffer> buffers = new LinkedList<ByteBuffer>();
+
+    /** The position up to which the file was read ahead */
+    private long readPos;
+
+    /** Whether or not a read is in progress */
+    private boolean reading = false;
+
+    /** Whether or not the file is in the page cache */
+    private boolean warm = false;
+
     public DaapAudioResponseNIO(DaapRequest request, Song song, File file,
             long pos, long end) throws IOException {
         this(request, song, new FileInputStream(file), pos, end);
@@ -54,6 +94,75 @@ public class DaapAudioResponseNIO extends DaapAudioResponse {
         this.connection = (DaapConnectionNIO) request.getConnection();
 
         fileChannel = in.getChannel();
+
+        config = request.getServer().getConfig();
+        burst = Math.min(end, pos + config.getInitialBurstSize());
+        limit = config.getBufferSize();
+
+        DaapServerNIO server = (DaapServerNIO) request.getServer();
+        readAheadExecutor = server.getReadAheadExecutor();
+        bufferPool = server.getBufferPool();
+        readPos = pos;
+    }
+
+    /**
+     * Sets the max number of bytes the next write() may transfer
+     */
+    void setLimit(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Returns the current position in the file
+     */
+    long getPosition() {
+        return pos;
+    }
+
+    /**
+     * Returns the Song that is streamed
+     */
+    Song getSong() {
+        return song;
+    }
+
+    /**
+     * Returns the connection of this stream
+     */
+    DaapConnectionNIO getConnection() {
+        return connection;
+    }
+
+    /**
+     * Returns true if the stream is waiting for the read-ahead
+     */
+    boolean isWaiting() {
+        return !headerBuffer.hasRemaining() && reading && buffers.isEmpty();
+    }
+
+    /**
+     * Called by the reactor when a read-ahead has finished
+     */
+    void readAhead(ByteBuffer buffer, long nanos) {
+        reading = false;
+
+        if (pos >= end || !buffer.hasRemaining()) {
+            bufferPool.release(buffer);
+
+            // The file is shorter than the Song claims, let
+            // transferTo() deal with it
+            warm = true;
+            return;
+        }
+
+        readPos += buffer.remaining();
+        buffers.add(buffer);
+
+        // It came from the page cache. Switch back to
+        // transferTo() once the buffers are written
+        if (nanos < SLOW_READ_NANOS) {
+            warm = true;
+        }
     }
 
     public boolean hasRemaining() {
@@ -98,11 +207,23 @@ public class DaapAudioResponseNIO extends DaapAudioResponse {
 
             } else {
 
-                // Stream...
+                // Stream... the initial burst goes out in small chunks
+                // as large transfers cause re-buffering at the beginning
+                // of high bit rate songs (WAV and AIFF)
                 try {
-                    DaapConfig config = request.getServer().getConfig();
-                    pos += fileChannel.transferTo(pos, config.getBufferSize(),
-                            connection.getWriteChannel());
+                    long count = Math.min(limit, end - pos);
+                    if (pos < burst) {
+                        count = Math.min(count, Math.min(config
+                                .getBufferSize(), burst - pos));
+                    }
+
+                    if (readAheadExecutor == null
+                            || (warm && buffers.isEmpty())) {
+                        transfer(count);
+                    } else {
+                        writeBuffers(count);
+                        readAhead();
+                    }
 
                     if (pos >= end) {
                         close();
@@ -123,8 +244,103 @@ public class DaapAudioResponseNIO extends DaapAudioResponse {
         }
     }
 
+    /**
+     * Transfers the data from the file to the Socket. It's a zero copy
+     * operation but reads from the disk on the reactor's Thread if the file
+     * isn't in the page cache.
+     */
+    private void transfer(long count) throws IOException {
+        long start = System.nanoTime();
+
+        pos += fileChannel.transferTo(pos, count, connection.getWriteChannel());
+
+        // It went to the disk. Read ahead from now on.
+        if (readAheadExecutor != null
+                && System.nanoTime() - start >= SLOW_READ_NANOS) {
+            warm = false;
+            readPos = pos;
+        }
+    }
+
+    /**
+     * Writes up to count bytes from the buffers that were read ahead
+     */
+    private void writeBuffers(long count) throws IOException {
+        while (count > 0L && !buffers.isEmpty()) {
+            ByteBuffer buffer = buffers.getFirst();
+
+            int limit = buffer.limit();
+            buffer.limit((int) Math.min(limit, buffer.position() + count));
+            int written = connection.getWriteChannel().write(buffer);
+            buffer.limit(limit);
+
+            pos += written;
+            count -= written;
+
+            if (buffer.hasRemaining()) {
+                break;
+            }
+
+            buffers.removeFirst();
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Reads the next window of the file on the read-ahead Executor
+     */
+    private void readAhead() {
+        if (reading || warm || readPos >= end || buffers.size() >= MAX_BUFFERS) {
+            return;
+        }
+
+        final DaapReactorNIO reactor = connection.getReactor();
+        final long position = readPos;
+        final int length = (int) Math.min(bufferPool.getBufferSize(), end
+                - position);
+
+        Runnable task = new Runnable() {
+            public void run() {
+                ByteBuffer buffer = bufferPool.acquire();
+                IOException exception = null;
+
+                long start = System.nanoTime();
+                try {
+                    buffer.limit(length);
+                    while (buffer.hasRemaining()) {
+                        if (fileChannel.read(buffer, position
+                                + buffer.position()) == -1) {
+                            break;
+                        }
+                    }
+                } catch (IOException err) {
+                    exception = err;
+                }
+
+                buffer.flip();
+                reactor.readAhead(DaapAudioResponseNIO.this, buffer, System
+                        .nanoTime()
+                        - start, exception);
+            }
+        };
+
+        reading = true;
+        try {
+            readAheadExecutor.execute(task);
+        } catch (RejectedExecutionException err) {
+            // The server is shutting down
+            reading = false;
+            warm = true;
+        }
+    }
+
     protected void close() throws IOException {
         super.close();
         fileChannel.close();
+
+        for (ByteBuffer buffer : buffers) {
+            bufferPool.release(buffer);
+        }
+        buffers.clear();
     }
 }
@@ -0,0 +1,199 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap.nio;
+
+import java.net.SocketException;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.ardverk.daap.DaapConfig;
+
+/**
+ * Decides how many bytes the audio streams of a {@link DaapReactorNIO} may
+ * transfer. Every writable stream is served once per round of the reactor
+ * and is credited its quantum (deficit round robin). The quantum is the
+ * amount of data that is needed for {@link #QUANTUM_MILLIS} of playback at
+ * the Song's bitrate, bound by the socket's send buffer. A WAV stream gets
+ * therefore a bigger share than a MP3 stream but both get the same amount of
+ * playback time. Streams that exceed {@link DaapConfig#getMaxStreamBandwidth()}
+ * are parked until they've got enough tokens again.
+ *
+ * @author Roger Kapsi
+ */
+class DaapAudioSchedulerNIO {
+
+    /** The playback time a stream is credited per round */
+    private static final long QUANTUM_MILLIS = 1000L;
+
+    private final DaapConfig config;
+
+    /** Streams that exceeded their bandwidth */
+    private final List<Parked> parked = new ArrayList<Parked>();
+
+    DaapAudioSchedulerNIO(DaapConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Credits the stream its quantum and sets the number of bytes it may
+     * transfer in this round
+     */
+    void schedule(DaapAudioResponseNIO stream, long now) {
+        if (stream.quantum < 0L) {
+            stream.quantum = getQuantum(stream);
+            stream.tokens = config.getMaxStreamBandwidth();
+            stream.timestamp = now;
+        }
+
+        stream.deficit += stream.quantum;
+
+        long limit = stream.deficit;
+
+        int bandwidth = config.getMaxStreamBandwidth();
+        if (bandwidth > 0) {
+            long elapsed = now - stream.timestamp;
+            if (elapsed > 0L) {
+                stream.tokens = Math.min(bandwidth, stream.tokens + elapsed
+                        * bandwidth / 1000L);
+                stream.timestamp = now;
+            }
+            limit = Math.min(limit, stream.tokens);
+        }
+
+        stream.setLimit(Math.max(0L, limit));
+    }
+
+    /**
+     * Charges the stream for the bytes it has transferred. Returns true if
+     * the stream has exceeded its bandwidth and was parked.
+     */
+    boolean transferred(SelectionKey sk, DaapAudioResponseNIO stream,
+            long transferred, long now) {
+
+        stream.deficit -= transferred;
+
+        // The socket is full. Keep the credit but don't let
+        // the stream hoard it
+        if (stream.deficit > stream.quantum) {
+            stream.deficit = stream.quantum;
+        }
+
+        int bandwidth = config.getMaxStreamBandwidth();
+        if (bandwidth <= 0) {
+            return false;
+        }
+
+        stream.tokens -= transferred;
+
+        if (stream.tokens >= config.getBufferSize()) {
+            return false;
+        }
+
+        long needed = Math.min(stream.quantum, bandwidth) - stream.tokens;
+        long delay = Math.max(1L, (needed * 1000L + bandwidth - 1L)
+                / bandwidth);
+
+        stream.parked = true;
+        parked.add(new Parked(sk, stream, now + delay));
+        return true;
+    }
+
+    /**
+     * Returns the parked streams whose time has come
+     */
+    List<SelectionKey> resume(long now) {
+        if (parked.isEmpty()) {
+            return null;
+        }
+
+        List<SelectionKey> keys = null;
+        for (Iterator<Parked> it = parked.iterator(); it.hasNext();) {
+            Parked p = it.next();
+            if (!p.sk.isValid()) {
+                it.remove();
+
+            } else if (p.resume <= now) {
+                it.remove();
+                p.stream.parked = false;
+                if (keys == null) {
+                    keys = new ArrayList<SelectionKey>();
+                }
+                keys.add(p.sk);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the time in milliseconds the reactor may block in select()
+     */
+    long getTimeout(long now, long timeout) {
+        for (Parked p : parked) {
+            timeout = Math.min(timeout, Math.max(1L, p.resume - now));
+        }
+        return timeout;
+    }
+
+    /**
+     * Clears the parked streams
+     */
+    void clear() {
+        parked.clear();
+    }
+
+    /**
+     * Returns the bytes for QUANTUM_MILLIS of playback bound by the size of
+     * the socket's send buffer
+     */
+    private long getQuantum(DaapAudioResponseNIO stream) {
+        long max = config.getTransferSize();
+        try {
+            max = Math.min(max, stream.getConnection().getChannel().socket()
+                    .getSendBufferSize());
+        } catch (SocketException ignore) {
+        }
+
+        // The bitrate is in kbit/s
+        long bytesPerSecond = stream.getSong().getBitrate() * 1000L / 8L;
+
+        long quantum = max;
+        if (bytesPerSecond > 0L) {
+            quantum = Math.min(max, bytesPerSecond * QUANTUM_MILLIS / 1000L);
+        }
+
+        return Math.max(config.getBufferSize(), quantum);
+    }
+
+    private static class Parked {
+
+        private final SelectionKey sk;
+
+        private final DaapAudioResponseNIO stream;
+
+        private final long resume;
+
+        private Parked(SelectionKey sk, DaapAudioResponseNIO stream,
+                long resume) {
+            this.sk = sk;
+            this.stream = stream;
+            this.resume = resume;
+        }
+    }
+}
@@ -28,7 +28,8 @@ import org.ardverk.daap.DaapRequest;
  * 
  * @author Roger Kapsi
  */
-public class DaapAuthResponseNIO extends DaapAuthResponse {
+public class DaapAuthResponseNIO extends DaapAuthResponse implements
+        DaapGatheringResponseNIO {
 
     private ByteBuffer headerBuffer;
     private DaapConnectionNIO connection;
@@ -41,6 +42,10 @@ public class DaapAuthResponseNIO extends DaapAuthResponse {
         headerBuffer = ByteBuffer.wrap(header);
     }
 
+    public ByteBuffer[] getBuffers() {
+        return new ByteBuffer[] { headerBuffer };
+    }
+
     public boolean hasRemaining() {
         return headerBuffer.hasRemaining();
     }
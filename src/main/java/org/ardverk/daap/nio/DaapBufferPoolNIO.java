@@ -0,0 +1,88 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap.nio;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct ByteBuffers of equal size. It's used by the read-ahead of
+ * the audio streams and is shared by the read-ahead Threads and the
+ * reactors.
+ *
+ * @author Roger Kapsi
+ */
+class DaapBufferPoolNIO {
+
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /** The number of pooled buffers */
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final int bufferSize;
+
+    private final int maxSize;
+
+    /**
+     * Creates a pool that keeps up to <code>maxSize</code> buffers of
+     * <code>bufferSize</code> bytes
+     */
+    DaapBufferPoolNIO(int bufferSize, int maxSize) {
+        this.bufferSize = bufferSize;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the size of the buffers
+     */
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns a cleared buffer from the pool or a new one if the pool is
+     * empty
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+
+        size.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns the buffer to the pool. It's dropped if the pool is full.
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize) {
+            return;
+        }
+
+        if (size.incrementAndGet() <= maxSize) {
+            buffers.offer(buffer);
+        } else {
+            size.decrementAndGet();
+        }
+    }
+}
@@ -19,6 +19,8 @@ package org.ardverk.daap.nio;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 import org.ardverk.daap.DaapChunkResponse;
 import org.ardverk.daap.DaapRequest;
@@ -28,11 +30,13 @@ import org.ardverk.daap.DaapRequest;
  * 
  * @author Roger Kapsi
  */
-public class DaapChunkResponseNIO extends DaapChunkResponse {
+public class DaapChunkResponseNIO extends DaapChunkResponse implements
+        DaapGatheringResponseNIO {
 
     private DaapConnectionNIO connection;
     private ByteBuffer headerBuffer;
     private ByteBuffer dataBuffer;
+    private ByteBuffer[] buffers;
 
     /** Creates a new instance of DaapChunkResponse */
     public DaapChunkResponseNIO(DaapRequest request, byte[] data) {
@@ -41,6 +45,11 @@ public class DaapChunkResponseNIO extends DaapChunkResponse {
         this.connection = (DaapConnectionNIO) request.getConnection();
         headerBuffer = ByteBuffer.wrap(header);
         dataBuffer = ByteBuffer.wrap(data);
+        buffers = new ByteBuffer[] { headerBuffer, dataBuffer };
+    }
+
+    public ByteBuffer[] getBuffers() {
+        return buffers;
     }
 
     public boolean hasRemaining() {
@@ -49,6 +58,14 @@ public class DaapChunkResponseNIO extends DaapChunkResponse {
 
     public boolean write() throws IOException {
 
+        WritableByteChannel channel = connection.getWriteChannel();
+        if (channel instanceof GatheringByteChannel) {
+            if (hasRemaining()) {
+                ((GatheringByteChannel) channel).write(buffers);
+            }
+            return !hasRemaining();
+        }
+
         if (headerBuffer.hasRemaining()) {
             connection.getWriteChannel().write(headerBuffer);
 
@@ -18,10 +18,16 @@
 package org.ardverk.daap.nio;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import org.ardverk.daap.DaapConnection;
 import org.ardverk.daap.DaapRequest;
@@ -50,6 +56,9 @@ public class DaapConnectionNIO extends DaapConnection {
     private static final DaapRequestProcessor PROCESSOR 
         = new DaapRequestProcessor(FACTORY);
 
+    /** The max number of pipelined responses that are written at once */
+    private static final int MAX_GATHERED_RESPONSES = 16;
+
     private SocketChannel socketChannel;
     private DaapRequestReaderNIO reader;
 
@@ -58,6 +67,70 @@ public class DaapConnectionNIO extends DaapConnection {
 
     private long timer = System.currentTimeMillis();
 
+    /** The reactor that handles this connection */
+    private DaapReactorNIO reactor;
+
+    /** Requests that are waiting for the processing Executor */
+    private final LinkedList<DaapRequest> requestQueue = new LinkedList<DaapRequest>();
+
+    /** Whether or not processTask is scheduled or running */
+    private boolean processing = false;
+
+    /**
+     * Processes the queued requests one after the other (to keep pipelined
+     * requests in order) and hands the responses back to the reactor.
+     */
+    private final Runnable processTask = new Runnable() {
+        public void run() {
+            while (true) {
+                DaapRequest request = null;
+                synchronized (requestQueue) {
+                    request = requestQueue.poll();
+                    if (request == null) {
+                        processing = false;
+                        return;
+                    }
+                }
+
+                DaapResponse response = null;
+                IOException exception = null;
+
+                try {
+                    response = PROCESSOR.process(request);
+                } catch (IOException err) {
+                    exception = err;
+                } catch (RuntimeException err) {
+                    exception = new IOException(err.getMessage());
+                    exception.initCause(err);
+                }
+
+                if (LOG.isTraceEnabled()) {
+                    LOG.trace("Request=" + request + ", response=" + response);
+                }
+
+                // Hand the response over while holding the lock so that
+                // the next task can't overtake us
+                synchronized (requestQueue) {
+                    if (exception != null) {
+                        requestQueue.clear();
+                    }
+
+                    boolean done = requestQueue.isEmpty();
+                    if (done) {
+                        processing = false;
+                    }
+
+                    reactor.processed(DaapConnectionNIO.this, response,
+                            exception);
+
+                    if (done) {
+                        return;
+                    }
+                }
+            }
+        }
+    };
+
     /** Creates a new instance of DaapConnection */
     public DaapConnectionNIO(DaapServerNIO server, SocketChannel channel) {
         super(server);
@@ -75,7 +148,11 @@ public class DaapConnectionNIO extends DaapConnection {
      */
     public int interrestOps() {
 
-        if (isUndef()) {
+        if (isProcessing() && writer.isEmpty()) {
+            // Wait for the processing Executor
+            return isAudioStream() ? 0 : SelectionKey.OP_READ;
+
+        } else if (isUndef()) {
             return SelectionKey.OP_READ;
 
         } else if (isDaapConnection()) {
@@ -88,7 +165,12 @@ public class DaapConnectionNIO extends DaapConnection {
             return op;
 
         } else {
-            // isAudioStream
+            // isAudioStream, wait if it's over its bandwidth or
+            // for the read-ahead
+            DaapAudioResponseNIO stream = getAudioResponse();
+            if (stream != null && (stream.parked || stream.isWaiting())) {
+                return 0;
+            }
             return SelectionKey.OP_WRITE;
         }
     }
@@ -128,17 +210,86 @@ public class DaapConnectionNIO extends DaapConnection {
             defineConnection(request);
         }
 
-        DaapResponse response = PROCESSOR.process(request);
+        process(request);
+        return true;
+    }
+
+    /**
+     * Processes the request either right away or, if the server has a
+     * processing Executor, hands it over to the Executor. In the latter case
+     * the response is passed back to the reactor which adds it to the writer.
+     */
+    private void process(DaapRequest request) throws IOException {
+        Executor executor = ((DaapServerNIO) server).getProcessorExecutor();
+
+        if (executor == null) {
+            DaapResponse response = PROCESSOR.process(request);
 
-        if (LOG.isTraceEnabled()) {
-            LOG.trace("Request=" + request + ", response=" + response);
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("Request=" + request + ", response=" + response);
+            }
+
+            if (response != null) {
+                writer.add(response);
+            }
+            return;
         }
 
-        if (response != null) {
-            writer.add(response);
+        synchronized (requestQueue) {
+            requestQueue.add(request);
+            if (processing) {
+                return;
+            }
+            processing = true;
         }
 
-        return true;
+        executor.execute(processTask);
+    }
+
+    /**
+     * Returns true if there are requests that are queued or being processed
+     * by the processing Executor.
+     */
+    boolean isProcessing() {
+        synchronized (requestQueue) {
+            return processing;
+        }
+    }
+
+    /**
+     * Adds a response that was created by the processing Executor
+     */
+    void addResponse(DaapResponse response) {
+        writer.add(response);
+    }
+
+    /**
+     * Returns the audio response that is being streamed or null
+     */
+    DaapAudioResponseNIO getAudioResponse() {
+        if (!isAudioStream() || writer.isEmpty()) {
+            return null;
+        }
+
+        DaapResponse response = writer.peek(1).get(0);
+        if (response instanceof DaapAudioResponseNIO) {
+            return (DaapAudioResponseNIO) response;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the reactor that handles this connection
+     */
+    DaapReactorNIO getReactor() {
+        return reactor;
+    }
+
+    /**
+     * Sets the reactor that handles this connection
+     */
+    void setReactor(DaapReactorNIO reactor) {
+        this.reactor = reactor;
     }
 
     private void defineConnection(DaapRequest request) throws IOException {
@@ -197,6 +348,50 @@ public class DaapConnectionNIO extends DaapConnection {
         }
     }
 
+    /**
+     * Writes the queued responses. If several in-memory responses are
+     * queued (pipelined requests) they're coalesced into a single gathering
+     * write.
+     */
+    @Override
+    public boolean write() throws IOException {
+        if (!(writeChannel instanceof GatheringByteChannel)
+                || writer.size() < 2) {
+            return super.write();
+        }
+
+        List<DaapResponse> responses = writer.peek(MAX_GATHERED_RESPONSES);
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+
+        int count = 0;
+        for (DaapResponse response : responses) {
+            if (!(response instanceof DaapGatheringResponseNIO)) {
+                break;
+            }
+
+            for (ByteBuffer buffer : ((DaapGatheringResponseNIO) response)
+                    .getBuffers()) {
+                buffers.add(buffer);
+            }
+            count++;
+        }
+
+        if (count < 2) {
+            return super.write();
+        }
+
+        ((GatheringByteChannel) writeChannel).write(buffers
+                .toArray(new ByteBuffer[0]));
+
+        int written = 0;
+        while (written < count && !responses.get(written).hasRemaining()) {
+            written++;
+        }
+        writer.remove(written);
+
+        return true;
+    }
+
     /**
      * Returns true if Connection type is undef or daap and timeout is exceeded.
      */
@@ -230,10 +425,7 @@ public class DaapConnectionNIO extends DaapConnection {
                 DaapRequest request = new DaapRequest(this, sessionId,
                         revisionNumber, delta);
 
-                DaapResponse response = PROCESSOR.process(request);
-                if (response != null) {
-                    writer.add(response);
-                }
+                process(request);
             }
         }
     }
@@ -0,0 +1,38 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap.nio;
+
+import java.nio.ByteBuffer;
+
+import org.ardverk.daap.DaapResponse;
+
+/**
+ * A DaapResponse whose remaining bytes are in memory. Such responses can be
+ * written with a single gathering write and several of them can be coalesced
+ * into one write.
+ * 
+ * @author Roger Kapsi
+ */
+interface DaapGatheringResponseNIO extends DaapResponse {
+
+    /**
+     * Returns the parts of the response (e.g. header and payload). Writing to
+     * the buffers advances the response.
+     */
+    public ByteBuffer[] getBuffers();
+}
@@ -25,7 +25,10 @@ import java.nio.channels.ReadableByteChannel;
  * Reads a CR LF terminated string line.
  * 
  * @author Roger Kapsi
+ * @deprecated The NIO server parses requests with an incremental byte level
+ *             parser and doesn't use this class anymore
  */
+@Deprecated
 public class DaapLineReaderNIO {
 
     private static final char CR = '\r';
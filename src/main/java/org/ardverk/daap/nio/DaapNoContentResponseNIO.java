@@ -28,7 +28,8 @@ import org.ardverk.daap.DaapRequest;
  * 
  * @author Roger Kapsi
  */
-public class DaapNoContentResponseNIO extends DaapNoContentResponse {
+public class DaapNoContentResponseNIO extends DaapNoContentResponse implements
+        DaapGatheringResponseNIO {
 
     private ByteBuffer headerBuffer;
     private DaapConnectionNIO connection;
@@ -42,6 +43,10 @@ public class DaapNoContentResponseNIO extends DaapNoContentResponse {
         headerBuffer = ByteBuffer.wrap(header);
     }
 
+    public ByteBuffer[] getBuffers() {
+        return new ByteBuffer[] { headerBuffer };
+    }
+
     public boolean hasRemaining() {
         return headerBuffer.hasRemaining();
     }
@@ -0,0 +1,755 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.ardverk.daap.DaapConnection;
+import org.ardverk.daap.DaapResponse;
+import org.ardverk.daap.DaapStreamException;
+import org.ardverk.daap.Library;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A DaapReactorNIO owns a Selector and a set of DaapConnectionNIOs and does
+ * all reading, writing, Library update fan-out and timeout sweeping for
+ * these connections on a single Thread. {@link DaapServerNIO} runs one or
+ * more of them.
+ *
+ * @author Roger Kapsi
+ */
+class DaapReactorNIO implements Runnable {
+
+    private static final Logger LOG = LoggerFactory
+            .getLogger(DaapReactorNIO.class);
+
+    /** Selector.select() timeout */
+    private static final long TIMEOUT = 250;
+
+    /** The server this reactor is working for */
+    private final DaapServerNIO server;
+
+    /** Selector for the Sockets of this reactor */
+    private final Selector selector;
+
+    /** The connections that are handled by this reactor */
+    private final Set<DaapConnectionNIO> connections = new HashSet<DaapConnectionNIO>();
+
+    /**
+     * Commands from other Threads (acceptor, processing Executor, Library
+     * commits). It's a lock-free queue that is drained by the reactor's
+     * Thread.
+     */
+    private final Queue<Command> commands = new ConcurrentLinkedQueue<Command>();
+
+    /** Whether or not the Selector was already woken up */
+    private final AtomicBoolean wakenUp = new AtomicBoolean(false);
+
+    /** Library patches that were not yet sent to the connections */
+    private final List<Library> libraryQueue = new ArrayList<Library>();
+
+    /** Flag to indicate that all clients shall be disconnected */
+    private boolean disconnectAll = false;
+
+    /** Decides how much the audio streams may transfer */
+    private final DaapAudioSchedulerNIO scheduler;
+
+    /** The audio streams that are writable in this round */
+    private final List<SelectionKey> streams = new ArrayList<SelectionKey>();
+
+    private volatile boolean running = true;
+
+    /**
+     * Creates a new DaapReactorNIO and opens its Selector
+     *
+     * @throws IOException
+     */
+    DaapReactorNIO(DaapServerNIO server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.scheduler = new DaapAudioSchedulerNIO(server.getConfig());
+    }
+
+    /**
+     * Registers the ServerSocketChannel with this reactor. This is used in
+     * single-threaded mode where the reactor does also accept the incoming
+     * connections and must be called before {@link #run()}.
+     *
+     * @throws ClosedChannelException
+     */
+    void registerAcceptor(ServerSocketChannel ssc)
+            throws ClosedChannelException {
+        ssc.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Hands a freshly accepted connection over to this reactor. The actual
+     * registration happens on the reactor's Thread.
+     */
+    void register(final DaapConnectionNIO connection) {
+        execute(new Command() {
+            void execute() {
+                processRegister(connection);
+            }
+
+            void discard() {
+                try {
+                    connection.getChannel().close();
+                } catch (IOException err) {
+                    LOG.error("Channel.close()", err);
+                }
+                server.closeConnection(connection);
+            }
+        });
+    }
+
+    /**
+     * Hands a response that was created by the processing Executor back to
+     * this reactor. The response is added to the connection's writer on the
+     * reactor's Thread.
+     */
+    void processed(final DaapConnectionNIO connection,
+            final DaapResponse response, final IOException exception) {
+        execute(new Command() {
+            void execute() {
+                processProcessed(connection, response, exception);
+            }
+
+            void discard() {
+                discardResponse(response);
+            }
+        });
+    }
+
+    /**
+     * Hands a buffer that was read ahead back to this reactor
+     */
+    void readAhead(final DaapAudioResponseNIO stream, final ByteBuffer buffer,
+            final long nanos, final IOException exception) {
+        execute(new Command() {
+            void execute() {
+                processReadAhead(stream, buffer, nanos, exception);
+            }
+
+            void discard() {
+                server.getBufferPool().release(buffer);
+            }
+        });
+    }
+
+    /**
+     * Adds a Library patch that shall be sent to all DAAP connections of this
+     * reactor
+     */
+    void update(final Library library) {
+        execute(new Command() {
+            void execute() {
+                libraryQueue.add(library);
+            }
+        });
+    }
+
+    /**
+     * Disconnects all DAAP and Stream connections of this reactor
+     */
+    void disconnectAll() {
+        execute(new Command() {
+            void execute() {
+                libraryQueue.clear();
+                disconnectAll = true;
+            }
+        });
+    }
+
+    /**
+     * Stops this reactor
+     */
+    void stop() {
+        execute(new Command() {
+            void execute() {
+                running = false;
+            }
+        });
+    }
+
+    /**
+     * Adds the command to the queue and wakes up the Selector if it isn't
+     * already awake
+     */
+    private void execute(Command command) {
+        commands.offer(command);
+
+        if (wakenUp.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Executes all queued commands
+     */
+    private void processCommands() {
+        Command command = null;
+        while ((command = commands.poll()) != null) {
+            command.execute();
+        }
+    }
+
+    /**
+     * Cancel SelesctionKey, close Channel and "free" the attachment
+     */
+    private void cancel(SelectionKey sk) {
+
+        sk.cancel();
+
+        SelectableChannel channel = sk.channel();
+
+        try {
+            channel.close();
+        } catch (IOException err) {
+            LOG.error("Channel.close()", err);
+        }
+
+        DaapConnection connection = (DaapConnection) sk.attachment();
+
+        // Cancelled keys stay in the key set until the next select()
+        if (connection != null && connections.remove(connection)) {
+            if (connection instanceof DaapConnectionNIO) {
+                discardResponse(((DaapConnectionNIO) connection)
+                        .getAudioResponse());
+            }
+            server.closeConnection(connection);
+        }
+    }
+
+    /**
+     * Registers a connection that was handed over to this reactor
+     */
+    private void processRegister(DaapConnectionNIO connection) {
+        SocketChannel channel = connection.getChannel();
+        try {
+            connection.setReactor(this);
+            channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+        } catch (ClosedChannelException err) {
+            LOG.error("SocketChannel.register()", err);
+            server.closeConnection(connection);
+        }
+    }
+
+    /**
+     * Adds a response of the processing Executor to the writer of its
+     * connection
+     */
+    private void processProcessed(DaapConnectionNIO connection,
+            DaapResponse response, IOException exception) {
+
+        if (!connections.contains(connection)) {
+            // Connection was closed in the meantime
+            discardResponse(response);
+            return;
+        }
+
+        SelectionKey sk = connection.getChannel().keyFor(selector);
+
+        if (exception != null) {
+            LOG.error("An exception occured in process()", exception);
+            cancel(sk);
+            return;
+        }
+
+        if (response != null) {
+            connection.addResponse(response);
+        }
+
+        try {
+            if (sk.isValid()) {
+                sk.interestOps(connection.interrestOps());
+            }
+        } catch (CancelledKeyException err) {
+            cancel(sk);
+        }
+    }
+
+    /**
+     * Adds a buffer that was read ahead to its stream and resumes writing
+     */
+    private void processReadAhead(DaapAudioResponseNIO stream,
+            ByteBuffer buffer, long nanos, IOException exception) {
+
+        DaapConnectionNIO connection = stream.getConnection();
+        if (!connections.contains(connection)) {
+            // Connection was closed in the meantime
+            server.getBufferPool().release(buffer);
+            return;
+        }
+
+        SelectionKey sk = connection.getChannel().keyFor(selector);
+
+        if (exception != null) {
+            server.getBufferPool().release(buffer);
+            LOG.error("An exception occured in readAhead()", exception);
+            cancel(sk);
+            return;
+        }
+
+        stream.readAhead(buffer, nanos);
+
+        try {
+            if (sk.isValid()) {
+                sk.interestOps(connection.interrestOps());
+            }
+        } catch (CancelledKeyException err) {
+            cancel(sk);
+        }
+    }
+
+    /**
+     * Releases the resources of a response that won't be written
+     */
+    private void discardResponse(DaapResponse response) {
+        if (response instanceof DaapAudioResponseNIO) {
+            try {
+                ((DaapAudioResponseNIO) response).close();
+            } catch (IOException err) {
+                LOG.error("IOException", err);
+            }
+        }
+    }
+
+    /**
+     * Read data
+     *
+     * @throws IOException
+     */
+    private void processRead(SelectionKey sk) throws IOException {
+
+        if (!sk.isValid())
+            return;
+
+        DaapConnectionNIO connection = (DaapConnectionNIO) sk.attachment();
+
+        boolean keepAlive = false;
+        keepAlive = connection.read();
+
+        if (keepAlive) {
+            sk.interestOps(connection.interrestOps());
+        } else {
+            cancel(sk);
+        }
+    }
+
+    /**
+     * Write data
+     *
+     * @throws IOException
+     */
+    private void processWrite(SelectionKey sk) throws IOException {
+
+        if (!sk.isValid())
+            return;
+
+        DaapConnectionNIO connection = (DaapConnectionNIO) sk.attachment();
+
+        boolean keepAlive = false;
+
+        try {
+            keepAlive = connection.write();
+        } catch (DaapStreamException err) {
+
+            // Broken pipe: User pressed Pause, fast-foward
+            // or whatever. Just close the connection and go
+            // ahead
+            keepAlive = false;
+            LOG.error("DaapStreamException", err);
+        }
+
+        if (keepAlive) {
+            sk.interestOps(connection.interrestOps());
+
+        } else {
+            cancel(sk);
+        }
+    }
+
+    /**
+     * Gives every writable audio stream its share (see
+     * {@link DaapAudioSchedulerNIO})
+     */
+    private void processStreams() {
+        long now = System.currentTimeMillis();
+
+        for (SelectionKey sk : streams) {
+            try {
+                processStream(sk, now);
+            } catch (CancelledKeyException err) {
+                continue;
+            } catch (IOException err) {
+                cancel(sk);
+                LOG.error("An exception occured in processStream()", err);
+            }
+        }
+
+        streams.clear();
+    }
+
+    /**
+     * Write audio data
+     *
+     * @throws IOException
+     */
+    private void processStream(SelectionKey sk, long now) throws IOException {
+
+        if (!sk.isValid())
+            return;
+
+        DaapConnectionNIO connection = (DaapConnectionNIO) sk.attachment();
+        DaapAudioResponseNIO stream = connection.getAudioResponse();
+
+        if (stream == null) {
+            processWrite(sk);
+            return;
+        }
+
+        scheduler.schedule(stream, now);
+        long pos = stream.getPosition();
+
+        boolean keepAlive = false;
+
+        try {
+            keepAlive = connection.write();
+        } catch (DaapStreamException err) {
+
+            // Broken pipe: User pressed Pause, fast-foward
+            // or whatever. Just close the connection and go
+            // ahead
+            keepAlive = false;
+            LOG.error("DaapStreamException", err);
+        }
+
+        if (keepAlive) {
+            scheduler.transferred(sk, stream, stream.getPosition() - pos, now);
+            sk.interestOps(connection.interrestOps());
+
+        } else {
+            cancel(sk);
+        }
+    }
+
+    /**
+     * Resumes the audio streams whose bandwidth was exceeded
+     */
+    private void processParked() {
+        List<SelectionKey> keys = scheduler.resume(System.currentTimeMillis());
+        if (keys == null) {
+            return;
+        }
+
+        for (SelectionKey sk : keys) {
+            try {
+                DaapConnectionNIO connection = (DaapConnectionNIO) sk
+                        .attachment();
+                sk.interestOps(connection.interrestOps());
+            } catch (CancelledKeyException err) {
+                cancel(sk);
+            }
+        }
+    }
+
+    /**
+     * Disconnects all clients from this reactor
+     */
+    private void processDisconnectAll() {
+        for (SelectionKey sk : selector.keys()) {
+            SelectableChannel channel = sk.channel();
+            if (channel instanceof SocketChannel) {
+                cancel(sk);
+            }
+        }
+    }
+
+    /**
+     * Notify all clients about an update of the Library
+     */
+    private void processUpdate() {
+
+        for (DaapConnectionNIO connection : getDaapConnections()) {
+            SelectionKey sk = connection.getChannel().keyFor(selector);
+
+            try {
+
+                for (int i = 0; i < libraryQueue.size(); i++) {
+                    connection.enqueueLibrary(libraryQueue.get(i));
+                }
+
+                connection.update();
+                if (sk.isValid()) {
+                    try {
+                        sk.interestOps(SelectionKey.OP_READ
+                                | SelectionKey.OP_WRITE);
+                    } catch (CancelledKeyException err) {
+                        cancel(sk);
+                        LOG.error("SelectionKey.interestOps()", err);
+                    }
+                }
+            } catch (ClosedChannelException err) {
+                cancel(sk);
+                LOG.error("DaapConnection.update()", err);
+            } catch (IOException err) {
+                cancel(sk);
+                LOG.error("DaapConnection.update()", err);
+            }
+        }
+
+        libraryQueue.clear();
+    }
+
+    /**
+     * 1) Disconnect all connections that are in undefined state and that have
+     * exceeded their timeout.
+     *
+     * 2) Empty the libraryQueue of daap connections if they've exceeded their
+     * timeout. Some clients do not support live updates and this will prevent
+     * us from running out of memory if the client doesn't fetch its updates).
+     */
+    private void processTimeout() {
+        for (DaapConnectionNIO connection : new ArrayList<DaapConnectionNIO>(
+                connections)) {
+            if (connection.isUndef()) {
+                if (connection.timeout()) {
+                    cancelConnection(connection);
+                }
+            } else if (connection.isDaapConnection()) {
+                if (connection.timeout()) {
+                    connection.clearLibraryQueue();
+                }
+            }
+        }
+    }
+
+    private void cancelConnection(DaapConnectionNIO connection) {
+        SelectionKey sk = connection.getChannel().keyFor(selector);
+        if (sk != null) {
+            cancel(sk);
+        } else {
+            connections.remove(connection);
+            server.closeConnection(connection);
+        }
+    }
+
+    /** Returns true if the key belongs to an audio stream */
+    private static boolean isAudioStream(SelectionKey sk) {
+        Object attachment = sk.attachment();
+        return (attachment instanceof DaapConnectionNIO)
+                && ((DaapConnectionNIO) attachment).isAudioStream();
+    }
+
+    /** Returns the DAAP connections of this reactor */
+    private List<DaapConnectionNIO> getDaapConnections() {
+        List<DaapConnectionNIO> list = new ArrayList<DaapConnectionNIO>();
+        for (DaapConnectionNIO connection : connections) {
+            if (connection.isDaapConnection()) {
+                list.add(connection);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * The actual NIO run loop
+     *
+     * @throws IOException
+     */
+    private void process() throws IOException {
+
+        int n = -1;
+
+        while (running) {
+
+            wakenUp.set(false);
+
+            try {
+                if (commands.isEmpty()) {
+                    n = selector.select(scheduler.getTimeout(System
+                            .currentTimeMillis(), TIMEOUT));
+                } else {
+                    n = selector.selectNow();
+                }
+            } catch (NullPointerException err) {
+                continue;
+            } catch (CancelledKeyException err) {
+                continue;
+            }
+
+            processCommands();
+
+            if (!running) {
+                break;
+            }
+
+            if (disconnectAll) {
+                processDisconnectAll();
+                selector.selectedKeys().clear();
+                scheduler.clear();
+                disconnectAll = false;
+                continue; // as all clients were disconnected
+                // there is nothing more to do
+            }
+
+            if (!libraryQueue.isEmpty()) {
+                processUpdate();
+            }
+
+            if (n > 0) {
+
+                for (Iterator<SelectionKey> it = selector.selectedKeys()
+                        .iterator(); it.hasNext() && running;) {
+
+                    SelectionKey sk = it.next();
+                    it.remove();
+
+                    try {
+                        if (sk.isAcceptable()) {
+                            server.processAccept(sk);
+
+                        } else {
+
+                            if (sk.isReadable()) {
+                                try {
+                                    processRead(sk);
+                                } catch (IOException err) {
+                                    cancel(sk);
+                                    LOG.error(
+                                            "An exception occured in processRead()",
+                                            err);
+                                }
+                            }
+
+                            if (sk.isWritable()) {
+                                if (isAudioStream(sk)) {
+                                    // Audio streams are served after
+                                    // all keys were processed
+                                    streams.add(sk);
+
+                                } else {
+                                    try {
+                                        processWrite(sk);
+                                    } catch (IOException err) {
+                                        cancel(sk);
+                                        LOG.error(
+                                                "An exception occured in processWrite()",
+                                                err);
+                                    }
+                                }
+                            }
+                        }
+                    } catch (CancelledKeyException err) {
+                        continue;
+                    }
+                }
+            }
+
+            if (!streams.isEmpty()) {
+                processStreams();
+            }
+
+            processParked();
+
+            // Kill the gremlins
+            processTimeout();
+        }
+    }
+
+    /**
+     * Closes the Selector and all connections of this reactor
+     */
+    private void close() {
+        running = false;
+
+        for (SelectionKey sk : selector.keys()) {
+            if (sk.channel() instanceof SocketChannel) {
+                cancel(sk);
+            } else {
+                sk.cancel();
+            }
+        }
+
+        try {
+            // Note: throws on OSX always "IOEx: Bad file descriptor"
+            selector.close();
+        } catch (IOException err) {
+            LOG.error("Selector.close()", err);
+        }
+
+        Command command = null;
+        while ((command = commands.poll()) != null) {
+            command.discard();
+        }
+
+        libraryQueue.clear();
+        disconnectAll = false;
+
+        streams.clear();
+        scheduler.clear();
+
+        connections.clear();
+    }
+
+    /**
+     * The run loop
+     */
+    public void run() {
+        try {
+            process();
+        } catch (IOException err) {
+            LOG.error("IOException", err);
+            throw new RuntimeException(err);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * A command that is executed on the reactor's Thread
+     */
+    private abstract static class Command {
+
+        /** Executes the command */
+        abstract void execute();
+
+        /** Called instead of execute() if the reactor is shutting down */
+        void discard() {
+        }
+    }
+}
@@ -18,14 +18,9 @@
 package org.ardverk.daap.nio;
 
 import java.io.IOException;
-import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
 
-import org.apache.http.Header;
-import org.apache.http.message.BasicHeader;
+import org.ardverk.daap.DaapHttpParser;
 import org.ardverk.daap.DaapRequest;
 
 /**
@@ -36,7 +31,7 @@ import org.ardverk.daap.DaapRequest;
  */
 class DaapRequestReaderNIO {
 
-    // The max size of a header row in bytes
+    // The max size of a request head in bytes
     private static final int MAX_HEADER_SIZE = 4096;
 
     private long bytesRead = 0;
@@ -44,90 +39,71 @@ class DaapRequestReaderNIO {
     private DaapConnectionNIO connection;
     private ByteBuffer in;
 
-    private String requestLine;
-    private List<Header> headers;
+    /** The start of the current request head in the buffer */
+    private int start = 0;
 
-    private DaapLineReaderNIO lineReader;
-
-    private LinkedList<DaapRequest> pending;
+    private final DaapHttpParser parser = new DaapHttpParser();
 
     /** Creates a new instance of DaapRequestReader */
     DaapRequestReaderNIO(DaapConnectionNIO connection) {
 
         this.connection = connection;
 
+        // [start, position) holds the data that was not yet consumed
         in = ByteBuffer.allocate(MAX_HEADER_SIZE);
-        in.clear();
-        in.flip();
-
-        lineReader = new DaapLineReaderNIO();
-        headers = new ArrayList<Header>();
-        pending = new LinkedList<DaapRequest>();
     }
 
     public long getBytesRead() {
         return bytesRead;
     }
 
+    /**
+     * Returns the next request or null if more data is needed. Pipelined
+     * requests are parsed from the buffer without reading from the Channel.
+     */
     public DaapRequest read() throws IOException {
 
-        DaapRequest ret = null;
-
-        if (pending.isEmpty() == false)
-            ret = pending.removeFirst();
-
-        String line = null;
-
-        while ((line = lineReader.read(in, connection.getReadChannel())) != null) {
-
-            bytesRead += in.position();
+        if (parser.parse(in.array(), start, in.position())) {
+            return createRequest();
+        }
 
-            if (requestLine == null) {
-                requestLine = line;
+        // Move the partial request to the beginning of the buffer
+        if (start > 0) {
+            int length = in.position() - start;
+            System.arraycopy(in.array(), start, in.array(), 0, length);
+            in.position(length);
+            start = 0;
+        }
 
-            } else {
-                int p = line.indexOf(':');
+        if (!in.hasRemaining()) {
+            throw new IOException("Header too large");
+        }
 
-                if (p == -1) {
-                    requestLine = null;
-                    headers.clear();
-                    lineReader = null;
-                    throw new IOException("Malformed Header");
-                }
+        int len = connection.getReadChannel().read(in);
 
-                String name = line.substring(0, p).trim();
-                String value = line.substring(++p).trim();
-                headers.add(new BasicHeader(name, value));
-            }
+        if (len < 0) {
+            throw new IOException("Socket closed");
         }
 
-        if (lineReader.isComplete()) {
+        bytesRead += len;
 
-            DaapRequest request = null;
+        if (parser.parse(in.array(), start, in.position())) {
+            return createRequest();
+        }
 
-            try {
-                request = new DaapRequest(connection, requestLine);
-                request.addHeaders(headers);
-            } catch (URISyntaxException e) {
-                IOException ioe = new IOException();
-                ioe.initCause(e);
-                throw ioe;
-            } finally {
-                requestLine = null;
-                headers.clear();
-            }
+        return null;
+    }
 
-            if (ret == null) {
-                ret = request;
-            } else {
-                pending.addLast(request);
+    private DaapRequest createRequest() throws IOException {
+        try {
+            return parser.createRequest(connection);
+        } finally {
+            start += parser.getLength();
+            if (start == in.position()) {
+                in.clear();
+                start = 0;
             }
-        } else if (headers.size() >= 64) {
-            requestLine = null;
-            headers.clear();
-            throw new IOException("Header too large");
+            parser.reset();
         }
-
-        return ret;
     }
 }
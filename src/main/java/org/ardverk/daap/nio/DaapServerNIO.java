@@ -24,26 +24,32 @@ import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.nio.channels.CancelledKeyException;
-import java.nio.channels.ClosedChannelException;
-import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.ardverk.daap.DaapConfig;
 import org.ardverk.daap.DaapConnection;
 import org.ardverk.daap.DaapServer;
 import org.ardverk.daap.DaapSession;
-import org.ardverk.daap.DaapStreamException;
 import org.ardverk.daap.Library;
 import org.ardverk.daap.SessionId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * A DAAP server written with NIO and a single Thread.
+ * A DAAP server written with NIO. By default all I/O is done on a single
+ * Thread. See {@link DaapConfig#getSelectorThreads()} to distribute the
+ * connections over multiple Selectors (and Threads).
  * 
  * @author Roger Kapsi
  */
@@ -58,16 +64,23 @@ public class DaapServerNIO extends DaapServer<DaapConnectionNIO> {
     /** The ServerSocket */
     private ServerSocketChannel ssc = null;
 
-    /** Selector for ServerSocket and Sockets */
+    /** Selector of the acceptor (multi-reactor mode only) */
     private Selector selector = null;
 
-    /** Flag to indicate that all clients shall be disconnected */
-    private boolean disconnectAll = false;
+    /** The reactors that handle the Sockets */
+    private volatile DaapReactorNIO[] reactors = null;
 
-    /**
-     * Flag to indicate there are Library updates available in the queue
-     */
-    private boolean update = false;
+    /** Round-robin counter for the reactors */
+    private int nextReactor = 0;
+
+    /** Executor for request processing or null */
+    private volatile ThreadPoolExecutor processorExecutor = null;
+
+    /** Executor that reads audio files ahead or null */
+    private volatile ThreadPoolExecutor readAheadExecutor = null;
+
+    /** Buffers for the read-ahead */
+    private volatile DaapBufferPoolNIO bufferPool = null;
 
     /**
      * Creates a new DAAP server with Library and {@see SimpleConfig}
@@ -130,8 +143,20 @@ public class DaapServerNIO extends DaapServer<DaapConnectionNIO> {
         }
     }
 
-    protected synchronized void update() {
-        update = true;
+    /**
+     * Clears the response cache and hands the Library patch to every
+     * reactor. Unlike the super class this doesn't synchronize on the server
+     * so that committing Threads never wait for the Selector Threads.
+     */
+    public void libraryChanged(Library library, Library branch) {
+        responseCache.clear();
+
+        DaapReactorNIO[] reactors = this.reactors;
+        if (reactors != null) {
+            for (DaapReactorNIO reactor : reactors) {
+                reactor.update(branch);
+            }
+        }
     }
 
     /**
@@ -139,6 +164,16 @@ public class DaapServerNIO extends DaapServer<DaapConnectionNIO> {
      */
     public synchronized void stop() {
         running = false;
+
+        if (reactors != null) {
+            for (DaapReactorNIO reactor : reactors) {
+                reactor.stop();
+            }
+        }
+
+        if (selector != null) {
+            selector.wakeup();
+        }
     }
 
     /**
@@ -147,13 +182,11 @@ public class DaapServerNIO extends DaapServer<DaapConnectionNIO> {
     private synchronized void close() {
 
         running = false;
-        update = false;
-        disconnectAll = false;
 
         if (selector != null) {
 
             for (SelectionKey key : selector.keys())
-                cancel(key);
+                key.cancel();
 
             try {
                 // Note: throws on OSX always "IOEx: Bad file descriptor"
@@ -174,6 +207,8 @@ public class DaapServerNIO extends DaapServer<DaapConnectionNIO> {
             ssc = null;
         }
 
+        reactors = null;
+
         sessionIds.clear();
         connections.clear();
         libraryQueue.clear();
@@ -183,29 +218,13 @@ public class DaapServerNIO extends DaapServer<DaapConnectionNIO> {
      * Disconnects all DAAP and Stream connections
      */
     public synchronized void disconnectAll() {
-        disconnectAll = true;
-    }
-
-    /**
-     * Cancel SelesctionKey, close Channel and "free" the attachment
-     */
-    private void cancel(SelectionKey sk) {
-
-        sk.cancel();
-
-        SelectableChannel channel = sk.channel();
-
-        try {
-            channel.close();
-        } catch (IOException err) {
-            LOG.error("Channel.close()", err);
+        if (reactors != null) {
+            for (DaapReactorNIO reactor : reactors) {
+                reactor.disconnectAll();
+            }
         }
 
-        DaapConnection connection = (DaapConnection) sk.attachment();
-
-        if (connection != null) {
-            closeConnection(connection);
-        }
+        libraryQueue.clear();
     }
 
     protected void closeConnection(DaapConnection connection) {
@@ -225,11 +244,11 @@ public class DaapServerNIO extends DaapServer<DaapConnectionNIO> {
     }
 
     /**
-     * Accept an icoming connection
+     * Accept an icoming connection and hand it over to the next reactor
      * 
      * @throws IOException
      */
-    private void processAccept(SelectionKey sk) throws IOException {
+    void processAccept(SelectionKey sk) throws IOException {
 
         if (!sk.isValid())
             return;
@@ -249,8 +268,8 @@ public class DaapServerNIO extends DaapServer<DaapConnectionNIO> {
                 DaapConnectionNIO connection = new DaapConnectionNIO(this,
                         channel);
 
-                channel.register(selector, SelectionKey.OP_READ, connection);
                 addPendingConnection(connection);
+                nextReactor().register(connection);
 
             } else {
                 channel.close();
@@ -265,255 +284,208 @@ public class DaapServerNIO extends DaapServer<DaapConnectionNIO> {
     }
 
     /**
-     * Read data
-     * 
-     * @throws IOException
+     * Returns the reactor that shall handle the next connection
      */
-    private void processRead(SelectionKey sk) throws IOException {
-
-        if (!sk.isValid())
-            return;
-
-        DaapConnectionNIO connection = (DaapConnectionNIO) sk.attachment();
-
-        boolean keepAlive = false;
-        keepAlive = connection.read();
-
-        if (keepAlive) {
-            sk.interestOps(connection.interrestOps());
-        } else {
-            cancel(sk);
-        }
+    private DaapReactorNIO nextReactor() {
+        DaapReactorNIO[] reactors = this.reactors;
+        int index = (nextReactor++ & Integer.MAX_VALUE) % reactors.length;
+        return reactors[index];
     }
 
     /**
-     * Write data
+     * The acceptor loop that is used if there's more than one reactor
      * 
      * @throws IOException
      */
-    private void processWrite(SelectionKey sk) throws IOException {
+    private void process() throws IOException {
 
-        if (!sk.isValid())
-            return;
+        int n = -1;
 
-        DaapConnectionNIO connection = (DaapConnectionNIO) sk.attachment();
+        while (isRunning()) {
 
-        boolean keepAlive = false;
+            try {
+                n = selector.select(TIMEOUT);
+            } catch (NullPointerException err) {
+                continue;
+            } catch (CancelledKeyException err) {
+                continue;
+            }
 
-        try {
-            keepAlive = connection.write();
-        } catch (DaapStreamException err) {
-
-            // Broken pipe: User pressed Pause, fast-foward
-            // or whatever. Just close the connection and go
-            // ahead
-            keepAlive = false;
-            LOG.error("DaapStreamException", err);
-        }
+            if (n > 0) {
 
-        if (keepAlive) {
-            sk.interestOps(connection.interrestOps());
+                for (Iterator<SelectionKey> it = selector.selectedKeys()
+                        .iterator(); it.hasNext();) {
 
-        } else {
-            cancel(sk);
-        }
-    }
+                    SelectionKey sk = it.next();
+                    it.remove();
 
-    /**
-     * Disconnects all clients from this server
-     */
-    private void processDisconnectAll() {
-        for (SelectionKey sk : selector.keys()) {
-            SelectableChannel channel = sk.channel();
-            if (channel instanceof SocketChannel) {
-                cancel(sk);
+                    try {
+                        if (sk.isAcceptable()) {
+                            processAccept(sk);
+                        }
+                    } catch (CancelledKeyException err) {
+                        continue;
+                    }
+                }
             }
         }
 
-        libraryQueue.clear();
+        // close() is in finally of run() {}
     }
 
     /**
-     * Notify all clients about an update of the Library
+     * The run loop
      */
-    private void processUpdate() {
+    public void run() {
 
-        for (DaapConnectionNIO connection : getDaapConnections()) {
-            SelectionKey sk = connection.getChannel().keyFor(selector);
+        Thread[] threads = null;
 
-            try {
+        try {
 
-                for (int i = 0; i < libraryQueue.size(); i++) {
-                    connection.enqueueLibrary(libraryQueue.get(i));
+            synchronized (this) {
+                if (running) {
+                    LOG.error("DaapServerNIO is already running.");
+                    return;
                 }
 
-                connection.update();
-                if (sk.isValid()) {
-                    try {
-                        sk.interestOps(SelectionKey.OP_READ
-                                | SelectionKey.OP_WRITE);
-                    } catch (CancelledKeyException err) {
-                        cancel(sk);
-                        LOG.error("SelectionKey.interestOps()", err);
-                    }
+                int count = Math.max(1, config.getSelectorThreads());
+
+                reactors = new DaapReactorNIO[count];
+                for (int i = 0; i < reactors.length; i++) {
+                    reactors[i] = new DaapReactorNIO(this);
                 }
-            } catch (ClosedChannelException err) {
-                cancel(sk);
-                LOG.error("DaapConnection.update()", err);
-            } catch (IOException err) {
-                cancel(sk);
-                LOG.error("DaapConnection.update()", err);
-            }
-        }
 
-        libraryQueue.clear();
-    }
+                int processorThreads = config.getProcessorThreads();
+                if (processorThreads > 0) {
+                    processorExecutor = createProcessorExecutor(
+                            processorThreads, config.getProcessorQueueSize());
+                }
 
-    /**
-     * 1) Disconnect all connections that are in undefined state and that have
-     * exceeded their timeout.
-     * 
-     * 2) Empty the libraryQueue of daap connections if they've exceeded their
-     * timeout. Some clients do not support live updates and this will prevent
-     * us from running out of memory if the client doesn't fetch its updates).
-     */
-    protected void processTimeout() {
-        for (DaapConnectionNIO connection : getPendingConnections()) {
-            if (connection.timeout()) {
-                cancelConnection(connection);
-            }
-        }
+                bufferPool = new DaapBufferPoolNIO(Math.max(config
+                        .getBufferSize(), config.getReadAheadSize()),
+                        2 * config.getMaxConnections());
+
+                int readAheadThreads = config.getReadAheadThreads();
+                if (readAheadThreads > 0) {
+                    readAheadExecutor = new ThreadPoolExecutor(
+                            readAheadThreads, readAheadThreads, 60L,
+                            TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(),
+                            newThreadFactory("DaapReadAheadThread"));
+                }
 
-        for (DaapConnectionNIO connection : getDaapConnections()) {
-            if (connection.timeout()) {
-                connection.clearLibraryQueue();
+                running = true;
             }
-        }
-    }
 
-    protected void cancelConnection(DaapConnectionNIO connection) {
-        SelectionKey sk = connection.getChannel().keyFor(selector);
-        cancel(sk);
-    }
+            if (reactors.length == 1) {
 
-    /**
-     * The actual NIO run loop
-     * 
-     * @throws IOException
-     */
-    private void process() throws IOException {
+                // Single threaded: the reactor accepts the
+                // connections by itself
+                reactors[0].registerAcceptor(ssc);
+                reactors[0].run();
 
-        int n = -1;
+            } else {
 
-        running = true;
-        update = false;
-        disconnectAll = false;
+                threads = new Thread[reactors.length];
+                for (int i = 0; i < reactors.length; i++) {
+                    threads[i] = new Thread(reactors[i], "DaapReactorThread-"
+                            + (i + 1));
+                    threads[i].setDaemon(true);
+                    threads[i].start();
+                }
 
-        while (running) {
+                selector = Selector.open();
+                ssc.register(selector, SelectionKey.OP_ACCEPT);
 
-            try {
-                n = selector.select(TIMEOUT);
-            } catch (NullPointerException err) {
-                continue;
-            } catch (CancelledKeyException err) {
-                continue;
+                process();
             }
 
-            synchronized (this) {
-
-                if (!running) {
-                    break;
-                }
-
-                if (disconnectAll) {
-                    processDisconnectAll();
-                    disconnectAll = false;
-                    continue; // as all clients were disconnected
-                    // there is nothing more to do
-                }
+        } catch (IOException err) {
+            LOG.error("IOException", err);
+            throw new RuntimeException(err);
 
-                if (update) {
-                    processUpdate();
-                    update = false;
-                }
+        } finally {
+            stop();
 
-                if (n > 0) {
-
-                    for (Iterator<SelectionKey> it = selector.selectedKeys()
-                            .iterator(); it.hasNext() && running;) {
-
-                        SelectionKey sk = it.next();
-                        it.remove();
-
-                        try {
-                            if (sk.isAcceptable()) {
-                                processAccept(sk);
-
-                            } else {
-
-                                if (sk.isReadable()) {
-                                    try {
-                                        processRead(sk);
-                                    } catch (IOException err) {
-                                        cancel(sk);
-                                        LOG
-                                                .error(
-                                                        "An exception occured in processRead()",
-                                                        err);
-                                    }
-                                }
-
-                                if (sk.isWritable()) {
-                                    try {
-                                        processWrite(sk);
-                                    } catch (IOException err) {
-                                        cancel(sk);
-                                        LOG
-                                                .error(
-                                                        "An exception occured in processWrite()",
-                                                        err);
-                                    }
-                                }
-                            }
-                        } catch (CancelledKeyException err) {
-                            continue;
-                        }
+            if (threads != null) {
+                for (Thread thread : threads) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException err) {
+                        LOG.error("InterruptedException", err);
+                        Thread.currentThread().interrupt();
+                        break;
                     }
                 }
+            }
 
-                // Kill the gremlins
-                processTimeout();
+            ThreadPoolExecutor executor = processorExecutor;
+            if (executor != null) {
+                executor.shutdownNow();
+                processorExecutor = null;
             }
-        }
 
-        // close() is in finally of run() {}
+            executor = readAheadExecutor;
+            if (executor != null) {
+                executor.shutdownNow();
+                readAheadExecutor = null;
+            }
+
+            close();
+        }
     }
 
     /**
-     * The run loop
+     * Creates the bounded Executor that processes requests off the Selector
+     * Threads. If its queue is full the calling Selector Thread processes the
+     * request by itself.
      */
-    public void run() {
+    private static ThreadPoolExecutor createProcessorExecutor(int threads,
+            int queueSize) {
 
-        try {
+        return new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                newThreadFactory("DaapProcessorThread"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
 
-            if (running) {
-                LOG.error("DaapServerNIO is already running.");
-                return;
+    /**
+     * Creates a ThreadFactory for daemon Threads
+     */
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-"
+                        + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
             }
+        };
+    }
 
-            selector = Selector.open();
-
-            ssc.register(selector, SelectionKey.OP_ACCEPT);
-
-            process();
+    /**
+     * Returns the Executor that processes requests or null if requests are
+     * processed on the Selector Thread
+     */
+    Executor getProcessorExecutor() {
+        return processorExecutor;
+    }
 
-        } catch (IOException err) {
-            LOG.error("IOException", err);
-            throw new RuntimeException(err);
+    /**
+     * Returns the Executor that reads audio files ahead or null if the
+     * streams use transferTo() on the Selector Thread only
+     */
+    Executor getReadAheadExecutor() {
+        return readAheadExecutor;
+    }
 
-        } finally {
-            close();
-        }
+    /**
+     * Returns the buffers for the read-ahead
+     */
+    DaapBufferPoolNIO getBufferPool() {
+        return bufferPool;
     }
 
     /* Make them accessible for classes in this package */
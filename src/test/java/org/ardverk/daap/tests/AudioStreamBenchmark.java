@@ -0,0 +1,215 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap.tests;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ardverk.daap.DaapConfig;
+import org.ardverk.daap.io.IoUtils;
+
+/**
+ * Compares the ways of streaming a file to a blocking Socket: the 512 byte
+ * copy loop DaapAudioResponseBIO used to use, FileChannel.transferTo() into
+ * a Channel that wraps the Socket's OutputStream and transferTo() into a
+ * SocketChannel (sendfile on Linux). Reports the aggregate throughput and
+ * the sender CPU time per stream.
+ *
+ * <pre>
+ * java org.ardverk.daap.tests.AudioStreamBenchmark [streams] [file size in MB]
+ * </pre>
+ */
+public class AudioStreamBenchmark {
+
+    private static final String COPY = "copy-512";
+
+    private static final String STREAM_CHANNEL = "transferTo-stream";
+
+    private static final String SOCKET_CHANNEL = "transferTo-socketchannel";
+
+    public static void main(String[] args) throws Exception {
+        int streams = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+
+        File file = createFile(size * 1024L * 1024L);
+        try {
+            System.out.println("mode, streams, MB/s, cpu ms/stream");
+
+            String[] modes = { COPY, STREAM_CHANNEL, SOCKET_CHANNEL };
+
+            // Warm up
+            for (String mode : modes) {
+                run(mode, file, streams);
+            }
+
+            for (String mode : modes) {
+                long[] result = run(mode, file, streams);
+
+                double seconds = result[0] / 1000000000.0;
+                double mb = (file.length() * streams) / (1024.0 * 1024.0);
+
+                System.out.println(mode + ", " + streams + ", "
+                        + (long) (mb / seconds) + ", "
+                        + (result[1] / streams / 1000000L));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static File createFile(long size) throws IOException {
+        File file = File.createTempFile("AudioStreamBenchmark", ".wav");
+        file.deleteOnExit();
+
+        byte[] data = new byte[64 * 1024];
+        OutputStream out = new FileOutputStream(file);
+        try {
+            for (long written = 0; written < size; written += data.length) {
+                out.write(data);
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Returns the elapsed time and the sum of the sender CPU time in
+     * nanoseconds.
+     */
+    private static long[] run(final String mode, final File file, int streams)
+            throws Exception {
+
+        final ServerSocket server;
+        if (mode == SOCKET_CHANNEL) {
+            server = ServerSocketChannel.open().socket();
+        } else {
+            server = new ServerSocket();
+        }
+        server.bind(new InetSocketAddress("localhost", 0), streams);
+
+        final CountDownLatch done = new CountDownLatch(streams * 2);
+        final AtomicLong cpuTime = new AtomicLong();
+
+        Thread[] senders = new Thread[streams];
+        for (int i = 0; i < streams; i++) {
+            senders[i] = new Thread(new Runnable() {
+                public void run() {
+                    Socket socket = null;
+                    try {
+                        socket = server.accept();
+                        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+                        long cpu = bean.getCurrentThreadCpuTime();
+                        send(mode, file, socket);
+                        cpuTime.addAndGet(bean.getCurrentThreadCpuTime() - cpu);
+                    } catch (IOException err) {
+                        err.printStackTrace();
+                    } finally {
+                        IoUtils.close(socket);
+                        done.countDown();
+                    }
+                }
+            });
+            senders[i].start();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < streams; i++) {
+            final Socket socket = new Socket("localhost", server
+                    .getLocalPort());
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        drain(socket);
+                    } catch (IOException err) {
+                        err.printStackTrace();
+                    } finally {
+                        IoUtils.close(socket);
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        server.close();
+
+        return new long[] { elapsed, cpuTime.get() };
+    }
+
+    private static void send(String mode, File file, Socket socket)
+            throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            if (mode == COPY) {
+                OutputStream out = socket.getOutputStream();
+                byte[] buffer = new byte[512];
+                int len = -1;
+                while ((len = in.read(buffer, 0, buffer.length)) != -1) {
+                    out.write(buffer, 0, len);
+                }
+                out.flush();
+
+            } else {
+                WritableByteChannel channel = socket.getChannel();
+                if (channel == null) {
+                    channel = Channels.newChannel(socket.getOutputStream());
+                }
+
+                FileChannel fileChannel = in.getChannel();
+                long end = fileChannel.size();
+                long burst = Math.min(end,
+                        DaapConfig.DEFAULT_INITIAL_BURST_SIZE);
+                long pos = 0L;
+
+                while (pos < end) {
+                    long count = (pos < burst) ? Math.min(
+                            DaapConfig.DEFAULT_BUFFER_SIZE, burst - pos)
+                            : DaapConfig.DEFAULT_TRANSFER_SIZE;
+                    pos += fileChannel.transferTo(pos, Math.min(count, end
+                            - pos), channel);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void drain(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        byte[] buffer = new byte[64 * 1024];
+        while (in.read(buffer) != -1)
+            ;
+    }
+}
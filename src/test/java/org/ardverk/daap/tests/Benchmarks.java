@@ -0,0 +1,99 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap.tests;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+import org.ardverk.daap.Database;
+import org.ardverk.daap.Playlist;
+import org.ardverk.daap.Song;
+
+/**
+ * What the benchmarks have in common: the allocated bytes of the current
+ * Thread and subclasses that make the item ids visible.
+ */
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Returns the bytes allocated by the current Thread or -1. They're taken
+     * from com.sun.management.ThreadMXBean and aren't available on every
+     * JVM.
+     */
+    static long allocatedBytes() {
+        try {
+            Object bean = ManagementFactory.getThreadMXBean();
+            Method method = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(bean, Thread.currentThread().getId());
+        } catch (Exception err) {
+            return -1L;
+        }
+    }
+
+    static class BenchmarkDatabase extends Database {
+
+        private final BenchmarkPlaylist masterPlaylist;
+
+        public BenchmarkDatabase(String name) {
+            this(name, new BenchmarkPlaylist(name));
+        }
+
+        private BenchmarkDatabase(String name,
+                BenchmarkPlaylist masterPlaylist) {
+            super(name, masterPlaylist);
+            this.masterPlaylist = masterPlaylist;
+        }
+
+        @Override
+        public long getItemId() {
+            return super.getItemId();
+        }
+
+        public long getMasterPlaylistId() {
+            return masterPlaylist.getItemId();
+        }
+    }
+
+    static class BenchmarkPlaylist extends Playlist {
+
+        public BenchmarkPlaylist(String name) {
+            super(name);
+        }
+
+        @Override
+        public long getItemId() {
+            return super.getItemId();
+        }
+    }
+
+    static class BenchmarkSong extends Song {
+
+        public BenchmarkSong(String name) {
+            super(name);
+        }
+
+        @Override
+        public long getItemId() {
+            return super.getItemId();
+        }
+    }
+}
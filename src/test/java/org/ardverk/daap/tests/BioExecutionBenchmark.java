@@ -0,0 +1,151 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap.tests;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ardverk.daap.DaapConfig;
+import org.ardverk.daap.Library;
+import org.ardverk.daap.bio.DaapServerBIO;
+import org.ardverk.daap.io.IoUtils;
+
+/**
+ * Compares the connection Thread models of DaapServerBIO. Opens a number of
+ * idle keep-alive DAAP connections and reports how many were served, the
+ * number of live platform Threads and the heap usage. The stacks of platform
+ * Threads are not part of the heap, so the Thread count is the better
+ * indicator for the memory that is tied up in idle connections.
+ *
+ * <pre>
+ * java org.ardverk.daap.tests.BioExecutionBenchmark [connections] [port]
+ * </pre>
+ */
+public class BioExecutionBenchmark {
+
+    private static final byte[] SERVER_INFO = ("GET /server-info HTTP/1.1\r\n"
+            + "Client-DAAP-Version: 3.0\r\n" + "Host: localhost\r\n\r\n")
+            .getBytes();
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 13689;
+
+        Object[] modes = { DaapConfig.THREAD_PER_CONNECTION,
+                DaapConfig.VIRTUAL_THREADS, DaapConfig.BOUNDED_EXECUTOR };
+
+        System.out.println("mode, connections, served, threads, heap (KB)");
+
+        for (Object mode : modes) {
+            run(mode, connections, port++);
+        }
+    }
+
+    private static void run(Object mode, int connections, int port)
+            throws Exception {
+
+        DaapConfig config = new DaapConfig();
+        config.setInetSocketAddress(InetAddress.getByName("localhost"), port);
+        config.setBacklog(connections);
+        config.setMaxConnections(connections + 1);
+        config.setConnectionThreads(connections);
+        config.setConnectionExecution(mode);
+
+        DaapServerBIO server = new DaapServerBIO(new Library("Benchmark"),
+                config);
+        server.bind();
+
+        Thread thread = new Thread(server, "BioExecutionBenchmark");
+        thread.setDaemon(true);
+        thread.start();
+
+        long heapBefore = usedHeap();
+        int threadsBefore = ManagementFactory.getThreadMXBean()
+                .getThreadCount();
+
+        List<Socket> sockets = new ArrayList<Socket>();
+        int served = 0;
+
+        try {
+            for (int i = 0; i < connections; i++) {
+                Socket socket = new Socket("localhost", port);
+                sockets.add(socket);
+
+                if (serverInfo(socket)) {
+                    served++;
+                }
+            }
+
+            long heap = usedHeap() - heapBefore;
+            int threads = ManagementFactory.getThreadMXBean().getThreadCount()
+                    - threadsBefore;
+
+            System.out.println(mode + ", " + connections + ", " + served + ", "
+                    + threads + ", " + (heap / 1024L));
+
+        } finally {
+            for (Socket socket : sockets) {
+                IoUtils.close(socket);
+            }
+
+            server.stop();
+            thread.join(5000L);
+        }
+    }
+
+    /**
+     * Sends a server-info request and returns true if the server answered
+     * with 200 OK. The connection is kept open.
+     */
+    private static boolean serverInfo(Socket socket) throws IOException {
+        socket.setSoTimeout(10000);
+
+        OutputStream out = socket.getOutputStream();
+        out.write(SERVER_INFO);
+        out.flush();
+
+        InputStream in = socket.getInputStream();
+        byte[] status = new byte[12];
+        int length = 0;
+        while (length < status.length) {
+            int read = in.read(status, length, status.length - length);
+            if (read == -1) {
+                return false;
+            }
+            length += read;
+        }
+
+        return new String(status, "ISO-8859-1").equals("HTTP/1.1 200");
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            memory.gc();
+            Thread.sleep(100L);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
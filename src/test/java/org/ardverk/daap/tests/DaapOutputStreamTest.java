@@ -0,0 +1,172 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.ardverk.daap.DaapOutputStream;
+import org.ardverk.daap.DaapUtil;
+import org.ardverk.daap.DmapWriter;
+import org.ardverk.daap.chunks.Chunk;
+import org.ardverk.daap.chunks.ContainerChunk;
+import org.ardverk.daap.chunks.EncodedChunk;
+import org.ardverk.daap.chunks.impl.DatabaseSongs;
+import org.ardverk.daap.chunks.impl.DmapProtocolVersion;
+import org.ardverk.daap.chunks.impl.HasVideo;
+import org.ardverk.daap.chunks.impl.ItemId;
+import org.ardverk.daap.chunks.impl.ItemName;
+import org.ardverk.daap.chunks.impl.Listing;
+import org.ardverk.daap.chunks.impl.ListingItem;
+import org.ardverk.daap.chunks.impl.PersistentId;
+import org.ardverk.daap.chunks.impl.SongDateAdded;
+import org.ardverk.daap.chunks.impl.SongRelativeVolume;
+import org.ardverk.daap.chunks.impl.SongUserRating;
+import org.ardverk.daap.chunks.impl.SongYear;
+
+public class DaapOutputStreamTest extends TestCase {
+
+    public static TestSuite suite() {
+        return new TestSuite(DaapOutputStreamTest.class);
+    }
+
+    private static final String[] NAMES = { null, "", "Song",
+            "\u00c6\u00f8\u00e5", "\u65e5\u672c\u8a9e", "\ud834\udd1e Clef" };
+
+    public void testRandomTrees() throws Exception {
+        Random random = new Random(4711L);
+
+        for (int i = 0; i < 1000; i++) {
+            Chunk chunk = createContainer(random, 0);
+            byte[] expected = reference(chunk);
+
+            assertTrue(Arrays.equals(expected, DaapUtil.serialize(chunk,
+                    false)));
+
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DaapOutputStream out = new DaapOutputStream(buffer);
+            out.writeChunk(chunk);
+            out.close();
+            assertTrue(Arrays.equals(expected, buffer.toByteArray()));
+
+            // Starts small and grows once
+            DmapWriter writer = new DmapWriter(16);
+            assertTrue(Arrays.equals(expected, writer.writeChunk(chunk)
+                    .toByteArray()));
+            assertEquals(expected.length, writer.getBuffer().remaining());
+            assertTrue(writer.capacity() <= Math.max(32, expected.length));
+        }
+    }
+
+    public void testLeaves() throws Exception {
+        Random random = new Random(42L);
+
+        for (int i = 0; i < 100; i++) {
+            Chunk chunk = createLeaf(random);
+            assertTrue(Arrays.equals(reference(chunk), DaapUtil.serialize(
+                    chunk, false)));
+        }
+
+        assertEquals(0, DaapUtil.serialize(new HasVideo(false), false).length);
+    }
+
+    private static ContainerChunk createContainer(Random random, int depth)
+            throws IOException {
+        ContainerChunk container;
+        switch (depth) {
+            case 0:
+                container = new DatabaseSongs();
+                break;
+            case 1:
+                container = new Listing();
+                break;
+            default:
+                container = new ListingItem();
+                break;
+        }
+
+        int count = random.nextInt(7);
+        for (int i = 0; i < count; i++) {
+            int n = random.nextInt(10);
+            if (depth < 3 && n < 3) {
+                container.add(createContainer(random, depth + 1));
+            } else if (n == 3) {
+                ContainerChunk child = createContainer(random, 2);
+                container.add(new EncodedChunk(child, reference(child)));
+            } else {
+                container.add(createLeaf(random));
+            }
+        }
+
+        return container;
+    }
+
+    private static Chunk createLeaf(Random random) {
+        switch (random.nextInt(9)) {
+            case 0:
+                return new ItemId(random.nextInt() & 0xFFFFFFFFL);
+            case 1:
+                return new ItemName(NAMES[random.nextInt(NAMES.length)]);
+            case 2:
+                return new HasVideo(random.nextBoolean());
+            case 3:
+                return new SongUserRating(random.nextInt(256));
+            case 4:
+                return new SongYear(random.nextInt(65536));
+            case 5:
+                return new SongRelativeVolume(random.nextInt(256) - 128);
+            case 6:
+                return new SongDateAdded(random.nextInt(Integer.MAX_VALUE));
+            case 7:
+                return new PersistentId(random.nextLong());
+            default:
+                return new DmapProtocolVersion(random.nextInt(256), random
+                        .nextInt(256), random.nextInt(256));
+        }
+    }
+
+    /**
+     * What DaapOutputStream used to do: each container is written into a
+     * buffer of its own and copied into its parent.
+     */
+    private static byte[] reference(Chunk chunk) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DaapOutputStream out = new DaapOutputStream(buffer);
+
+        if (chunk instanceof ContainerChunk) {
+            ByteArrayOutputStream children = new ByteArrayOutputStream();
+            for (Chunk child : (ContainerChunk) chunk) {
+                children.write(reference(child));
+            }
+
+            out.writeContentCode(chunk.getContentCode());
+            out.writeLength(children.size());
+            out.write(children.toByteArray());
+        } else {
+            out.writeChunk(chunk);
+        }
+
+        out.close();
+        return buffer.toByteArray();
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.ardverk.daap.DaapHttpParser;
+import org.ardverk.daap.DaapRequest;
+import org.ardverk.daap.DaapUtil;
+
+public class DaapRequestTest extends TestCase {
+
+    public static TestSuite suite() {
+        return new TestSuite(DaapRequestTest.class);
+    }
+
+    public void testParsedHeaders() throws Exception {
+        byte[] head = ("GET /server-info HTTP/1.1\r\n"
+                + "accept-encoding: gzip\r\n"
+                + "CONNECTION: keep-alive\r\n"
+                + "Client-Daap-Version: 3.0\r\n"
+                + "X-Custom: foo\r\n"
+                + "Connection: close\r\n\r\n").getBytes("ISO-8859-1");
+
+        DaapHttpParser parser = new DaapHttpParser();
+        assertTrue(parser.parse(head, 0, head.length));
+
+        DaapRequest request = parser.createRequest(null);
+        assertEquals(5, request.getHeaders().size());
+
+        assertEquals("gzip", request.getHeader(DaapRequest.ACCEPT_ENCODING)
+                .getValue());
+        assertEquals("3.0", request.getHeader("client-daap-version")
+                .getValue());
+        assertEquals("foo", request.getHeader("x-custom").getValue());
+        assertNull(request.getHeader(DaapRequest.RANGE));
+        assertNull(request.getHeader("X-Missing"));
+
+        // The first header wins
+        assertEquals("keep-alive", request.getHeader(DaapRequest.CONNECTION)
+                .getValue());
+        assertTrue(request.isGZIPSupported());
+        assertTrue(request.isKeepConnectionAlive());
+    }
+
+    public void testLazyHeaderNames() throws Exception {
+        byte[] head = ("GET /server-info HTTP/1.1\r\n"
+                + "USER-AGENT: iTunes/4.6\r\n"
+                + "X-Custom: foo\r\n\r\n").getBytes("ISO-8859-1");
+
+        DaapHttpParser parser = new DaapHttpParser();
+        assertTrue(parser.parse(head, 0, head.length));
+
+        DaapRequest request = parser.createRequest(null);
+        assertEquals("iTunes/4.6", request.getHeader(DaapRequest.USER_AGENT)
+                .getValue());
+
+        // The known header has the constant as its name and the name of the
+        // other header isn't created until it's asked for
+        Header custom = request.getHeaders().get(1);
+        Field name = custom.getClass().getDeclaredField("name");
+        name.setAccessible(true);
+
+        assertSame(DaapRequest.USER_AGENT, request.getHeaders().get(0)
+                .getName());
+        assertNull(name.get(custom));
+        assertEquals("X-Custom", custom.getName());
+        assertSame(custom, request.getHeader("x-custom"));
+    }
+
+    private static final String REQUEST = "GET /databases/1/items"
+            + "?session-id=1&revision-number=2 HTTP/1.1\r\n"
+            + "Accept-Encoding: gzip\r\n"
+            + "X-Folded: foo\r\n"
+            + "  bar\r\n"
+            + "Connection: close\r\n\r\n";
+
+    public void testParseByteByByte() throws Exception {
+        byte[] head = REQUEST.getBytes("ISO-8859-1");
+
+        DaapHttpParser parser = new DaapHttpParser();
+        for (int i = 1; i < head.length; i++) {
+            assertFalse(parser.parse(head, 0, i));
+        }
+        assertTrue(parser.parse(head, 0, head.length));
+        assertEquals(head.length, parser.getLength());
+
+        assertParsedRequest(parser.createRequest(null));
+    }
+
+    public void testParseSplitAtLineBreaks() throws Exception {
+        byte[] head = REQUEST.getBytes("ISO-8859-1");
+
+        // Splits the request after each CR and each LF. The partial
+        // request is moved within the buffer between two reads like
+        // DaapRequestReaderNIO does.
+        DaapHttpParser parser = new DaapHttpParser();
+        byte[] buffer = new byte[head.length + 64];
+        int start = 32;
+        int end = start;
+        int from = 0;
+        for (int i = 0; i < head.length; i++) {
+            if (head[i] != '\r' && head[i] != '\n') {
+                continue;
+            }
+
+            System.arraycopy(head, from, buffer, end, i + 1 - from);
+            end += i + 1 - from;
+            from = i + 1;
+
+            boolean complete = parser.parse(buffer, start, end);
+            assertEquals(from == head.length, complete);
+
+            if (!complete) {
+                int length = end - start;
+                int offset = (start == 32) ? 0 : 32;
+                System.arraycopy(buffer, start, buffer, offset, length);
+                start = offset;
+                end = offset + length;
+            }
+        }
+
+        assertEquals(head.length, parser.getLength());
+        assertParsedRequest(parser.createRequest(null));
+    }
+
+    public void testPipelinedRequests() throws Exception {
+        byte[] head = ("\r\n" + REQUEST + "GET /server-info HTTP/1.1\r\n"
+                + "Client-DAAP-Version: 3.0\r\n\r\n"
+                + "GET /logout").getBytes("ISO-8859-1");
+
+        DaapHttpParser parser = new DaapHttpParser();
+
+        // Leading empty lines are ignored
+        assertTrue(parser.parse(head, 0, head.length));
+        int start = parser.getLength();
+        assertEquals(2 + REQUEST.length(), start);
+        assertParsedRequest(parser.createRequest(null));
+        parser.reset();
+
+        assertTrue(parser.parse(head, start, head.length));
+        DaapRequest request = parser.createRequest(null);
+        assertTrue(request.isServerInfoRequest());
+        assertEquals(1, request.getHeaders().size());
+        assertEquals("3.0", request.getHeader(DaapRequest.CLIENT_DAAP_VERSION)
+                .getValue());
+        start += parser.getLength();
+        parser.reset();
+
+        // The third request isn't complete yet
+        assertFalse(parser.parse(head, start, head.length));
+    }
+
+    private static void assertParsedRequest(DaapRequest request)
+            throws Exception {
+        assertTrue(request.isDatabaseSongsRequest());
+        assertEquals(1L, request.getDatabaseId());
+        assertEquals(2, request.getRevisionNumber());
+
+        assertEquals(3, request.getHeaders().size());
+        assertTrue(request.isGZIPSupported());
+        assertFalse(request.isKeepConnectionAlive());
+        assertEquals("foo bar", request.getHeader("x-folded").getValue());
+
+        // The parsed Headers are kept if another one is added
+        request.addHeader(new BasicHeader(DaapRequest.RANGE, "bytes=100-"));
+        assertEquals(4, request.getHeaders().size());
+        assertEquals("gzip", request.getHeader(DaapRequest.ACCEPT_ENCODING)
+                .getValue());
+        assertEquals("bytes=100-", request.getHeader(DaapRequest.RANGE)
+                .getValue());
+    }
+
+    public void testEscapedPath() throws Exception {
+        DaapRequest request = new DaapRequest(null, "GET",
+                "/databases/1/items/5%2Emp3?session-id=1", "HTTP/1.1");
+        assertTrue(request.isSongRequest());
+        assertEquals(1L, request.getDatabaseId());
+        assertEquals(5L, request.getItemId());
+
+        request = new DaapRequest(null, "GET",
+                "/%64atabases/1/containers/%32/items?session-id=1"
+                        + "&meta=dmap.itemid%2Cdmap.itemname", "HTTP/1.1");
+        assertTrue(request.isPlaylistSongsRequest());
+        assertEquals(2L, request.getContainerId());
+        assertEquals(2, request.getMeta().size());
+
+        request = new DaapRequest(null, "GET", "/server%2Dinfo", "HTTP/1.1");
+        assertTrue(request.isServerInfoRequest());
+    }
+
+    public void testAddedHeaders() throws Exception {
+        DaapRequest request = new DaapRequest(null, "GET", "/server-info",
+                "HTTP/1.1");
+
+        request.addHeader(new BasicHeader("range", "bytes=100-"));
+        request.addHeader(new BasicHeader("user-agent", "iTunes/4.6"));
+
+        assertEquals("bytes=100-", request.getHeader(DaapRequest.RANGE)
+                .getValue());
+        assertEquals("iTunes/4.6", request.getHeader("User-Agent")
+                .getValue());
+        assertNull(request.getHeader(DaapRequest.AUTHORIZATION));
+    }
+
+    public void testAcceptEncoding() throws Exception {
+        assertEquals(null, getContentEncoding(null));
+        assertEquals(DaapUtil.GZIP, getContentEncoding("gzip"));
+        assertEquals(DaapUtil.GZIP, getContentEncoding("gzip, deflate"));
+        assertEquals(DaapUtil.GZIP, getContentEncoding("deflate, GZIP"));
+        assertEquals(DaapUtil.GZIP, getContentEncoding("x-gzip"));
+        assertEquals(DaapUtil.DEFLATE, getContentEncoding("deflate"));
+        assertEquals(DaapUtil.DEFLATE,
+                getContentEncoding("gzip;q=0.5, deflate"));
+        assertEquals(DaapUtil.DEFLATE, getContentEncoding("gzip;q=0, *"));
+        assertEquals(DaapUtil.GZIP, getContentEncoding("*;q=0.1"));
+        assertEquals(null, getContentEncoding("identity"));
+        assertEquals(null, getContentEncoding("gzip; q=0, deflate;q=0.000"));
+
+        DaapRequest request = createRequest("gzip;q=0");
+        assertFalse(request.isGZIPSupported());
+        request = createRequest("compress, gzip ; q=0.8");
+        assertTrue(request.isGZIPSupported());
+    }
+
+    public void testCompress() throws Exception {
+        byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 251);
+        }
+
+        byte[] gzip = DaapUtil.compress(data, DaapUtil.GZIP, 6);
+        assertTrue(gzip.length < data.length);
+        assertEquals(data, read(new GZIPInputStream(new ByteArrayInputStream(
+                gzip))));
+
+        byte[] deflate = DaapUtil.compress(data, DaapUtil.DEFLATE, 1);
+        assertTrue(deflate.length < data.length);
+        assertEquals(data, read(new InflaterInputStream(
+                new ByteArrayInputStream(deflate))));
+
+        // The Deflaters are reused
+        byte[] empty = DaapUtil.compress(new byte[0], DaapUtil.GZIP, 9);
+        assertEquals(0, read(
+                new GZIPInputStream(new ByteArrayInputStream(empty))).length);
+    }
+
+    private static DaapRequest createRequest(String acceptEncoding)
+            throws Exception {
+        DaapRequest request = new DaapRequest(null, "GET", "/server-info",
+                "HTTP/1.1");
+        if (acceptEncoding != null) {
+            request.addHeader(new BasicHeader(DaapRequest.ACCEPT_ENCODING,
+                    acceptEncoding));
+        }
+        return request;
+    }
+
+    private static String getContentEncoding(String acceptEncoding)
+            throws Exception {
+        return createRequest(acceptEncoding).getContentEncoding();
+    }
+
+    private static void assertEquals(byte[] expected, byte[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i]);
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int len = -1;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap.tests;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.http.message.BasicHeader;
+import org.ardverk.daap.DaapConfig;
+import org.ardverk.daap.DaapRequest;
+import org.ardverk.daap.DaapResponseCache;
+import org.ardverk.daap.DaapUtil;
+import org.ardverk.daap.Library;
+import org.ardverk.daap.Transaction;
+import org.ardverk.daap.nio.DaapServerNIO;
+
+public class DaapResponseCacheTest extends TestCase {
+
+    public static TestSuite suite() {
+        return new TestSuite(DaapResponseCacheTest.class);
+    }
+
+    private static final String SONGS = "/databases/1/items?session-id=1"
+            + "&revision-number=2&meta=dmap.itemid,dmap.itemname";
+
+    private DaapConfig config;
+    private DaapResponseCache cache;
+    private Library library;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        config = new DaapConfig();
+        config.setResponseCacheSize(100);
+        cache = new DaapResponseCache(config);
+        library = new Library("Library");
+    }
+
+    public void testHitAndMiss() throws Exception {
+        DaapRequest request = createRequest(SONGS, "gzip");
+        DaapResponseCache.Key key = cache.createKey(library, request);
+        assertNull(cache.get(key, request));
+
+        byte[] data = new byte[10];
+        cache.put(key, data, null);
+
+        // Same request, but the payload was too small to be compressed
+        request = createRequest(SONGS, "gzip");
+        assertEquals(DaapUtil.GZIP, request.getContentEncoding());
+        assertSame(data, cache.get(cache.createKey(library, request),
+                request));
+        assertNull(request.getContentEncoding());
+
+        // A different meta, encoding or update type is a different response
+        request = createRequest(SONGS.replace("dmap.itemname",
+                "daap.songalbum"), "gzip");
+        assertNull(cache.get(cache.createKey(library, request), request));
+
+        request = createRequest(SONGS, null);
+        assertNull(cache.get(cache.createKey(library, request), request));
+
+        request = createRequest(SONGS + "&delta=1", "gzip");
+        assertNull(cache.get(cache.createKey(library, request), request));
+
+        assertEquals(1L, cache.getHitCount());
+        assertEquals(4L, cache.getMissCount());
+        assertEquals(10L, cache.getBytesSaved());
+        assertEquals(0.2f, cache.getHitRate(), 0.001f);
+    }
+
+    public void testRevision() throws Exception {
+        DaapRequest request = createRequest(SONGS, null);
+        cache.put(cache.createKey(library, request), new byte[10], null);
+        assertNotNull(cache.get(cache.createKey(library, request), request));
+
+        Transaction txn = library.beginTransaction();
+        library.setName(txn, "Renamed");
+        txn.commit();
+
+        assertNull(cache.get(cache.createKey(library, request), request));
+    }
+
+    public void testEviction() throws Exception {
+        DaapRequest a = createRequest("/databases/1/items?session-id=1", null);
+        DaapRequest b = createRequest("/databases/1/containers?session-id=1",
+                null);
+        DaapRequest c = createRequest(
+                "/databases/1/containers/2/items?session-id=1", null);
+
+        cache.put(cache.createKey(library, a), new byte[40], null);
+        cache.put(cache.createKey(library, b), new byte[40], null);
+
+        // a is now the most recently used
+        assertNotNull(cache.get(cache.createKey(library, a), a));
+
+        cache.put(cache.createKey(library, c), new byte[40], null);
+        assertEquals(2, cache.getCount());
+        assertEquals(80L, cache.getSize());
+
+        assertNotNull(cache.get(cache.createKey(library, a), a));
+        assertNull(cache.get(cache.createKey(library, b), b));
+        assertNotNull(cache.get(cache.createKey(library, c), c));
+
+        // Too large
+        cache.put(cache.createKey(library, b), new byte[101], null);
+        assertNull(cache.get(cache.createKey(library, b), b));
+
+        cache.clear();
+        assertEquals(0, cache.getCount());
+        assertEquals(0L, cache.getSize());
+    }
+
+    public void testServerNIO() throws Exception {
+        DaapServerNIO server = new DaapServerNIO(library, config);
+        DaapResponseCache cache = server.getResponseCache();
+
+        DaapRequest request = createRequest(SONGS, null);
+        cache.put(cache.createKey(library, request), new byte[10], null);
+        assertEquals(1, cache.getCount());
+
+        Transaction txn = library.beginTransaction();
+        library.setName(txn, "Renamed");
+        txn.commit();
+
+        assertEquals(0, cache.getCount());
+        assertEquals(0L, cache.getSize());
+    }
+
+    public void testDisabled() throws Exception {
+        DaapRequest request = createRequest(SONGS, null);
+        config.setResponseCacheSize(0);
+        assertNull(cache.createKey(library, request));
+
+        config.setResponseCacheSize(100);
+        request = createRequest("/server-info", null);
+        assertNull(cache.createKey(library, request));
+    }
+
+    private static DaapRequest createRequest(String target,
+            String acceptEncoding) throws Exception {
+        DaapRequest request = new DaapRequest(null, "GET", target, "HTTP/1.1");
+        if (acceptEncoding != null) {
+            request.addHeader(new BasicHeader(DaapRequest.ACCEPT_ENCODING,
+                    acceptEncoding));
+        }
+        return request;
+    }
+}
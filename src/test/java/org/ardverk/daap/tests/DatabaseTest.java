@@ -17,9 +17,15 @@
 
 package org.ardverk.daap.tests;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Set;
+
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import org.ardverk.daap.DaapRequest;
 import org.ardverk.daap.Database;
 import org.ardverk.daap.Library;
 import org.ardverk.daap.Playlist;
@@ -159,4 +165,274 @@ public class DatabaseTest extends TestCase {
         assertTrue(database.getMasterPlaylist().getSongCount() == 1);
         assertTrue(database.getMasterPlaylist().containsSong(song));
     }
+
+    public void testSongRefs() {
+        Song song1 = new Song("Song 1");
+        Song song2 = new Song("Song 2");
+        Playlist playlist = new Playlist("Playlist");
+
+        // A Playlist that has Songs before it's added
+        Transaction txn = library.beginTransaction();
+        database.addSong(txn, song1);
+        playlist.addSong(txn, song1);
+        playlist.addSong(txn, song2);
+        database.addPlaylist(txn, playlist);
+        txn.commit();
+
+        assertEquals(2, database.getSongCount());
+        assertTrue(database.getSongs().contains(song1));
+        assertTrue(database.getSongs().contains(song2));
+
+        // song1 is still in the master playlist
+        txn = library.beginTransaction();
+        playlist.removeSong(txn, song1);
+        txn.commit();
+
+        assertEquals(2, database.getSongCount());
+        assertTrue(database.containsSong(song1));
+
+        // song2 was only in the removed Playlist
+        txn = library.beginTransaction();
+        database.removePlaylist(txn, playlist);
+        txn.commit();
+
+        assertEquals(1, database.getSongCount());
+        assertTrue(database.containsSong(song1));
+        assertFalse(database.containsSong(song2));
+        assertEquals(1, database.getSongs().size());
+        assertSame(song1, database.getSongs().iterator().next());
+
+        // Songs of a removed Playlist don't count anymore
+        txn = library.beginTransaction();
+        playlist.addSong(txn, song2);
+        database.removeSong(txn, song1);
+        txn.commit();
+
+        assertEquals(0, database.getSongCount());
+        assertTrue(database.getSongs().isEmpty());
+    }
+
+    public void testSharedPlaylist() {
+        // A Library has only one Database
+        Library otherLibrary = new Library("Other");
+        Database other = new Database("Other");
+        Playlist playlist = new Playlist("Shared");
+        Song song = new Song("Song");
+
+        Transaction txn = otherLibrary.beginTransaction();
+        otherLibrary.addDatabase(txn, other);
+        other.addPlaylist(txn, playlist);
+        txn.commit();
+
+        txn = library.beginTransaction();
+        database.addPlaylist(txn, playlist);
+        txn.commit();
+
+        // Both Databases count the Songs of the Playlist
+        txn = library.beginTransaction();
+        playlist.addSong(txn, song);
+        txn.commit();
+
+        assertTrue(database.containsSong(song));
+        assertTrue(other.containsSong(song));
+
+        // and keep counting them after the other one let go of it
+        txn = library.beginTransaction();
+        database.removePlaylist(txn, playlist);
+        txn.commit();
+
+        assertFalse(database.containsSong(song));
+        assertTrue(other.containsSong(song));
+
+        txn = library.beginTransaction();
+        playlist.removeSong(txn, song);
+        txn.commit();
+
+        assertFalse(other.containsSong(song));
+        assertEquals(0, other.getSongCount());
+    }
+
+    public void testRemovedDatabase() {
+        Playlist playlist = new Playlist("Playlist");
+        Song song1 = new Song("Song 1");
+        Song song2 = new Song("Song 2");
+
+        Transaction txn = library.beginTransaction();
+        database.addPlaylist(txn, playlist);
+        playlist.addSong(txn, song1);
+        txn.commit();
+
+        txn = library.beginTransaction();
+        library.removeDatabase(txn, database);
+        txn.commit();
+
+        // The Playlist doesn't update a Database that left the Library
+        txn = library.beginTransaction();
+        playlist.addSong(txn, song2);
+        txn.commit();
+
+        assertTrue(database.containsSong(song1));
+        assertFalse(database.containsSong(song2));
+        assertEquals(1, database.getSongCount());
+
+        // and the Database catches up once it's back
+        txn = library.beginTransaction();
+        library.addDatabase(txn, database);
+        txn.commit();
+
+        assertTrue(database.containsSong(song2));
+        assertEquals(2, database.getSongCount());
+
+        txn = library.beginTransaction();
+        playlist.removeSong(txn, song1);
+        txn.commit();
+
+        assertFalse(database.containsSong(song1));
+        assertEquals(1, database.getSongCount());
+    }
+
+    public void testSongsView() {
+        Transaction txn = library.beginTransaction();
+        for (int i = 0; i < 5000; i++) {
+            // Sparse ids
+            new Song("Skipped " + i);
+            database.addSong(txn, new Song("Song " + i));
+        }
+        txn.commit();
+
+        Set<Song> songs = database.getSongs();
+        assertEquals(5000, songs.size());
+
+        try {
+            songs.clear();
+            fail("The view should be unmodifiable");
+        } catch (UnsupportedOperationException err) {
+        }
+
+        try {
+            for (Song song : songs) {
+                database.removeSong(null, song);
+            }
+            fail("The Iterator should be fail-fast");
+        } catch (ConcurrentModificationException err) {
+        }
+
+        // The view is live
+        assertEquals(4999, songs.size());
+
+        for (Song song : new ArrayList<Song>(songs)) {
+            database.removeSong(null, song);
+        }
+
+        assertEquals(0, database.getSongCount());
+        assertTrue(songs.isEmpty());
+    }
+
+    public void testBatch() {
+        Song song1 = new Song("Song 1");
+        Song song2 = new Song("Song 2");
+        Song song3 = new Song("Song 3");
+        Playlist playlist = new Playlist("Playlist");
+
+        Transaction txn = library.beginTransaction();
+        database.addPlaylist(txn, playlist);
+        txn.commit();
+
+        txn = library.beginTransaction();
+        database.addSongs(txn, Arrays.asList(song1, song2));
+        txn.commit();
+
+        assertEquals(2, database.getSongCount());
+        assertTrue(playlist.containsSong(song1));
+        assertTrue(playlist.containsSong(song2));
+
+        txn = library.beginTransaction();
+        playlist.removeSong(txn, song2);
+        txn.commit();
+
+        // song2 stays out of the Playlist, song1 is removed from all
+        // Playlists and song3 is added to all Playlists
+        txn = library.beginTransaction();
+        database.replaceSongs(txn, Arrays.asList(song2, song3));
+        txn.commit();
+
+        assertEquals(2, database.getSongCount());
+        assertFalse(database.containsSong(song1));
+        assertFalse(playlist.containsSong(song1));
+        assertFalse(playlist.containsSong(song2));
+        assertTrue(playlist.containsSong(song3));
+        assertEquals(2, database.getMasterPlaylist().getSongCount());
+
+        txn = library.beginTransaction();
+        database.removeSongs(txn, Arrays.asList(song2, song3));
+        txn.commit();
+
+        assertEquals(0, database.getSongCount());
+        assertEquals(0, playlist.getSongCount());
+    }
+
+    public void testSelectById() throws Exception {
+        library = new Library("DatabaseTestLibrary");
+        IdDatabase database = new IdDatabase("DatabaseTest");
+        IdSong[] songs = new IdSong[1000];
+
+        Transaction txn = library.beginTransaction();
+        library.addDatabase(txn, database);
+        for (int i = 0; i < songs.length; i++) {
+            songs[i] = new IdSong("Song " + i);
+            database.addSong(txn, songs[i]);
+        }
+        txn.commit();
+
+        txn = library.beginTransaction();
+        for (int i = 0; i < songs.length; i += 3) {
+            database.removeSong(txn, songs[i]);
+        }
+        txn.commit();
+
+        String prefix = "/databases/" + database.getItemId() + "/items/";
+        for (int i = 0; i < songs.length; i++) {
+            Object song = library.select(new DaapRequest(null, "GET", prefix
+                    + songs[i].getItemId() + ".mp3?session-id=1", "HTTP/1.1"));
+
+            if (i % 3 == 0) {
+                assertNull(song);
+            } else {
+                assertSame(songs[i], song);
+            }
+        }
+
+        assertNull(library.select(new DaapRequest(null, "GET", prefix
+                + "0.mp3?session-id=1", "HTTP/1.1")));
+        assertNull(library.select(new DaapRequest(null, "GET", "/databases/"
+                + (database.getItemId() + 1) + "/items/"
+                + songs[1].getItemId() + ".mp3?session-id=1", "HTTP/1.1")));
+        assertNull(library.select(new DaapRequest(null, "GET", "/databases/"
+                + database.getItemId() + "/containers/0/items?session-id=1",
+                "HTTP/1.1")));
+    }
+
+    private static class IdDatabase extends Database {
+
+        public IdDatabase(String name) {
+            super(name);
+        }
+
+        @Override
+        public long getItemId() {
+            return super.getItemId();
+        }
+    }
+
+    private static class IdSong extends Song {
+
+        public IdSong(String name) {
+            super(name);
+        }
+
+        @Override
+        public long getItemId() {
+            return super.getItemId();
+        }
+    }
 }
@@ -0,0 +1,158 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.ardverk.daap.DaapOutputStream;
+import org.ardverk.daap.DaapUtil;
+import org.ardverk.daap.DmapWriter;
+import org.ardverk.daap.chunks.Chunk;
+import org.ardverk.daap.chunks.impl.DatabaseSongs;
+import org.ardverk.daap.chunks.impl.ItemId;
+import org.ardverk.daap.chunks.impl.ItemKind;
+import org.ardverk.daap.chunks.impl.ItemName;
+import org.ardverk.daap.chunks.impl.Listing;
+import org.ardverk.daap.chunks.impl.ListingItem;
+import org.ardverk.daap.chunks.impl.ReturnedCount;
+import org.ardverk.daap.chunks.impl.SongAlbum;
+import org.ardverk.daap.chunks.impl.SongArtist;
+import org.ardverk.daap.chunks.impl.SongTime;
+import org.ardverk.daap.chunks.impl.SongTrackNumber;
+import org.ardverk.daap.chunks.impl.SpecifiedTotalCount;
+import org.ardverk.daap.chunks.impl.Status;
+import org.ardverk.daap.chunks.impl.UpdateType;
+
+/**
+ * Compares DaapOutputStream (a FilterOutputStream that writes every value
+ * byte by byte, optionally through a GZIPOutputStream) with DmapWriter (bulk
+ * puts into a ByteBuffer and one call to the Deflater) on a
+ * /databases/databaseId/items listing. Reports the time and the allocated
+ * bytes per listing. The allocated bytes are taken from
+ * com.sun.management.ThreadMXBean and aren't available on every JVM.
+ *
+ * <pre>
+ * java org.ardverk.daap.tests.DmapWriterBenchmark [songs] [iterations]
+ * </pre>
+ */
+public class DmapWriterBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int songs = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        Chunk chunk = createListing(songs);
+
+        if (!Arrays.equals(stream(chunk, false), DmapWriter.serialize(chunk))) {
+            throw new IllegalStateException("DmapWriter != DaapOutputStream");
+        }
+
+        System.out.println("writer, songs, ms/listing, bytes/listing, size");
+
+        // Warm up
+        for (int i = 0; i < 4; i++) {
+            run(i, chunk, iterations / 4);
+        }
+
+        report("DaapOutputStream", 0, chunk, songs, iterations);
+        report("DmapWriter", 1, chunk, songs, iterations);
+        report("DaapOutputStream+gzip", 2, chunk, songs, iterations);
+        report("DmapWriter+gzip", 3, chunk, songs, iterations);
+    }
+
+    private static void report(String name, int writer, Chunk chunk,
+            int songs, int iterations) throws Exception {
+        long allocated = Benchmarks.allocatedBytes();
+        long start = System.nanoTime();
+
+        long size = run(writer, chunk, iterations);
+
+        long time = System.nanoTime() - start;
+        allocated = Benchmarks.allocatedBytes() - allocated;
+
+        System.out.println(name + ", " + songs + ", "
+                + (time / iterations / 1000000L) + ", "
+                + (allocated < 0L ? "n/a" : (allocated / iterations)) + ", "
+                + (size / iterations));
+    }
+
+    private static long run(int writer, Chunk chunk, int iterations)
+            throws Exception {
+        long size = 0L;
+        for (int i = 0; i < iterations; i++) {
+            switch (writer) {
+                case 0:
+                    size += stream(chunk, false).length;
+                    break;
+                case 1:
+                    size += DmapWriter.serialize(chunk).length;
+                    break;
+                case 2:
+                    size += stream(chunk, true).length;
+                    break;
+                default:
+                    size += DaapUtil.compress(DmapWriter.serialize(chunk),
+                            DaapUtil.GZIP, Deflater.DEFAULT_COMPRESSION).length;
+                    break;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * What DaapUtil.serialize() used to do
+     */
+    private static byte[] stream(Chunk chunk, boolean gzip) throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(255);
+        OutputStream out = gzip ? new GZIPOutputStream(buffer) : buffer;
+
+        DaapOutputStream dos = new DaapOutputStream(out);
+        dos.writeChunk(chunk);
+        dos.close();
+
+        return buffer.toByteArray();
+    }
+
+    private static Chunk createListing(int songs) {
+        DatabaseSongs databaseSongs = new DatabaseSongs();
+        databaseSongs.add(new Status(200));
+        databaseSongs.add(new UpdateType(0));
+        databaseSongs.add(new SpecifiedTotalCount(songs));
+        databaseSongs.add(new ReturnedCount(songs));
+
+        Listing listing = new Listing();
+        for (int i = 0; i < songs; i++) {
+            ListingItem listingItem = new ListingItem();
+            listingItem.add(new ItemKind(ItemKind.AUDIO));
+            listingItem.add(new ItemId(i + 1));
+            listingItem.add(new ItemName("Song " + i));
+            listingItem.add(new SongAlbum("Album " + (i / 12)));
+            listingItem.add(new SongArtist("Artist " + (i / 120)));
+            listingItem.add(new SongTime(180000 + i));
+            listingItem.add(new SongTrackNumber(i % 12 + 1));
+            listing.add(listingItem);
+        }
+        databaseSongs.add(listing);
+
+        return databaseSongs;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.ardverk.daap.DaapConfig;
+import org.ardverk.daap.DaapHeaderConstructor;
+import org.ardverk.daap.DaapRequest;
+import org.ardverk.daap.Library;
+import org.ardverk.daap.nio.DaapConnectionNIO;
+import org.ardverk.daap.nio.DaapServerNIO;
+
+/**
+ * Compares the way DaapHeaderConstructor used to create the header of a
+ * Chunk response (a List of BasicHeaders, a shared SimpleDateFormat and a
+ * ByteArrayOutputStream) with the pre-encoded templates. Every Thread
+ * creates headers as fast as it can. Reports the throughput and the number
+ * of headers whose Date couldn't be parsed back.
+ *
+ * <pre>
+ * java org.ardverk.daap.tests.HeaderBenchmark [threads] [headers per thread]
+ * </pre>
+ */
+public class HeaderBenchmark {
+
+    private static final String DATE_FORMAT = "EEE, d MMM yyyy HH:mm:ss z";
+
+    /** What DaapUtil used to share between all Threads */
+    private static final SimpleDateFormat FORMATTER = new SimpleDateFormat(
+            DATE_FORMAT, Locale.US);
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+        DaapConfig config = new DaapConfig();
+        DaapServerNIO server = new DaapServerNIO(new Library("Benchmark"),
+                config);
+        DaapConnectionNIO connection = new DaapConnectionNIO(server, null);
+
+        DaapRequest request = new DaapRequest(connection, "GET",
+                "/databases/1/items?session-id=1", "HTTP/1.1");
+        request.addHeader(new BasicHeader(DaapRequest.ACCEPT_ENCODING, "gzip"));
+
+        String expected = withoutDate(oldHeader(config.getServerName(), 4711L));
+        String actual = withoutDate(DaapHeaderConstructor.createChunkHeader(
+                request, 4711L));
+        if (!expected.equals(actual)) {
+            throw new IllegalStateException(expected + "\n!=\n" + actual);
+        }
+
+        System.out.println("header, threads, headers/s, bad dates");
+
+        // Warm up
+        run(false, request, threads, count / 10);
+        run(true, request, threads, count / 10);
+
+        report("BasicHeader", false, request, threads, count);
+        report("Template", true, request, threads, count);
+    }
+
+    private static void report(String name, boolean template,
+            DaapRequest request, int threads, int count) throws Exception {
+        long[] result = run(template, request, threads, count);
+        double seconds = result[0] / 1000000000.0;
+
+        System.out.println(name + ", " + threads + ", "
+                + (long) (threads * (long) count / seconds) + ", "
+                + result[1]);
+    }
+
+    /**
+     * Returns the elapsed time in nanoseconds and the number of bad dates
+     */
+    private static long[] run(final boolean template,
+            final DaapRequest request, int threads, final int count)
+            throws Exception {
+
+        final String serverName = request.getServer().getConfig()
+                .getServerName();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicLong badDates = new AtomicLong();
+
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    SimpleDateFormat parser = new SimpleDateFormat(
+                            DATE_FORMAT, Locale.US);
+                    try {
+                        start.await();
+                        for (int j = 0; j < count; j++) {
+                            byte[] header = template ? DaapHeaderConstructor
+                                    .createChunkHeader(request, j) : oldHeader(
+                                    serverName, j);
+
+                            // Check a sample
+                            if ((j & 0xFF) == 0 && !isValidDate(parser, header)) {
+                                badDates.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception err) {
+                        err.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        long time = System.nanoTime();
+        start.countDown();
+        done.await();
+        return new long[] { System.nanoTime() - time, badDates.get() };
+    }
+
+    /**
+     * What DaapHeaderConstructor.createChunkHeader() used to do
+     */
+    private static byte[] oldHeader(String serverName, long contentLength)
+            throws IOException {
+        List<Header> headers = new ArrayList<Header>();
+        headers.add(new BasicHeader("Date", FORMATTER.format(new Date())));
+        headers.add(new BasicHeader("DAAP-Server", serverName));
+        headers.add(new BasicHeader("Content-Type",
+                "application/x-dmap-tagged"));
+        headers.add(new BasicHeader("Content-Length", Long
+                .toString(contentLength)));
+        headers.add(new BasicHeader("Connection", "Keep-Alive"));
+        headers.add(new BasicHeader("Content-Encoding", "gzip"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("HTTP/1.1 200 OK".getBytes("ISO-8859-1"));
+        out.write('\r');
+        out.write('\n');
+        for (Header header : headers) {
+            out.write((header.toString() + "\r\n").getBytes("ISO-8859-1"));
+        }
+        out.write('\r');
+        out.write('\n');
+        out.close();
+        return out.toByteArray();
+    }
+
+    private static boolean isValidDate(SimpleDateFormat parser, byte[] header)
+            throws IOException {
+        String s = new String(header, "ISO-8859-1");
+        int from = s.indexOf("Date: ") + 6;
+        String date = s.substring(from, s.indexOf('\r', from));
+        try {
+            return date.equals(parser.format(parser.parse(date)));
+        } catch (ParseException err) {
+            return false;
+        } catch (NumberFormatException err) {
+            return false;
+        }
+    }
+
+    private static String withoutDate(byte[] header) throws IOException {
+        String s = new String(header, "ISO-8859-1");
+        int from = s.indexOf("Date: ");
+        return s.substring(0, from) + s.substring(s.indexOf('\r', from));
+    }
+}
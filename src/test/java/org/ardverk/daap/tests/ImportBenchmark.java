@@ -0,0 +1,129 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.ardverk.daap.Database;
+import org.ardverk.daap.Library;
+import org.ardverk.daap.Song;
+import org.ardverk.daap.Transaction;
+
+/**
+ * Imports Songs into the master Playlist of a Library in one Transaction
+ * and removes them again in a second one, one Song at a time and as a batch
+ * (Database.addSongs() and removeSongs()). Compares it with the way the
+ * Songs of a Playlist used to be kept (an ArrayList that was searched before
+ * every add and remove). Reports the time of both commits.
+ *
+ * <pre>
+ * java org.ardverk.daap.tests.ImportBenchmark [max songs]
+ * </pre>
+ */
+public class ImportBenchmark {
+
+    private static final String[] NAMES = { "addSong", "addSongs",
+            "ArrayList" };
+
+    public static void main(String[] args) throws Exception {
+        int maxSongs = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+        System.out.println("method, songs, import ms, remove ms");
+
+        // Warm up
+        for (int mode = 0; mode < 3; mode++) {
+            run(10000, mode);
+        }
+
+        for (int songs = 12500; songs <= maxSongs; songs *= 2) {
+            for (int mode = 0; mode < 3; mode++) {
+                run(songs, mode);
+            }
+        }
+    }
+
+    /**
+     * mode is 0 for addSong(), 1 for addSongs() and 2 for the ArrayList
+     */
+    private static void run(int count, int mode) throws Exception {
+        Song[] songs = new Song[count];
+        for (int i = 0; i < count; i++) {
+            songs[i] = new Song("Song " + i);
+        }
+
+        long importTime = 0L;
+        long removeTime = 0L;
+
+        if (mode == 2) {
+            List<Song> list = new ArrayList<Song>();
+
+            long start = System.nanoTime();
+            for (Song song : songs) {
+                if (!list.contains(song)) {
+                    list.add(song);
+                }
+            }
+            importTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (Song song : songs) {
+                list.remove(song);
+            }
+            removeTime = System.nanoTime() - start;
+
+        } else {
+            Library library = new Library("Benchmark");
+            Database database = new Database("Benchmark");
+            library.addDatabase(null, database);
+
+            long start = System.nanoTime();
+            Transaction txn = library.beginTransaction();
+            if (mode == 1) {
+                database.addSongs(txn, Arrays.asList(songs));
+            } else {
+                for (Song song : songs) {
+                    database.addSong(txn, song);
+                }
+            }
+            txn.commit();
+            importTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            txn = library.beginTransaction();
+            if (mode == 1) {
+                database.removeSongs(txn, Arrays.asList(songs));
+            } else {
+                for (Song song : songs) {
+                    database.removeSong(txn, song);
+                }
+            }
+            txn.commit();
+            removeTime = System.nanoTime() - start;
+
+            if (database.getSongCount() != 0) {
+                throw new IllegalStateException();
+            }
+        }
+
+        System.out.println(NAMES[mode] + ", "
+                + count + ", " + (importTime / 1000000L) + ", "
+                + (removeTime / 1000000L));
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap.tests;
+
+import java.util.Random;
+
+import org.ardverk.daap.DaapRequest;
+import org.ardverk.daap.Database;
+import org.ardverk.daap.Library;
+import org.ardverk.daap.Playlist;
+import org.ardverk.daap.Song;
+import org.ardverk.daap.tests.Benchmarks.BenchmarkDatabase;
+import org.ardverk.daap.tests.Benchmarks.BenchmarkSong;
+
+/**
+ * Compares the way a Song was looked up for an audio request (a linear scan
+ * over the Songs of every Playlist) with the item id indexes of Library,
+ * Database and Playlist. Reports the time per lookup for Libraries of 1k to
+ * 1M Songs.
+ *
+ * <pre>
+ * java -Xmx2g org.ardverk.daap.tests.IndexBenchmark [max songs]
+ * </pre>
+ */
+public class IndexBenchmark {
+
+    private static final int REQUESTS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int maxSongs = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        System.out.println("lookup, songs, ns/lookup");
+
+        for (int songs = 1000; songs <= maxSongs; songs *= 10) {
+            run(songs);
+        }
+    }
+
+    private static void run(int count) throws Exception {
+        Library library = new Library("Benchmark");
+        BenchmarkDatabase database = new BenchmarkDatabase("Benchmark");
+        library.addDatabase(null, database);
+
+        BenchmarkSong[] songs = new BenchmarkSong[count];
+        for (int i = 0; i < count; i++) {
+            songs[i] = new BenchmarkSong("Song " + i);
+            database.addSong(null, songs[i]);
+        }
+
+        Random random = new Random(count);
+        long[] ids = new long[REQUESTS];
+        DaapRequest[] requests = new DaapRequest[REQUESTS];
+        for (int i = 0; i < REQUESTS; i++) {
+            ids[i] = songs[random.nextInt(count)].getItemId();
+            requests[i] = new DaapRequest(null, "GET", "/databases/"
+                    + database.getItemId() + "/items/" + ids[i]
+                    + ".mp3?session-id=1", "HTTP/1.1");
+        }
+
+        // Warm up
+        scan(database, ids, REQUESTS / 10);
+        select(library, requests, REQUESTS * 100);
+
+        long start = System.nanoTime();
+        long checksum = scan(database, ids, REQUESTS);
+        long time = System.nanoTime() - start;
+        System.out.println("Linear scan, " + count + ", " + (time / REQUESTS)
+                + " (" + checksum + ")");
+
+        int lookups = REQUESTS * 1000;
+        start = System.nanoTime();
+        checksum = select(library, requests, lookups);
+        time = System.nanoTime() - start;
+        System.out.println("Index, " + count + ", " + (time / lookups) + " ("
+                + (checksum / 1000) + ")");
+    }
+
+    /**
+     * What Database.getSong() and Playlist.getSong() used to do
+     */
+    private static long scan(Database database, long[] ids, int lookups) {
+        long checksum = 0L;
+        for (int i = 0; i < lookups; i++) {
+            long songId = ids[i % ids.length];
+
+            search: for (Playlist playlist : database.getPlaylists()) {
+                for (Song song : playlist.getSongs()) {
+                    if (((BenchmarkSong) song).getItemId() == songId) {
+                        checksum += songId;
+                        break search;
+                    }
+                }
+            }
+        }
+        return checksum;
+    }
+
+    private static long select(Library library, DaapRequest[] requests,
+            int lookups) {
+        long checksum = 0L;
+        for (int i = 0; i < lookups; i++) {
+            BenchmarkSong song = (BenchmarkSong) library
+                    .select(requests[i % requests.length]);
+            checksum += song.getItemId();
+        }
+        return checksum;
+    }
+}
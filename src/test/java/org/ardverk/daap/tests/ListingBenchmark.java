@@ -0,0 +1,152 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap.tests;
+
+import org.ardverk.daap.DaapRequest;
+import org.ardverk.daap.DaapUtil;
+import org.ardverk.daap.Library;
+import org.ardverk.daap.Song;
+import org.ardverk.daap.Transaction;
+import org.ardverk.daap.chunks.Chunk;
+import org.ardverk.daap.tests.Benchmarks.BenchmarkDatabase;
+
+/**
+ * Measures a full /databases/databaseId/items listing of a large Library.
+ * "Encode all" asks with a different meta order every time and encodes
+ * every Song like the listings used to. "Unchanged" asks for the same
+ * listing again and "One edit" renames a single Song in between. "Both
+ * listings" renames a single Song and then asks for the Database listing
+ * and the master Playlist listing like iTunes does, an iteration is two
+ * listings. Reports
+ * the time and the allocated bytes per listing. The allocated bytes are
+ * taken from com.sun.management.ThreadMXBean and aren't available on every
+ * JVM.
+ *
+ * <pre>
+ * java org.ardverk.daap.tests.ListingBenchmark [songs] [iterations]
+ * </pre>
+ */
+public class ListingBenchmark {
+
+    private static final String[] META = { "dmap.itemkind", "dmap.itemid",
+            "dmap.itemname", "daap.songalbum", "daap.songartist",
+            "daap.songtime", "daap.songtracknumber" };
+
+    private static final String PLAYLIST_META = "dmap.itemkind,dmap.itemid,"
+            + "dmap.containeritemid";
+
+    public static void main(String[] args) throws Exception {
+        int songs = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        Library library = new Library("Benchmark");
+        BenchmarkDatabase database = new BenchmarkDatabase("Benchmark");
+        Song[] song = new Song[songs];
+
+        Transaction txn = library.beginTransaction();
+        library.addDatabase(txn, database);
+        for (int i = 0; i < songs; i++) {
+            song[i] = new Song("Song " + i);
+            song[i].setAlbum(txn, "Album " + (i / 12));
+            song[i].setArtist(txn, "Artist " + (i / 120));
+            song[i].setTime(txn, 180000 + i);
+            song[i].setTrackNumber(txn, i % 12 + 1);
+            database.addSong(txn, song[i]);
+        }
+        txn.commit();
+
+        System.out.println("listing, songs, ms/listing, bytes/listing");
+
+        // Warm up
+        run("Encode all", library, database, song, iterations / 2);
+        run("One edit", library, database, song, iterations / 2);
+
+        report("Encode all", library, database, song, iterations);
+        report("Unchanged", library, database, song, iterations);
+        report("One edit", library, database, song, iterations);
+        report("Both listings", library, database, song, iterations);
+    }
+
+    private static void report(String name, Library library,
+            BenchmarkDatabase database, Song[] song, int iterations)
+            throws Exception {
+        long allocated = Benchmarks.allocatedBytes();
+        long start = System.nanoTime();
+
+        long checksum = run(name, library, database, song, iterations);
+
+        long time = System.nanoTime() - start;
+        allocated = Benchmarks.allocatedBytes() - allocated;
+
+        System.out.println(name + ", " + song.length + ", "
+                + (time / iterations / 1000000L) + ", "
+                + (allocated < 0L ? "n/a" : (allocated / iterations))
+                + " (" + checksum + ")");
+    }
+
+    private static long run(String name, Library library,
+            BenchmarkDatabase database, Song[] song, int iterations)
+            throws Exception {
+        long checksum = 0L;
+        for (int i = 0; i < iterations; i++) {
+            // More meta orders than a Song caches
+            String meta = meta(name.equals("Encode all") ? i : 0);
+
+            if (name.equals("One edit") || name.equals("Both listings")) {
+                Transaction txn = library.beginTransaction();
+                song[i % song.length].setName(txn, "Edit " + i);
+                txn.commit();
+            }
+
+            checksum += select(library, "/databases/" + database.getItemId()
+                    + "/items", meta);
+
+            if (name.equals("Both listings")) {
+                checksum += select(library, "/databases/"
+                        + database.getItemId() + "/containers/"
+                        + database.getMasterPlaylistId() + "/items",
+                        PLAYLIST_META);
+            }
+        }
+        return checksum;
+    }
+
+    /**
+     * Returns META rotated by the given distance
+     */
+    private static String meta(int distance) {
+        StringBuilder buffer = new StringBuilder();
+        for (int i = 0; i < META.length; i++) {
+            if (i > 0) {
+                buffer.append(',');
+            }
+            buffer.append(META[(i + distance) % META.length]);
+        }
+        return buffer.toString();
+    }
+
+    private static long select(Library library, String path, String meta)
+            throws Exception {
+        DaapRequest request = new DaapRequest(null, "GET", path
+                + "?session-id=1&revision-number=" + library.getRevision()
+                + "&meta=" + meta, "HTTP/1.1");
+
+        Chunk chunk = (Chunk) library.select(request);
+        return DaapUtil.serialize(chunk, false).length;
+    }
+}
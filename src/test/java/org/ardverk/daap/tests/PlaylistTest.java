@@ -17,6 +17,13 @@
 
 package org.ardverk.daap.tests;
 
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Random;
+import java.util.RandomAccess;
+
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
@@ -127,4 +134,161 @@ public class PlaylistTest extends TestCase {
         assertFalse(playlist.containsSong(song));
         assertFalse(database.containsSong(song));
     }
+
+    public void testBatch() {
+        Song song1 = new Song("Song 1");
+        Song song2 = new Song("Song 2");
+        Song song3 = new Song("Song 3");
+        Song song4 = new Song("Song 4");
+
+        List<Song> songs = new ArrayList<Song>();
+        songs.add(song1);
+        songs.add(song2);
+        songs.add(song3);
+        songs.add(song1);
+
+        int revision = library.getRevision();
+
+        Transaction txn = library.beginTransaction();
+        playlist.addSongs(txn, songs);
+
+        // The batch is a copy
+        songs.clear();
+        txn.commit();
+
+        assertEquals(revision + 1, library.getRevision());
+        assertEquals(3, playlist.getSongCount());
+        assertEquals(3, database.getSongCount());
+        assertSame(song1, playlist.getSongs().get(0));
+        assertSame(song3, playlist.getSongs().get(2));
+
+        songs.add(song2);
+        songs.add(song4);
+
+        txn = library.beginTransaction();
+        playlist.removeSongs(txn, songs);
+        txn.commit();
+
+        assertEquals(2, playlist.getSongCount());
+        assertFalse(playlist.containsSong(song2));
+        assertFalse(database.containsSong(song2));
+
+        // song3 stays where it is, song1 goes and song2 and song4 are
+        // appended
+        songs.add(0, song3);
+        txn = library.beginTransaction();
+        playlist.replaceSongs(txn, songs);
+        txn.commit();
+
+        assertEquals(3, playlist.getSongCount());
+        assertEquals(3, database.getSongCount());
+        assertFalse(database.containsSong(song1));
+        assertSame(song3, playlist.getSongs().get(0));
+        assertSame(song2, playlist.getSongs().get(1));
+        assertSame(song4, playlist.getSongs().get(2));
+    }
+
+    public void testSongOrder() {
+        List<Song> expected = new ArrayList<Song>();
+
+        Transaction txn = library.beginTransaction();
+        for (int i = 0; i < 10; i++) {
+            Song song = new Song("Song " + i);
+            playlist.addSong(txn, song);
+            expected.add(song);
+        }
+        txn.commit();
+        assertEquals(expected, playlist.getSongs());
+
+        // Remove the first, one in the middle and the last Song and add
+        // one of them again
+        Song first = expected.get(0);
+        txn = library.beginTransaction();
+        playlist.removeSong(txn, first);
+        playlist.removeSong(txn, expected.get(5));
+        playlist.removeSong(txn, expected.get(9));
+        playlist.addSong(txn, first);
+        playlist.addSong(txn, expected.get(3));
+        txn.commit();
+
+        expected.remove(9);
+        expected.remove(5);
+        expected.remove(0);
+        expected.add(first);
+
+        List<Song> songs = playlist.getSongs();
+        assertEquals(expected, songs);
+        assertEquals(8, playlist.getSongCount());
+        assertEquals(8, songs.size());
+        assertTrue(playlist.containsSong(first));
+        assertFalse(playlist.containsSong(new Song("Unknown")));
+
+        // Random access from either end
+        for (int i = 0; i < expected.size(); i++) {
+            assertSame(expected.get(i), songs.get(i));
+        }
+
+        ListIterator<Song> it = songs.listIterator(songs.size());
+        for (int i = expected.size() - 1; i >= 0; i--) {
+            assertTrue(it.hasPrevious());
+            assertSame(expected.get(i), it.previous());
+        }
+        assertFalse(it.hasPrevious());
+
+        try {
+            songs.remove(0);
+            fail("The List is unmodifiable");
+        } catch (UnsupportedOperationException err) {
+        }
+    }
+
+    public void testRandomEdits() {
+        Random random = new Random(4711L);
+        List<Song> pool = new ArrayList<Song>();
+        for (int i = 0; i < 200; i++) {
+            pool.add(new Song("Song " + i));
+        }
+
+        List<Song> expected = new ArrayList<Song>();
+        List<Song> songs = playlist.getSongs();
+        assertTrue(songs instanceof RandomAccess);
+
+        for (int i = 0; i < 5000; i++) {
+            Song song = pool.get(random.nextInt(pool.size()));
+            if (random.nextInt(3) == 0) {
+                playlist.removeSong(null, song);
+                expected.remove(song);
+            } else {
+                playlist.addSong(null, song);
+                if (!expected.contains(song)) {
+                    expected.add(song);
+                }
+            }
+
+            if (random.nextInt(10) == 0) {
+                assertEquals(expected, songs);
+            } else if (!expected.isEmpty()) {
+                int index = random.nextInt(expected.size());
+                assertSame(expected.get(index), songs.get(index));
+            }
+        }
+        assertEquals(expected, songs);
+    }
+
+    public void testFailFast() {
+        Transaction txn = library.beginTransaction();
+        for (int i = 0; i < 10; i++) {
+            playlist.addSong(txn, new Song("Song " + i));
+        }
+        txn.commit();
+
+        try {
+            for (Song song : playlist.getSongs()) {
+                playlist.removeSong(null, song);
+            }
+            fail("The Iterator should be fail-fast");
+        } catch (ConcurrentModificationException err) {
+        }
+        assertEquals(9, playlist.getSongCount());
+    }
 }
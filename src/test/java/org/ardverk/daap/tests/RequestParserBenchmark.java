@@ -0,0 +1,254 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.ardverk.daap.DaapHttpParser;
+import org.ardverk.daap.DaapRequest;
+import org.ardverk.daap.bio.HttpParser;
+import org.ardverk.daap.nio.DaapLineReaderNIO;
+
+/**
+ * Compares the line based request parsing of the NIO server (DaapLineReaderNIO
+ * plus substring/trim per header) and the BIO server (byte-at-a-time
+ * HttpParser) with DaapHttpParser. The DaapHttpParser creates the
+ * DaapRequest too. "DaapHttpParser" then reads the name and value of every
+ * header like the old parsers created them. "DaapHttpParser (known)" only
+ * reads the headers a DaapServer looks at. Reports the time and the
+ * allocated bytes per request for typical iTunes requests. The allocated
+ * bytes are taken from com.sun.management.ThreadMXBean and aren't available
+ * on every JVM.
+ *
+ * <pre>
+ * java org.ardverk.daap.tests.RequestParserBenchmark [iterations]
+ * </pre>
+ */
+@SuppressWarnings("deprecation")
+public class RequestParserBenchmark {
+
+    private static final int LINES = 0;
+
+    private static final int STREAMS = 1;
+
+    private static final int PARSER = 2;
+
+    private static final int PARSER_KNOWN = 3;
+
+    private static final String[] REQUESTS = {
+            "GET /server-info HTTP/1.1\r\n"
+                    + "Client-DAAP-Version: 3.0\r\n"
+                    + "User-Agent: iTunes/4.6 (Windows; N)\r\n"
+                    + "Client-DAAP-Access-Index: 2\r\n"
+                    + "Accept-Encoding: gzip\r\n"
+                    + "Host: 192.168.1.10:3689\r\n\r\n",
+
+            "GET /databases/1/items?session-id=1101478641&revision-number=42"
+                    + "&delta=0&type=music&meta=dmap.itemid,dmap.itemname,"
+                    + "daap.songalbum,daap.songartist,daap.songtime HTTP/1.1\r\n"
+                    + "Client-DAAP-Version: 3.0\r\n"
+                    + "Client-DAAP-Validation: 9A1B4D5C1A3C5C3A2E8B7A4C2D1E6F5A\r\n"
+                    + "User-Agent: iTunes/4.6 (Windows; N)\r\n"
+                    + "Client-DAAP-Access-Index: 2\r\n"
+                    + "Accept-Encoding: gzip\r\n"
+                    + "Host: 192.168.1.10:3689\r\n\r\n",
+
+            "GET /update?session-id=1101478641&revision-number=1 HTTP/1.1\r\n"
+                    + "Client-DAAP-Version: 3.0\r\n"
+                    + "User-Agent: iTunes/4.6 (Windows; N)\r\n"
+                    + "Client-DAAP-Access-Index: 2\r\n"
+                    + "Host: 192.168.1.10:3689\r\n\r\n" };
+
+    /** The headers a DaapServer looks at */
+    private static final String[] KNOWN = { DaapRequest.ACCEPT_ENCODING,
+            DaapRequest.CONNECTION, DaapRequest.CLIENT_DAAP_VERSION,
+            DaapRequest.USER_AGENT };
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        byte[][] requests = new byte[REQUESTS.length][];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = REQUESTS[i].getBytes("ISO-8859-1");
+        }
+
+        System.out.println("parser, requests, ns/request, bytes/request");
+
+        // Warm up
+        lines(requests, iterations / 10);
+        streams(requests, iterations / 10);
+        parser(requests, iterations / 10, true);
+        parser(requests, iterations / 10, false);
+
+        report("DaapLineReaderNIO", requests, iterations, LINES);
+        report("HttpParser", requests, iterations, STREAMS);
+        report("DaapHttpParser", requests, iterations, PARSER);
+        report("DaapHttpParser (known)", requests, iterations, PARSER_KNOWN);
+    }
+
+    private static void report(String name, byte[][] requests,
+            int iterations, int mode) throws Exception {
+        long allocated = Benchmarks.allocatedBytes();
+        long start = System.nanoTime();
+
+        int checksum = 0;
+        if (mode == LINES) {
+            checksum = lines(requests, iterations);
+        } else if (mode == STREAMS) {
+            checksum = streams(requests, iterations);
+        } else {
+            checksum = parser(requests, iterations, mode == PARSER);
+        }
+
+        long time = System.nanoTime() - start;
+        allocated = Benchmarks.allocatedBytes() - allocated;
+
+        System.out.println(name + ", " + iterations + ", "
+                + (time / iterations) + ", "
+                + (allocated < 0L ? "n/a" : (allocated / iterations))
+                + " (" + checksum + ")");
+    }
+
+    /**
+     * What DaapRequestReaderNIO used to do
+     */
+    private static int lines(byte[][] requests, int iterations)
+            throws IOException {
+        int checksum = 0;
+        ByteBuffer in = ByteBuffer.allocate(4096);
+        in.flip();
+
+        List<Header> headers = new ArrayList<Header>();
+
+        for (int i = 0; i < iterations; i++) {
+            ReadableByteChannel channel = new ArrayChannel(requests[i
+                    % requests.length]);
+            DaapLineReaderNIO lineReader = new DaapLineReaderNIO();
+
+            String requestLine = null;
+            String line = null;
+            while ((line = lineReader.read(in, channel)) != null) {
+                if (requestLine == null) {
+                    requestLine = line;
+                } else {
+                    int p = line.indexOf(':');
+                    String name = line.substring(0, p).trim();
+                    String value = line.substring(++p).trim();
+                    headers.add(new BasicHeader(name, value));
+                }
+            }
+
+            checksum += requestLine.length() + headers.size();
+            headers.clear();
+        }
+        return checksum;
+    }
+
+    /**
+     * What DaapConnectionBIO used to do
+     */
+    private static int streams(byte[][] requests, int iterations)
+            throws Exception {
+        int checksum = 0;
+
+        for (int i = 0; i < iterations; i++) {
+            InputStream in = new ByteArrayInputStream(requests[i
+                    % requests.length]);
+
+            String requestLine = HttpParser.readLine(in);
+            Header[] headers = HttpParser.parseHeaders(in);
+
+            checksum += requestLine.length() + headers.length;
+        }
+        return checksum;
+    }
+
+    /**
+     * What DaapRequestReaderNIO and DaapRequestReaderBIO do
+     */
+    private static int parser(byte[][] requests, int iterations,
+            boolean allHeaders) throws IOException {
+        int checksum = 0;
+        DaapHttpParser parser = new DaapHttpParser();
+
+        for (int i = 0; i < iterations; i++) {
+            byte[] request = requests[i % requests.length];
+            if (!parser.parse(request, 0, request.length)) {
+                throw new IOException("Incomplete request");
+            }
+
+            DaapRequest daapRequest = parser.createRequest(null);
+            parser.reset();
+
+            if (allHeaders) {
+                for (Header header : daapRequest.getHeaders()) {
+                    checksum += header.getName().length()
+                            + header.getValue().length();
+                }
+            } else {
+                for (String name : KNOWN) {
+                    Header header = daapRequest.getHeader(name);
+                    if (header != null) {
+                        checksum += header.getValue().length();
+                    }
+                }
+            }
+
+            checksum += daapRequest.getRequestType();
+        }
+        return checksum;
+    }
+
+    /**
+     * A ReadableByteChannel that returns the array in one read
+     */
+    private static class ArrayChannel implements ReadableByteChannel {
+
+        private final byte[] data;
+
+        private boolean read = false;
+
+        private ArrayChannel(byte[] data) {
+            this.data = data;
+        }
+
+        public int read(ByteBuffer dst) {
+            if (read) {
+                return 0;
+            }
+            read = true;
+            dst.put(data);
+            return data.length;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Digital Audio Access Protocol (DAAP) Library
+ * Copyright (C) 2004-2010 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.daap.tests;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import org.ardverk.daap.DaapRequest;
+import org.ardverk.daap.DaapUtil;
+import org.ardverk.daap.SessionId;
+
+/**
+ * Compares the way DaapRequest used to classify a request target (a
+ * java.net.URI, a query Map and a StringTokenizer over the path) with the
+ * single pass of DaapRequestRouter. The mix is what iTunes sends when it
+ * connects, browses and plays a Song. Reports the time and the allocated
+ * bytes per request. The allocated bytes are taken from
+ * com.sun.management.ThreadMXBean and aren't available on every JVM.
+ *
+ * <pre>
+ * java org.ardverk.daap.tests.RouterBenchmark [iterations]
+ * </pre>
+ */
+public class RouterBenchmark {
+
+    private static final String[] TARGETS = {
+            "/server-info",
+            "/login",
+            "/update?session-id=1101478641&revision-number=1",
+            "/databases?session-id=1101478641&revision-number=42",
+            "/databases/1/items?session-id=1101478641&revision-number=42"
+                    + "&delta=0&type=music&meta=dmap.itemid,dmap.itemname,"
+                    + "daap.songalbum,daap.songartist,daap.songtime",
+            "/databases/1/containers?session-id=1101478641"
+                    + "&revision-number=42&delta=0&meta=dmap.itemid,"
+                    + "dmap.itemname,dmap.persistentid,com.apple.itunes.smart-playlist",
+            "/databases/1/containers/2/items?session-id=1101478641"
+                    + "&revision-number=42&delta=0&type=music"
+                    + "&meta=dmap.itemkind,dmap.itemid,dmap.containeritemid",
+            "/databases/1/items/4711.mp3?session-id=1101478641" };
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        System.out.println("router, requests, ns/request, bytes/request");
+
+        // Warm up
+        run(false, iterations / 10);
+        run(true, iterations / 10);
+
+        report("URI", iterations, false);
+        report("DaapRequestRouter", iterations, true);
+    }
+
+    private static void report(String name, int iterations, boolean router)
+            throws Exception {
+        long allocated = Benchmarks.allocatedBytes();
+        long start = System.nanoTime();
+
+        long checksum = run(router, iterations);
+
+        long time = System.nanoTime() - start;
+        allocated = Benchmarks.allocatedBytes() - allocated;
+
+        System.out.println(name + ", " + iterations + ", "
+                + (time / iterations) + ", "
+                + (allocated < 0L ? "n/a" : (allocated / iterations))
+                + " (" + checksum + ")");
+    }
+
+    private static long run(boolean router, int iterations) throws Exception {
+        long checksum = 0L;
+        for (int i = 0; i < iterations; i++) {
+            String target = TARGETS[i % TARGETS.length];
+            if (router) {
+                DaapRequest request = new DaapRequest(null, "GET", target,
+                        "HTTP/1.1");
+                checksum += request.getRequestType() + request.getItemId()
+                        + request.getSessionId().intValue();
+            } else {
+                checksum += uri(target);
+            }
+        }
+        return checksum;
+    }
+
+    /**
+     * What DaapRequest used to do
+     */
+    private static long uri(String target) throws Exception {
+        URI uri = new URI(target);
+        String path = uri.getPath();
+        Map<String, String> queryMap = DaapUtil.parseQuery(uri.getQuery());
+
+        int requestType = DaapUtil.NULL;
+        long itemId = DaapUtil.NULL;
+        SessionId sessionId = SessionId.INVALID;
+
+        if (path.equals("/server-info")) {
+            requestType = DaapRequest.SERVER_INFO;
+        } else if (path.equals("/login")) {
+            requestType = DaapRequest.LOGIN;
+        } else if (path.equals("/update")) {
+            requestType = DaapRequest.UPDATE;
+        }
+
+        if (queryMap.containsKey("session-id")) {
+            sessionId = SessionId.parseSessionId(queryMap.get("session-id"));
+        }
+
+        if (!SessionId.INVALID.equals(sessionId)) {
+            if (queryMap.containsKey("revision-number")) {
+                Integer.parseInt(queryMap.get("revision-number"));
+            }
+
+            if (queryMap.containsKey("delta")) {
+                Integer.parseInt(queryMap.get("delta"));
+            }
+
+            if (path.equals("/databases")) {
+                requestType = DaapRequest.DATABASES;
+
+            } else if (path.startsWith("/databases")) {
+                StringTokenizer tok = new StringTokenizer(path, "/");
+                int count = tok.countTokens();
+
+                tok.nextToken();
+                DaapUtil.parseUInt(tok.nextToken());
+                String token = tok.nextToken();
+
+                if (token.equals("items")) {
+                    requestType = DaapRequest.DATABASE_SONGS;
+                } else {
+                    requestType = DaapRequest.DATABASE_PLAYLISTS;
+                }
+
+                if (count == 4) {
+                    StringTokenizer fileTokenizer = new StringTokenizer(tok
+                            .nextToken(), ".");
+                    if (fileTokenizer.countTokens() == 2) {
+                        itemId = DaapUtil.parseUInt(fileTokenizer.nextToken());
+                        requestType = DaapRequest.SONG;
+                    }
+                } else if (count == 5) {
+                    DaapUtil.parseUInt(tok.nextToken());
+                    tok.nextToken();
+                    requestType = DaapRequest.PLAYLIST_SONGS;
+                }
+            }
+        }
+
+        return requestType + itemId + sessionId.intValue();
+    }
+}
@@ -17,15 +17,25 @@
 
 package org.ardverk.daap.tests;
 
+import java.util.Arrays;
+
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import org.ardverk.daap.DaapRequest;
+import org.ardverk.daap.DaapUtil;
 import org.ardverk.daap.Database;
 import org.ardverk.daap.Library;
+import org.ardverk.daap.MetaProjection;
 import org.ardverk.daap.Playlist;
 import org.ardverk.daap.Song;
 import org.ardverk.daap.Transaction;
 import org.ardverk.daap.Txn;
+import org.ardverk.daap.chunks.Chunk;
+import org.ardverk.daap.chunks.impl.ItemId;
+import org.ardverk.daap.chunks.impl.ItemName;
+import org.ardverk.daap.chunks.impl.ListingItem;
+import org.ardverk.daap.chunks.impl.SongAlbum;
 import org.ardverk.daap.chunks.impl.SongDataKind;
 import org.ardverk.daap.chunks.impl.SongEqPreset;
 import org.ardverk.daap.chunks.impl.SongFormat;
@@ -201,6 +211,140 @@ public class SongTest extends TestCase {
         assertEquals(song.hasVideo(), false);
     }
 
+    public void testMetaProjection() throws Exception {
+        String target = "/databases/1/items?session-id=1"
+                + "&meta=dmap.itemid,com.example.unknown,daap.songalbum";
+        MetaProjection projection = new DaapRequest(null, "GET", target,
+                "HTTP/1.1").getMetaProjection();
+        assertSame(projection, new DaapRequest(null, "GET", target,
+                "HTTP/1.1").getMetaProjection());
+
+        // Unknown keys are dropped...
+        assertEquals(2, projection.size());
+        assertEquals(MetaProjection.compile(Arrays.asList("dmap.itemid",
+                "daap.songalbum")), projection);
+
+        // ...but they're still part of the meta data
+        assertEquals(Arrays.asList("dmap.itemid", "com.example.unknown",
+                "daap.songalbum"), projection.getMeta());
+
+        assertFalse(projection.equals(MetaProjection.compile(Arrays.asList(
+                "daap.songalbum", "dmap.itemid"))));
+        assertEquals(0, new DaapRequest(null, "GET",
+                "/databases/1/items?session-id=1", "HTTP/1.1")
+                .getMetaProjection().size());
+    }
+
+    public void testListingItem() throws Exception {
+        MetaProjection meta = MetaProjection
+                .compile("dmap.itemid,dmap.itemname,daap.songalbum");
+
+        library = new Library("Library");
+        ListingSong song1 = new ListingSong("Song 1");
+        ListingSong song2 = new ListingSong("Song 2");
+
+        Transaction txn = library.beginTransaction();
+        song1.setAlbum(txn, "Album");
+        song2.setAlbum(txn, "Album");
+        txn.commit();
+
+        Chunk item1 = song1.getListingItem(meta);
+        Chunk item2 = song2.getListingItem(meta);
+        assertEquals(listingItem(song1, "Album"), item1);
+
+        // Encoded once...
+        assertSame(item1, song1.getListingItem(meta));
+        assertSame(item1, song1.getListingItem(MetaProjection
+                .compile(Arrays.asList("dmap.itemid", "dmap.itemname",
+                        "daap.songalbum"))));
+
+        // ...and again when the meta data changes...
+        assertNotSame(item1, song1.getListingItem(MetaProjection
+                .compile("dmap.itemid,dmap.itemname")));
+        item1 = song1.getListingItem(meta);
+
+        // ...or when a Txn touches the Song
+        txn = library.beginTransaction();
+        song1.setAlbum(txn, "Other Album");
+        assertSame(item1, song1.getListingItem(meta));
+        txn.commit();
+
+        assertNotSame(item1, song1.getListingItem(meta));
+        assertEquals(listingItem(song1, "Other Album"), song1
+                .getListingItem(meta));
+        assertSame(item2, song2.getListingItem(meta));
+    }
+
+    public void testListingItemProjections() throws Exception {
+        MetaProjection songs = MetaProjection
+                .compile("dmap.itemid,dmap.itemname,daap.songalbum");
+        MetaProjection playlist = MetaProjection
+                .compile("dmap.itemkind,dmap.itemid,dmap.containeritemid");
+
+        library = new Library("Library");
+        ListingSong song = new ListingSong("Song");
+
+        // iTunes alternates between the Database and the Playlist listing
+        Chunk item1 = song.getListingItem(songs);
+        Chunk item2 = song.getListingItem(playlist);
+        assertNotSame(item1, item2);
+
+        for (int i = 0; i < 3; i++) {
+            assertSame(item1, song.getListingItem(songs));
+            assertSame(item2, song.getListingItem(playlist));
+        }
+
+        // More MetaProjections push out the least recently encoded one
+        song.getListingItem(MetaProjection.compile("dmap.itemname"));
+        song.getListingItem(MetaProjection.compile("daap.songalbum"));
+        song.getListingItem(MetaProjection.compile("daap.songartist"));
+        assertSame(item2, song.getListingItem(playlist));
+        assertNotSame(item1, song.getListingItem(songs));
+
+        // A Txn makes all of them stale
+        item1 = song.getListingItem(songs);
+        item2 = song.getListingItem(playlist);
+
+        Transaction txn = library.beginTransaction();
+        song.setAlbum(txn, "Album");
+        txn.commit();
+
+        assertNotSame(item1, song.getListingItem(songs));
+        assertNotSame(item2, song.getListingItem(playlist));
+        assertEquals(listingItem(song, "Album"), song.getListingItem(songs));
+    }
+
+    private static ListingItem listingItem(ListingSong song, String album) {
+        ListingItem listingItem = new ListingItem();
+        listingItem.add(new ItemId(song.getItemId()));
+        listingItem.add(new ItemName(song.getName()));
+        listingItem.add(new SongAlbum(album));
+        return listingItem;
+    }
+
+    private static void assertEquals(Chunk expected, Chunk actual)
+            throws Exception {
+        assertTrue(Arrays.equals(DaapUtil.serialize(expected, false),
+                DaapUtil.serialize(actual, false)));
+    }
+
+    private static class ListingSong extends Song {
+
+        public ListingSong(String name) {
+            super(name);
+        }
+
+        @Override
+        public long getItemId() {
+            return super.getItemId();
+        }
+
+        @Override
+        public Chunk getListingItem(MetaProjection projection) {
+            return super.getListingItem(projection);
+        }
+    }
+
     private class DummyTransaction extends Transaction {
 
         public DummyTransaction() {